@@ -0,0 +1,38 @@
+// For conditions of distribution and use, see copyright notice in Main.java
+
+// Morphognostic distance kernel using the JDK vector API.
+// Requires the jdk.incubator.vector module; see MorphognosticDistance.
+
+package morphognosis.pufferfish;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+public class VectorDistanceKernel implements MorphognosticDistance.Kernel
+{
+   static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+
+   // Sum of absolute differences.
+   // Lanes are summed separately, so results may differ from the scalar
+   // kernel in the last bits for unequal vectors.
+   public float distance(float[] a, int aOffset, float[] b, int bOffset, int length)
+   {
+      FloatVector sum   = FloatVector.zero(SPECIES);
+      int         i     = 0;
+      int         bound = SPECIES.loopBound(length);
+
+      for ( ; i < bound; i += SPECIES.length())
+      {
+         FloatVector va = FloatVector.fromArray(SPECIES, a, aOffset + i);
+         FloatVector vb = FloatVector.fromArray(SPECIES, b, bOffset + i);
+         sum = sum.add(va.sub(vb).abs());
+      }
+      float d = sum.reduceLanes(VectorOperators.ADD);
+      for ( ; i < length; i++)
+      {
+         d += Math.abs(a[aOffset + i] - b[bOffset + i]);
+      }
+      return(d);
+   }
+}
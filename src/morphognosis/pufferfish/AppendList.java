@@ -0,0 +1,91 @@
+// For conditions of distribution and use, see copyright notice in Main.java
+
+// Append list.
+// Array list that other threads can read while a single writer appends: the size
+// is published after the element is stored, so elements below a size read are visible.
+
+package morphognosis.pufferfish;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+
+class AppendList<T> extends AbstractList<T> implements RandomAccess
+{
+   volatile Object[] elements;
+   volatile int      size;
+
+   // Constructor.
+   AppendList()
+   {
+      elements = new Object[16];
+   }
+
+
+   // Size.
+   public int size()
+   {
+      return(size);
+   }
+
+
+   // Get element.
+   @SuppressWarnings("unchecked")
+   public T get(int index)
+   {
+      if ((index < 0) || (index >= size))
+      {
+         throw new IndexOutOfBoundsException("Index " + index + " out of bounds");
+      }
+      return((T)elements[index]);
+   }
+
+
+   // Append element.
+   public boolean add(T element)
+   {
+      Object[] e = elements;
+      int      n = size;
+
+      if (n == e.length)
+      {
+         e        = Arrays.copyOf(e, n * 2);
+         elements = e;
+      }
+      e[n] = element;
+      size = n + 1;
+      modCount++;
+      return(true);
+   }
+
+
+   // Replace element.
+   public T set(int index, T element)
+   {
+      T previous = get(index);
+
+      elements[index] = element;
+      return(previous);
+   }
+
+
+   // Head: list of the elements appended so far, sharing them.
+   // Later appends do not change it, but replaced elements do.
+   AppendList<T> head()
+   {
+      AppendList<T> head = new AppendList<T>();
+
+      head.size     = size;
+      head.elements = elements;
+      return(head);
+   }
+
+
+   // Clear.
+   public void clear()
+   {
+      elements = new Object[16];
+      size     = 0;
+      modCount++;
+   }
+}
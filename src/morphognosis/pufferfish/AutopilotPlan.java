@@ -0,0 +1,145 @@
+// For conditions of distribution and use, see copyright notice in Main.java
+
+// Autopilot plan.
+// Spoke paths followed by the autopilot from the nest center, with the points
+// where it raises and lowers the spoke ripple.
+// Plans depend only on the nest size and spoke properties, and are generated once
+// for each and shared by all pufferfish; a pufferfish tracks the actions it has
+// taken at the points of its current spoke.
+
+package morphognosis.pufferfish;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class AutopilotPlan
+{
+   // Spoke point.
+   public static class SpokePoint
+   {
+      public final int     x, y;
+      public final boolean raise;
+      public final boolean lower;
+
+      SpokePoint(int x, int y, boolean raise, boolean lower)
+      {
+         this.x     = x;
+         this.y     = y;
+         this.raise = raise;
+         this.lower = lower;
+      }
+   }
+
+   // Spoke paths.
+   final SpokePoint[][] spokePaths;
+   final int            maxPathLength;
+
+   // Plans by nest size and spoke properties.
+   static final ConcurrentHashMap<List<Integer>, AutopilotPlan> plans =
+      new ConcurrentHashMap<List<Integer>, AutopilotPlan>();
+
+   // Get plan.
+   public static AutopilotPlan get(int width, int height, int centerRadius,
+                                   int spokeLength, int spokeRippleLength, int numSpokes)
+   {
+      return(plans.computeIfAbsent(Arrays.asList(width, height, centerRadius, spokeLength, spokeRippleLength, numSpokes),
+                                   key -> new AutopilotPlan(width, height, centerRadius,
+                                                            spokeLength, spokeRippleLength, numSpokes)));
+   }
+
+
+   // Constructor.
+   AutopilotPlan(int width, int height, int centerRadius,
+                 int spokeLength, int spokeRippleLength, int numSpokes)
+   {
+      int length = 0;
+
+      spokePaths = new SpokePoint[numSpokes][];
+      for (int spoke = 0; spoke < numSpokes; spoke++)
+      {
+         spokePaths[spoke] = genSpokePath(spoke, width, height, centerRadius,
+                                          spokeLength, spokeRippleLength, numSpokes);
+         length = Math.max(length, spokePaths[spoke].length);
+      }
+      maxPathLength = length;
+   }
+
+
+   // Generate spoke path.
+   static SpokePoint[] genSpokePath(int spoke, int width, int height, int centerRadius,
+                                    int spokeLength, int spokeRippleLength, int numSpokes)
+   {
+      ArrayList<int[]> points = new ArrayList<int[]>();
+      float            angle  = (360.0f / (float)numSpokes) * (float)spoke;
+      float            vx     = (float)Math.cos(Math.toRadians(angle + 90.0f));
+      float            vy     = (float)Math.sin(Math.toRadians(angle + 90.0f));
+      int              cx     = width / 2;
+      int              cy     = height / 2;
+      double           d      = (double)(centerRadius + spokeLength);
+
+      for (int i = 0; ; i++)
+      {
+         int[] p = new int[] { (int)(vx * (float)i) + cx, (int)(vy * (float)i) + cy };
+         if (points.size() > 0)
+         {
+            int[] p2 = points.get(points.size() - 1);
+            if ((p2[0] == p[0]) && (p2[1] == p[1])) { continue; }
+         }
+         points.add(p);
+         double dx = p[0] - cx;
+         double dy = p[1] - cy;
+         if (Math.sqrt((dx * dx) + (dy * dy)) >= d) { break; }
+      }
+
+      // Ripple raised and lowered in alternate runs back from the spoke end.
+      int       n     = points.size();
+      boolean[] raise = new boolean[n];
+      boolean[] lower = new boolean[n];
+      int       a     = spokeRippleLength / 2;
+      int       b     = n - 1;
+      for (int i = 0; i < 4 && a > 0 && b >= 0; i++)
+      {
+         for (int j = 0; j < a && b >= 0; j++, b--)
+         {
+            if ((i % 2) == 0)
+            {
+               raise[b] = true;
+            }
+            else
+            {
+               lower[b] = true;
+            }
+         }
+      }
+      SpokePoint[] path = new SpokePoint[n];
+      for (int i = 0; i < n; i++)
+      {
+         int[] p = points.get(i);
+         path[i] = new SpokePoint(p[0], p[1], raise[i], lower[i]);
+      }
+      return(path);
+   }
+
+
+   // Get number of spokes.
+   public int getNumSpokes()
+   {
+      return(spokePaths.length);
+   }
+
+
+   // Get spoke path.
+   public SpokePoint[] getSpokePath(int spoke)
+   {
+      return(spokePaths[spoke]);
+   }
+
+
+   // Get maximum spoke path length.
+   public int getMaxPathLength()
+   {
+      return(maxPathLength);
+   }
+}
@@ -0,0 +1,182 @@
+// For conditions of distribution and use, see copyright notice in Main.java
+
+// Autopilot tape.
+// Autopilot responses compiled ahead for a nest size, spoke properties and start
+// position, replayed instead of running the autopilot: its responses do not depend
+// on the nest cells, only on where it has moved.
+// A complete tape ends when the autopilot has visited every spoke, after which it waits.
+
+package morphognosis.pufferfish;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import morphognosis.Utility;
+
+public class AutopilotTape
+{
+   // Maximum length.
+   public static int MAX_LENGTH = 10000000;
+
+   // Nest size, spoke properties and start position.
+   int width, height;
+   int centerRadius, spokeLength, spokeRippleLength, numSpokes;
+   int x, y;
+
+   // Responses.
+   byte[]  responses;
+   int     length;
+   boolean complete;
+
+   // Constructor: empty tape for pufferfish nest and position.
+   AutopilotTape(Pufferfish pufferfish)
+   {
+      width             = pufferfish.nest.size.width;
+      height            = pufferfish.nest.size.height;
+      centerRadius      = Nest.CENTER_RADIUS;
+      spokeLength       = Nest.SPOKE_LENGTH;
+      spokeRippleLength = Nest.SPOKE_RIPPLE_LENGTH;
+      numSpokes         = Nest.NUM_SPOKES;
+      x                 = pufferfish.x;
+      y                 = pufferfish.y;
+      responses         = new byte[1024];
+   }
+
+
+   // Constructor for loading.
+   AutopilotTape()
+   {
+   }
+
+
+   // Append response.
+   void add(int response)
+   {
+      if (length == responses.length)
+      {
+         responses = Arrays.copyOf(responses, length * 2);
+      }
+      responses[length++] = (byte)response;
+   }
+
+
+   // Get response at step: wait after the end of a complete tape.
+   public int getResponse(int step)
+   {
+      if (step < length)
+      {
+         return(responses[step]);
+      }
+      return(Pufferfish.WAIT);
+   }
+
+
+   // Get length.
+   public int getLength()
+   {
+      return(length);
+   }
+
+
+   // Does the tape end with the autopilot visiting every spoke?
+   public boolean isComplete()
+   {
+      return(complete);
+   }
+
+
+   // Is tape for pufferfish nest and position?
+   public boolean isFor(Pufferfish pufferfish)
+   {
+      return((width == pufferfish.nest.size.width) && (height == pufferfish.nest.size.height) &&
+             (centerRadius == Nest.CENTER_RADIUS) && (spokeLength == Nest.SPOKE_LENGTH) &&
+             (spokeRippleLength == Nest.SPOKE_RIPPLE_LENGTH) && (numSpokes == Nest.NUM_SPOKES) &&
+             (x == pufferfish.x) && (y == pufferfish.y));
+   }
+
+
+   // Save to file.
+   public void save(String filename) throws IOException
+   {
+      DataOutputStream writer;
+
+      try
+      {
+         writer = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(filename))));
+      }
+      catch (Exception e)
+      {
+         throw new IOException("Cannot open output file " + filename + ":" + e.getMessage());
+      }
+      save(writer);
+      writer.close();
+   }
+
+
+   // Save.
+   public void save(DataOutputStream writer) throws IOException
+   {
+      Utility.saveInt(writer, width);
+      Utility.saveInt(writer, height);
+      Utility.saveInt(writer, centerRadius);
+      Utility.saveInt(writer, spokeLength);
+      Utility.saveInt(writer, spokeRippleLength);
+      Utility.saveInt(writer, numSpokes);
+      Utility.saveInt(writer, x);
+      Utility.saveInt(writer, y);
+      Utility.saveInt(writer, complete ? 1 : 0);
+      Utility.saveInt(writer, length);
+      writer.write(responses, 0, length);
+      writer.flush();
+   }
+
+
+   // Load from file.
+   public static AutopilotTape load(String filename) throws IOException
+   {
+      DataInputStream reader;
+
+      try
+      {
+         reader = new DataInputStream(new BufferedInputStream(new FileInputStream(new File(filename))));
+      }
+      catch (Exception e)
+      {
+         throw new IOException("Cannot open input file " + filename + ":" + e.getMessage());
+      }
+      AutopilotTape tape = load(reader);
+      reader.close();
+      return(tape);
+   }
+
+
+   // Load.
+   public static AutopilotTape load(DataInputStream reader) throws IOException
+   {
+      AutopilotTape tape = new AutopilotTape();
+
+      tape.width             = Utility.loadInt(reader);
+      tape.height            = Utility.loadInt(reader);
+      tape.centerRadius      = Utility.loadInt(reader);
+      tape.spokeLength       = Utility.loadInt(reader);
+      tape.spokeRippleLength = Utility.loadInt(reader);
+      tape.numSpokes         = Utility.loadInt(reader);
+      tape.x                 = Utility.loadInt(reader);
+      tape.y                 = Utility.loadInt(reader);
+      tape.complete          = (Utility.loadInt(reader) == 1);
+      tape.length            = Utility.loadInt(reader);
+      if ((tape.length < 0) || (tape.length > MAX_LENGTH))
+      {
+         throw new IOException("Invalid autopilot tape length " + tape.length);
+      }
+      tape.responses = new byte[Math.max(tape.length, 1)];
+      reader.readFully(tape.responses, 0, tape.length);
+      return(tape);
+   }
+}
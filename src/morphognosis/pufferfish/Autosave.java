@@ -0,0 +1,172 @@
+// For conditions of distribution and use, see copyright notice in Main.java
+
+// Autosave.
+// Checkpoints a run every number of steps and/or seconds. The step thread only
+// copies the nest cells and the pufferfish position and morphognostic, and records
+// the metamorph count, as stored metamorphs are immutable (a bounded store, which
+// replaces them, copies their references); a background thread encodes, compresses,
+// writes and syncs the checkpoint. A checkpoint still waiting to be written when the
+// next is taken is superseded by it.
+// The newest checkpoint is the autosave file, so a run resumes from it with -load;
+// older ones are kept as the file name with suffixes .1, .2, ...
+
+package morphognosis.pufferfish;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+public class Autosave
+{
+   // Default checkpoints kept.
+   public static final int DEFAULT_KEEP = 3;
+
+   // File name, step and time intervals, and checkpoints kept.
+   String filename;
+   int    intervalSteps;
+   long   intervalMillis;
+   int    keep;
+
+   // Steps and time since last checkpoint.
+   int  steps;
+   long checkpointTime;
+
+   // Checkpoints written and superseded.
+   volatile int checkpoints;
+   volatile int superseded;
+
+   // Writer with room for one waiting checkpoint.
+   ThreadPoolExecutor writer;
+
+   // Constructor.
+   public Autosave(String filename, int intervalSteps, int intervalSeconds, int keep)
+   {
+      this.filename       = filename;
+      this.intervalSteps  = intervalSteps;
+      this.intervalMillis = (long)intervalSeconds * 1000L;
+      this.keep           = keep;
+      checkpointTime      = System.currentTimeMillis();
+      writer              = new ThreadPoolExecutor(1, 1, 1000L, TimeUnit.MILLISECONDS,
+                                                   new ArrayBlockingQueue<Runnable>(1),
+                                                   (task, executor) ->
+                                                   {
+                                                      if (!executor.isShutdown())
+                                                      {
+                                                         executor.getQueue().poll();
+                                                         superseded++;
+                                                         executor.execute(task);
+                                                      }
+                                                   }
+                                                   );
+      writer.allowCoreThreadTimeOut(true);
+   }
+
+
+   // Step: checkpoint if interval elapsed.
+   public void step(Main main)
+   {
+      steps++;
+      if (((intervalSteps > 0) && (steps >= intervalSteps)) ||
+          ((intervalMillis > 0) && ((System.currentTimeMillis() - checkpointTime) >= intervalMillis)))
+      {
+         checkpoint(main);
+      }
+   }
+
+
+   // Checkpoint.
+   public void checkpoint(Main main)
+   {
+      SaveFile.Snapshot snapshot = SaveFile.snapshot(main.nest, main.pufferfish, SaveFile.FORMAT);
+
+      steps          = 0;
+      checkpointTime = System.currentTimeMillis();
+      writer.execute(() ->
+                     {
+                        try
+                        {
+                           write(snapshot);
+                           checkpoints++;
+                        }
+                        catch (IOException e)
+                        {
+                           System.err.println("Cannot autosave to file " + filename + ": " + e.getMessage());
+                        }
+                     }
+                     );
+   }
+
+
+   // Write snapshot to temporary file, sync, and rotate it in as newest checkpoint.
+   void write(SaveFile.Snapshot snapshot) throws IOException
+   {
+      File             temp = new File(filename + ".tmp");
+      FileOutputStream output;
+
+      try
+      {
+         output = new FileOutputStream(temp);
+      }
+      catch (Exception e)
+      {
+         throw new IOException("Cannot open output file " + temp.getPath() + ":" + e.getMessage());
+      }
+      try
+      {
+         DataOutputStream writer = new DataOutputStream(new BufferedOutputStream(output));
+         SaveFile.write(writer, snapshot);
+         output.getFD().sync();
+      }
+      finally
+      {
+         output.close();
+      }
+      for (int i = keep - 1; i > 0; i--)
+      {
+         File older = new File(i == 1 ? filename : filename + "." + (i - 1));
+         if (older.exists())
+         {
+            Files.move(older.toPath(), new File(filename + "." + i).toPath(),
+                       StandardCopyOption.REPLACE_EXISTING);
+         }
+      }
+      Files.move(temp.toPath(), new File(filename).toPath(),
+                 StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+   }
+
+
+   // Finish writing checkpoints.
+   public void close()
+   {
+      writer.shutdown();
+      try
+      {
+         writer.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+      }
+      catch (InterruptedException e)
+      {
+         Thread.currentThread().interrupt();
+      }
+   }
+
+
+   // Get number of checkpoints written.
+   public int getCheckpoints()
+   {
+      return(checkpoints);
+   }
+
+
+   // Get number of checkpoints superseded before writing.
+   public int getSuperseded()
+   {
+      return(superseded);
+   }
+}
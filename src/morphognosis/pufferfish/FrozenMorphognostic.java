@@ -0,0 +1,287 @@
+// For conditions of distribution and use, see copyright notice in Main.java
+
+// Frozen morphognostic.
+// Immutable morphognostic for learned metamorphs, holding only its type densities
+// as a flattened vector rectified to its orientation, and a layout shared by all
+// morphognostics with the same parameters. Sector event buffers are not kept:
+// they are only needed to update a morphognostic, and are saved as cleared (-1),
+// which keeps the save format.
+
+package morphognosis.pufferfish;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import morphognosis.Morphognostic;
+import morphognosis.Morphognostic.Neighborhood;
+import morphognosis.Orientation;
+import morphognosis.Utility;
+
+public class FrozenMorphognostic extends Morphognostic
+{
+   // Layout.
+   public static class Layout
+   {
+      // Parameters.
+      public int   NUM_NEIGHBORHOODS;
+      public int   NEIGHBORHOOD_INITIAL_DIMENSION;
+      public int   NEIGHBORHOOD_DIMENSION_STRIDE;
+      public int   NEIGHBORHOOD_DIMENSION_MULTIPLIER;
+      public int   EPOCH_INTERVAL_STRIDE;
+      public int   EPOCH_INTERVAL_MULTIPLIER;
+      public int[] numEventTypes;
+      public int   eventDimensions;
+
+      // Neighborhoods.
+      public int[] dx;
+      public int[] dy;
+      public int[] dimension;
+      public int[] epoch;
+      public int[] duration;
+
+      // Sectors per side and sector dimension of each neighborhood.
+      public int[] sectorCounts;
+      public int[] sectorDimensions;
+
+      // Neighborhood offsets into flattened vector, and sector length.
+      public int[] offsets;
+      public int   sectorLength;
+
+      // Sector index x * n + y at each rectified position, and its inverse,
+      // for each neighborhood and orientation.
+      int[][][] sectorIndexes;
+      int[][][] sectorPositions;
+
+      // Constructor.
+      public Layout(Morphognostic morphognostic)
+      {
+         NUM_NEIGHBORHOODS                 = morphognostic.NUM_NEIGHBORHOODS;
+         NEIGHBORHOOD_INITIAL_DIMENSION    = morphognostic.NEIGHBORHOOD_INITIAL_DIMENSION;
+         NEIGHBORHOOD_DIMENSION_STRIDE     = morphognostic.NEIGHBORHOOD_DIMENSION_STRIDE;
+         NEIGHBORHOOD_DIMENSION_MULTIPLIER = morphognostic.NEIGHBORHOOD_DIMENSION_MULTIPLIER;
+         EPOCH_INTERVAL_STRIDE             = morphognostic.EPOCH_INTERVAL_STRIDE;
+         EPOCH_INTERVAL_MULTIPLIER         = morphognostic.EPOCH_INTERVAL_MULTIPLIER;
+         numEventTypes                     = morphognostic.numEventTypes.clone();
+         eventDimensions                   = morphognostic.eventDimensions;
+         dx               = new int[NUM_NEIGHBORHOODS];
+         dy               = new int[NUM_NEIGHBORHOODS];
+         dimension        = new int[NUM_NEIGHBORHOODS];
+         epoch            = new int[NUM_NEIGHBORHOODS];
+         duration         = new int[NUM_NEIGHBORHOODS];
+         sectorCounts     = new int[NUM_NEIGHBORHOODS];
+         sectorDimensions = new int[NUM_NEIGHBORHOODS];
+         sectorIndexes    = new int[NUM_NEIGHBORHOODS][Orientation.NUM_ORIENTATIONS][];
+         sectorPositions  = new int[NUM_NEIGHBORHOODS][Orientation.NUM_ORIENTATIONS][];
+         offsets          = new int[NUM_NEIGHBORHOODS + 1];
+         sectorLength     = 0;
+         for (int d = 0; d < eventDimensions; d++)
+         {
+            sectorLength += numEventTypes[d];
+         }
+         for (int i = 0; i < NUM_NEIGHBORHOODS; i++)
+         {
+            Neighborhood neighborhood = morphognostic.neighborhoods.get(i);
+            Neighborhood.Sector[][] sectors = neighborhood.sectors;
+            int n = sectors.length;
+            dx[i]               = neighborhood.dx;
+            dy[i]               = neighborhood.dy;
+            dimension[i]        = neighborhood.dimension;
+            epoch[i]            = neighborhood.epoch;
+            duration[i]         = neighborhood.duration;
+            sectorCounts[i]     = n;
+            sectorDimensions[i] = sectors[0][0].dimension;
+            offsets[i + 1]      = offsets[i] + (n * n * sectorLength);
+            for (int o = 0; o < Orientation.NUM_ORIENTATIONS; o++)
+            {
+               sectorIndexes[i][o]   = new int[n * n];
+               sectorPositions[i][o] = new int[n * n];
+               for (int p = 0; p < n * n; p++)
+               {
+                  Neighborhood.Sector sector = MorphognosticDistance.getRectifiedSector(sectors, o, p);
+                  for (int x = 0; x < n; x++)
+                  {
+                     for (int y = 0; y < n; y++)
+                     {
+                        if (sectors[x][y] == sector)
+                        {
+                           sectorIndexes[i][o][p]               = (x * n) + y;
+                           sectorPositions[i][o][(x * n) + y] = p;
+                        }
+                     }
+                  }
+               }
+            }
+         }
+      }
+
+
+      // Get rectified position in orientation of the sector at a position in another orientation.
+      public int getPosition(int neighborhood, int fromOrientation, int position, int toOrientation)
+      {
+         return(sectorPositions[neighborhood][toOrientation][sectorIndexes[neighborhood][fromOrientation][position]]);
+      }
+
+
+      // Rotate flattened vector between orientations.
+      public float[] rotate(float[] vector, int fromOrientation, int toOrientation, float[] rotated)
+      {
+         for (int i = 0; i < NUM_NEIGHBORHOODS; i++)
+         {
+            for (int p = 0, n = sectorCounts[i] * sectorCounts[i]; p < n; p++)
+            {
+               System.arraycopy(vector, offsets[i] + (p * sectorLength), rotated,
+                                offsets[i] + (getPosition(i, fromOrientation, p, toOrientation) * sectorLength),
+                                sectorLength);
+            }
+         }
+         return(rotated);
+      }
+
+
+      // Get vector length.
+      public int getVectorLength()
+      {
+         return(offsets[NUM_NEIGHBORHOODS]);
+      }
+   }
+
+   // Layout.
+   public Layout layout;
+
+   // Type densities rectified to orientation.
+   float[] vector;
+
+   // Constructor.
+   // The vector is not copied and must not be modified.
+   public FrozenMorphognostic(Layout layout, int orientation, float[] vector)
+   {
+      super(orientation, layout.numEventTypes, 0,
+            layout.NEIGHBORHOOD_INITIAL_DIMENSION,
+            layout.NEIGHBORHOOD_DIMENSION_STRIDE,
+            layout.NEIGHBORHOOD_DIMENSION_MULTIPLIER,
+            layout.EPOCH_INTERVAL_STRIDE,
+            layout.EPOCH_INTERVAL_MULTIPLIER);
+      NUM_NEIGHBORHOODS = layout.NUM_NEIGHBORHOODS;
+      this.layout       = layout;
+      this.vector       = vector;
+   }
+
+
+   // Freeze morphognostic.
+   public static FrozenMorphognostic freeze(Morphognostic morphognostic, Layout layout)
+   {
+      if (morphognostic instanceof FrozenMorphognostic)
+      {
+         return((FrozenMorphognostic)morphognostic);
+      }
+      return(new FrozenMorphognostic(layout, morphognostic.orientation,
+                                     MorphognosticDistance.flatten(morphognostic)));
+   }
+
+
+   // Get type densities rectified to orientation.
+   // The vector must not be modified.
+   public float[] getVector()
+   {
+      return(vector);
+   }
+
+
+   // Update is not supported.
+   public void update(int[][][][] morphEvents, int x, int y)
+   {
+      throw new UnsupportedOperationException("Cannot update frozen morphognostic");
+   }
+
+
+   // Clear is not supported.
+   public void clear()
+   {
+      throw new UnsupportedOperationException("Cannot clear frozen morphognostic");
+   }
+
+
+   // Compare.
+   public float compare(Morphognostic morphognostic)
+   {
+      return(MorphognosticDistance.compare(this, morphognostic));
+   }
+
+
+   // Save in morphognostic format, with sectors in stored order and cleared events.
+   public void save(DataOutputStream writer) throws IOException
+   {
+      Utility.saveInt(writer, layout.NUM_NEIGHBORHOODS);
+      Utility.saveInt(writer, layout.NEIGHBORHOOD_INITIAL_DIMENSION);
+      Utility.saveInt(writer, layout.NEIGHBORHOOD_DIMENSION_STRIDE);
+      Utility.saveInt(writer, layout.NEIGHBORHOOD_DIMENSION_MULTIPLIER);
+      Utility.saveInt(writer, layout.EPOCH_INTERVAL_STRIDE);
+      Utility.saveInt(writer, layout.EPOCH_INTERVAL_MULTIPLIER);
+      Utility.saveInt(writer, orientation);
+      Utility.saveInt(writer, layout.eventDimensions);
+      for (int d = 0; d < layout.eventDimensions; d++)
+      {
+         Utility.saveInt(writer, layout.numEventTypes[d]);
+      }
+      for (int i = 0; i < layout.NUM_NEIGHBORHOODS; i++)
+      {
+         int n  = layout.sectorCounts[i];
+         int s2 = layout.sectorDimensions[i] * layout.sectorDimensions[i];
+         for (int j = 0; j < n * n; j++)
+         {
+            int p = layout.offsets[i] + (layout.sectorPositions[i][orientation][j] * layout.sectorLength);
+            for (int d = 0; d < layout.eventDimensions; d++)
+            {
+               for (int k = 0; k < layout.numEventTypes[d]; k++)
+               {
+                  Utility.saveFloat(writer, vector[p++]);
+               }
+               for (int k = 0; k < s2; k++)
+               {
+                  Utility.saveInt(writer, -1);
+               }
+            }
+         }
+      }
+      writer.flush();
+   }
+
+
+   // Clone.
+   // Frozen morphognostics are immutable, so the clone shares the layout and densities.
+   public FrozenMorphognostic clone()
+   {
+      return(new FrozenMorphognostic(layout, orientation, vector));
+   }
+
+
+   // Print.
+   public void print()
+   {
+      printParameters();
+      for (int i = 0; i < layout.NUM_NEIGHBORHOODS; i++)
+      {
+         System.out.println("neighborhood=" + i);
+         System.out.println("\tdx/dy=" + layout.dx[i] + "/" + layout.dy[i]);
+         System.out.println("\tdimension=" + layout.dimension[i]);
+         System.out.println("\tepoch/duration=" + layout.epoch[i] + "/" + layout.duration[i]);
+         int n = layout.sectorCounts[i];
+         for (int x = 0; x < n; x++)
+         {
+            for (int y = 0; y < n; y++)
+            {
+               int p = layout.offsets[i] + (layout.sectorPositions[i][orientation][(x * n) + y] * layout.sectorLength);
+               System.out.println("\tsector[" + x + "][" + y + "]:");
+               for (int d = 0; d < layout.eventDimensions; d++)
+               {
+                  String densities = "";
+                  for (int k = 0; k < layout.numEventTypes[d]; k++)
+                  {
+                     densities += " " + vector[p++];
+                  }
+                  System.out.println("\t\tdimension=" + d + " densities:" + densities);
+               }
+            }
+         }
+      }
+   }
+}
@@ -0,0 +1,547 @@
+// For conditions of distribution and use, see copyright notice in Main.java
+
+// Incremental morphognostic update.
+// Maintains the sector type densities of a morphognostic from the events that
+// enter and leave each neighborhood epoch, and from the one cell pufferfish moves,
+// instead of rebuilding every sector from the full event history each step.
+
+package morphognosis.pufferfish;
+
+import java.security.SecureRandom;
+import morphognosis.Morphognostic;
+import morphognosis.Morphognostic.Neighborhood;
+
+public class IncrementalMorphognostic
+{
+   // Morphognostic.
+   public Morphognostic morphognostic;
+
+   // Nest dimensions.
+   int width, height;
+
+   // Event history indexed by age: values and locations.
+   int[][] historyValues;
+   int[]   historyX;
+   int[]   historyY;
+   int     historyHead;
+   int     historySize;
+
+   // Neighborhood states.
+   NeighborhoodState[] states;
+
+   // Verification.
+   SecureRandom verifyRandom;
+   public int   verifications;
+   public int   mismatches;
+
+   // Constructor.
+   public IncrementalMorphognostic(Morphognostic morphognostic, int width, int height)
+   {
+      this.morphognostic = morphognostic;
+      this.width         = width;
+      this.height        = height;
+      Neighborhood n      = morphognostic.neighborhoods.get(morphognostic.NUM_NEIGHBORHOODS - 1);
+      int          length = n.epoch + n.duration + 1;
+      historyValues = new int[length][morphognostic.eventDimensions];
+      historyX      = new int[length];
+      historyY      = new int[length];
+      states        = new NeighborhoodState[morphognostic.NUM_NEIGHBORHOODS];
+      for (int i = 0; i < states.length; i++)
+      {
+         states[i] = new NeighborhoodState(morphognostic.neighborhoods.get(i));
+      }
+      verifyRandom = new SecureRandom();
+      verifyRandom.setSeed(0);
+      clear();
+   }
+
+
+   // Clear event history.
+   public void clear()
+   {
+      historyHead = 0;
+      historySize = 0;
+      for (NeighborhoodState s : states)
+      {
+         s.clear();
+      }
+      verifications = mismatches = 0;
+   }
+
+
+   // Update morphognostic with new event at pufferfish location.
+   public void update(int[] values, int x, int y)
+   {
+      int length = historyX.length;
+
+      historyHead = (historyHead + length - 1) % length;
+      for (int d = 0; d < morphognostic.eventDimensions; d++)
+      {
+         historyValues[historyHead][d] = values[d];
+      }
+      historyX[historyHead] = x;
+      historyY[historyHead] = y;
+      if (historySize < length)
+      {
+         historySize++;
+      }
+      for (NeighborhoodState s : states)
+      {
+         s.update(x, y);
+      }
+   }
+
+
+   // Get history index of event at age, or -1 if none.
+   int getHistoryIndex(int age)
+   {
+      if ((age < 0) || (age >= historySize))
+      {
+         return(-1);
+      }
+      return((historyHead + age) % historyX.length);
+   }
+
+
+   // Verify morphognostic against full update from given events.
+   // Returns true if equal; on mismatch the full update is adopted, and the
+   // neighborhood states are resynchronized with the event history.
+   public boolean verify(int[][][][] morphEvents, int x, int y)
+   {
+      Morphognostic full = morphognostic.clone();
+
+      full.update(morphEvents, x, y);
+      verifications++;
+      boolean equal = true;
+      for (int i = 0; i < morphognostic.NUM_NEIGHBORHOODS; i++)
+      {
+         Neighborhood.Sector[][] sectors     = morphognostic.neighborhoods.get(i).sectors;
+         Neighborhood.Sector[][] fullSectors = full.neighborhoods.get(i).sectors;
+         for (int sx = 0; sx < sectors.length; sx++)
+         {
+            for (int sy = 0; sy < sectors.length; sy++)
+            {
+               Neighborhood.Sector s  = sectors[sx][sy];
+               Neighborhood.Sector s2 = fullSectors[sx][sy];
+               for (int d = 0; d < morphognostic.eventDimensions; d++)
+               {
+                  for (int k = 0; k < morphognostic.numEventTypes[d]; k++)
+                  {
+                     if (s.typeDensities[d][k] != s2.typeDensities[d][k])
+                     {
+                        equal = false;
+                     }
+                     s.typeDensities[d][k] = s2.typeDensities[d][k];
+                  }
+                  for (int ex = 0; ex < s.dimension; ex++)
+                  {
+                     for (int ey = 0; ey < s.dimension; ey++)
+                     {
+                        if (s.events[ex][ey][d] != s2.events[ex][ey][d])
+                        {
+                           equal = false;
+                        }
+                        s.events[ex][ey][d] = s2.events[ex][ey][d];
+                     }
+                  }
+               }
+            }
+         }
+      }
+      if (!equal)
+      {
+         mismatches++;
+         for (NeighborhoodState s : states)
+         {
+            s.resync();
+         }
+      }
+      return(equal);
+   }
+
+
+   // Verify with given probability.
+   public boolean sampleVerify(float probability)
+   {
+      return(probability > 0.0f && verifyRandom.nextFloat() < probability);
+   }
+
+
+   // Neighborhood state.
+   class NeighborhoodState
+   {
+      Neighborhood neighborhood;
+
+      // Count and most recent value of epoch events per cell and dimension.
+      int[][][] cellCounts;
+      int[][][] cellValues;
+
+      // Sector event type counts.
+      int[][][][] sectorCounts;
+
+      // Sectors containing relative cell coordinates.
+      int[][] xSectors;
+      int[][] ySectors;
+
+      // Dirty sectors.
+      boolean[][] dirty;
+
+      // Window origin.
+      int     originX, originY;
+      boolean valid;
+
+      // Constructor.
+      NeighborhoodState(Neighborhood neighborhood)
+      {
+         this.neighborhood = neighborhood;
+         int dimensions = morphognostic.eventDimensions;
+         cellCounts = new int[width][height][dimensions];
+         cellValues = new int[width][height][dimensions];
+         int n = neighborhood.sectors.length;
+         sectorCounts = new int[n][n][dimensions][];
+         for (int i = 0; i < n; i++)
+         {
+            for (int j = 0; j < n; j++)
+            {
+               for (int d = 0; d < dimensions; d++)
+               {
+                  sectorCounts[i][j][d] = new int[morphognostic.numEventTypes[d]];
+               }
+            }
+         }
+         dirty    = new boolean[n][n];
+         xSectors = new int[neighborhood.dimension][];
+         ySectors = new int[neighborhood.dimension][];
+         for (int r = 0; r < neighborhood.dimension; r++)
+         {
+            int cx = 0, cy = 0;
+            for (int i = 0; i < n; i++)
+            {
+               Neighborhood.Sector s = neighborhood.sectors[i][0];
+               if ((r >= s.dx) && (r < s.dx + s.dimension)) { cx++; }
+               s = neighborhood.sectors[0][i];
+               if ((r >= s.dy) && (r < s.dy + s.dimension)) { cy++; }
+            }
+            xSectors[r] = new int[cx];
+            ySectors[r] = new int[cy];
+            cx          = cy = 0;
+            for (int i = 0; i < n; i++)
+            {
+               Neighborhood.Sector s = neighborhood.sectors[i][0];
+               if ((r >= s.dx) && (r < s.dx + s.dimension)) { xSectors[r][cx++] = i; }
+               s = neighborhood.sectors[0][i];
+               if ((r >= s.dy) && (r < s.dy + s.dimension)) { ySectors[r][cy++] = i; }
+            }
+         }
+      }
+
+
+      // Clear.
+      void clear()
+      {
+         for (int x = 0; x < width; x++)
+         {
+            for (int y = 0; y < height; y++)
+            {
+               for (int d = 0; d < morphognostic.eventDimensions; d++)
+               {
+                  cellCounts[x][y][d] = 0;
+                  cellValues[x][y][d] = -1;
+               }
+            }
+         }
+         valid = false;
+      }
+
+
+      // Resynchronize cells with the epoch events in the history, invalidating
+      // the window so that sectors are rebuilt from them on the next update.
+      void resync()
+      {
+         clear();
+         if (neighborhood.duration <= 0) { return; }
+         int last = Math.min(neighborhood.epoch + neighborhood.duration, historySize) - 1;
+         for (int age = last; age >= neighborhood.epoch; age--)
+         {
+            applyCellEvent(getHistoryIndex(age), 1, false);
+         }
+      }
+
+
+      // Update for new pufferfish location.
+      void update(int x, int y)
+      {
+         int newOriginX = mod(x + neighborhood.dx, width);
+         int newOriginY = mod(y + neighborhood.dy, height);
+         int shiftX     = getShift(newOriginX - originX, width);
+         int shiftY     = getShift(newOriginY - originY, height);
+
+         // Move window.
+         boolean moved = false;
+         if (!valid || (shiftX == 2) || (shiftY == 2) || ((shiftX != 0) && (shiftY != 0)))
+         {
+            valid = false;
+            applyEpochChanges(false);
+            originX = newOriginX;
+            originY = newOriginY;
+            rebuild();
+            valid = true;
+            moved = true;
+         }
+         else
+         {
+            if ((shiftX != 0) || (shiftY != 0))
+            {
+               shift(shiftX, shiftY);
+               originX = newOriginX;
+               originY = newOriginY;
+               moved   = true;
+            }
+            applyEpochChanges(!moved);
+         }
+
+         // Refresh sectors.
+         Neighborhood.Sector[][] sectors = neighborhood.sectors;
+         for (int i = 0; i < sectors.length; i++)
+         {
+            for (int j = 0; j < sectors.length; j++)
+            {
+               if (moved)
+               {
+                  writeSectorEvents(i, j);
+               }
+               if (moved || dirty[i][j])
+               {
+                  writeSectorDensities(i, j);
+                  dirty[i][j] = false;
+               }
+            }
+         }
+      }
+
+
+      // Apply events entering and leaving the epoch.
+      void applyEpochChanges(boolean updateSectorEvents)
+      {
+         if (neighborhood.duration <= 0) { return; }
+         int leaving = getHistoryIndex(neighborhood.epoch + neighborhood.duration);
+         if (leaving != -1)
+         {
+            applyCellEvent(leaving, -1, updateSectorEvents);
+         }
+         int entering = getHistoryIndex(neighborhood.epoch);
+         if (entering != -1)
+         {
+            applyCellEvent(entering, 1, updateSectorEvents);
+         }
+      }
+
+
+      // Add or remove an event from its cell.
+      void applyCellEvent(int index, int delta, boolean updateSectorEvents)
+      {
+         int ax = historyX[index];
+         int ay = historyY[index];
+
+         for (int d = 0; d < morphognostic.eventDimensions; d++)
+         {
+            int value = historyValues[index][d];
+            if (value == -1) { continue; }
+            int oldValue = cellValues[ax][ay][d];
+            int newValue = oldValue;
+            cellCounts[ax][ay][d] += delta;
+            if (delta > 0)
+            {
+               newValue = value;
+            }
+            else if (cellCounts[ax][ay][d] == 0)
+            {
+               newValue = -1;
+            }
+            if (newValue == oldValue) { continue; }
+            cellValues[ax][ay][d] = newValue;
+            if (!valid) { continue; }
+
+            // Update sectors containing cell.
+            for (int rx = mod(ax - originX, width); rx < neighborhood.dimension; rx += width)
+            {
+               for (int ry = mod(ay - originY, height); ry < neighborhood.dimension; ry += height)
+               {
+                  for (int i : xSectors[rx])
+                  {
+                     for (int j : ySectors[ry])
+                     {
+                        count(i, j, d, oldValue, -1);
+                        count(i, j, d, newValue, 1);
+                        dirty[i][j] = true;
+                        if (updateSectorEvents)
+                        {
+                           Neighborhood.Sector s = neighborhood.sectors[i][j];
+                           s.events[rx - s.dx][ry - s.dy][d] = newValue;
+                        }
+                     }
+                  }
+               }
+            }
+         }
+      }
+
+
+      // Shift window one cell.
+      void shift(int shiftX, int shiftY)
+      {
+         Neighborhood.Sector[][] sectors = neighborhood.sectors;
+         for (int i = 0; i < sectors.length; i++)
+         {
+            for (int j = 0; j < sectors.length; j++)
+            {
+               Neighborhood.Sector s = sectors[i][j];
+               int sd = s.dimension;
+               int x  = originX + s.dx;
+               int y  = originY + s.dy;
+               if (shiftX != 0)
+               {
+                  int from = (shiftX > 0) ? x : x + sd - 1;
+                  int to   = (shiftX > 0) ? x + sd : x - 1;
+                  for (int k = 0; k < sd; k++)
+                  {
+                     countCell(i, j, from, y + k, -1);
+                     countCell(i, j, to, y + k, 1);
+                  }
+               }
+               else
+               {
+                  int from = (shiftY > 0) ? y : y + sd - 1;
+                  int to   = (shiftY > 0) ? y + sd : y - 1;
+                  for (int k = 0; k < sd; k++)
+                  {
+                     countCell(i, j, x + k, from, -1);
+                     countCell(i, j, x + k, to, 1);
+                  }
+               }
+            }
+         }
+      }
+
+
+      // Rebuild sector counts from cells.
+      void rebuild()
+      {
+         Neighborhood.Sector[][] sectors = neighborhood.sectors;
+         for (int i = 0; i < sectors.length; i++)
+         {
+            for (int j = 0; j < sectors.length; j++)
+            {
+               Neighborhood.Sector s = sectors[i][j];
+               for (int d = 0; d < morphognostic.eventDimensions; d++)
+               {
+                  int[] counts = sectorCounts[i][j][d];
+                  for (int k = 0; k < counts.length; k++)
+                  {
+                     counts[k] = 0;
+                  }
+               }
+               for (int ex = 0; ex < s.dimension; ex++)
+               {
+                  for (int ey = 0; ey < s.dimension; ey++)
+                  {
+                     countCell(i, j, originX + s.dx + ex, originY + s.dy + ey, 1);
+                  }
+               }
+            }
+         }
+      }
+
+
+      // Count cell values into sector.
+      void countCell(int i, int j, int x, int y, int delta)
+      {
+         int[] values = cellValues[mod(x, width)][mod(y, height)];
+
+         for (int d = 0; d < values.length; d++)
+         {
+            count(i, j, d, values[d], delta);
+         }
+      }
+
+
+      // Count value into sector.
+      void count(int i, int j, int d, int value, int delta)
+      {
+         if (value == -1) { return; }
+         int[] counts = sectorCounts[i][j][d];
+         if (counts.length == 1)
+         {
+            counts[0] += value * delta;
+         }
+         else
+         {
+            counts[value] += delta;
+         }
+      }
+
+
+      // Write sector events from cells.
+      void writeSectorEvents(int i, int j)
+      {
+         Neighborhood.Sector s = neighborhood.sectors[i][j];
+
+         for (int ex = 0; ex < s.dimension; ex++)
+         {
+            int x = mod(originX + s.dx + ex, width);
+            for (int ey = 0; ey < s.dimension; ey++)
+            {
+               int[] values = cellValues[x][mod(originY + s.dy + ey, height)];
+               for (int d = 0; d < values.length; d++)
+               {
+                  s.events[ex][ey][d] = values[d];
+               }
+            }
+         }
+      }
+
+
+      // Write sector densities from counts.
+      void writeSectorDensities(int i, int j)
+      {
+         Neighborhood.Sector s = neighborhood.sectors[i][j];
+
+         for (int d = 0; d < morphognostic.eventDimensions; d++)
+         {
+            int[] counts = sectorCounts[i][j][d];
+            for (int k = 0; k < counts.length; k++)
+            {
+               s.typeDensities[d][k] = (float)counts[k] / (float)s.dimension;
+            }
+         }
+      }
+   }
+
+   // Get single cell shift of window origin, or 2 for a jump.
+   static int getShift(int delta, int size)
+   {
+      delta = mod(delta, size);
+      if (delta == 0)
+      {
+         return(0);
+      }
+      if (delta == 1)
+      {
+         return(1);
+      }
+      if (delta == (size - 1))
+      {
+         return(-1);
+      }
+      return(2);
+   }
+
+
+   // Non-negative modulo.
+   static int mod(int a, int b)
+   {
+      a %= b;
+      if (a < 0) { a += b; }
+      return(a);
+   }
+}
@@ -26,12 +26,17 @@
 
 package morphognosis.pufferfish;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.security.SecureRandom;
 import javax.swing.UIManager;
 
@@ -71,20 +76,76 @@ public class Main
       "        [-epochIntervalStride <quantity> (default=" + Morphognostic.DEFAULT_EPOCH_INTERVAL_STRIDE + ")]\n" +
       "        [-epochIntervalMultiplier <quantity> (default=" + Morphognostic.DEFAULT_EPOCH_INTERVAL_MULTIPLIER + ")]\n" +
       "        [-equivalentMorphognosticDistance <distance> (default=" + Pufferfish.EQUIVALENT_MORPHOGNOSTIC_DISTANCE + ")]\n" +
-      "     [-driver <metamorphRules | autopilot> (pufferfish driver: default=autopilot)]\n" +
+      "     [-driver <metamorphRules | decisionTree | neuralNetwork | autopilot> (pufferfish driver: default=autopilot)]\n" +
       "     [-randomSeed <random number seed> (default=" + DEFAULT_RANDOM_SEED + ")]\n" +
+      "     [-morphognosticUpdate <incremental | full> (default=incremental)]\n" +
+      "     [-verifyMorphognosticUpdate <probability> (verify incremental against full update, default=" + Pufferfish.VERIFY_MORPHOGNOSTIC_UPDATE_PROBABILITY + ")]\n" +
+      "     [-parallelSearchThreshold <quantity> (minimum metamorphs for parallel rule search, default=" + MetamorphStore.PARALLEL_SEARCH_THRESHOLD + ")]\n" +
+      "     [-distanceKernel <scalar | vector> (morphognostic distance kernel: scalar, same as Morphognostic.compare, or vector API if built and the jdk.incubator.vector module is added, summing in a different order so that distances may differ in the last bit and break ties differently, default=scalar)]\n" +
+      "     [-simulations <quantity> (run simulations in parallel with random seeds from randomSeed: autopilot simulations learn into one metamorph table, and metamorphRules simulations of a resumed run share the loaded metamorphs in lockstep with batched search, default=1)]\n" +
+      "     [-metamorphSearch <exact | approximate> (metamorphRules driver search, default=exact)]\n" +
+      "     [-lshParameters <tables> <hashes> <bucket width> (approximate search index, default=" + MetamorphIndex.DEFAULT_NUM_TABLES + " " + MetamorphIndex.DEFAULT_NUM_HASHES + " " + MetamorphIndex.DEFAULT_BUCKET_WIDTH + ")]\n" +
+      "     [-auditApproximateSearch <probability> (compare approximate with exact search, default=" + Pufferfish.AUDIT_APPROXIMATE_SEARCH_PROBABILITY + ")]\n" +
+      "     [-metamorphCapacity <quantity> (maximum metamorphs, 0 for unbounded, default=" + Pufferfish.METAMORPH_CAPACITY + ")]\n" +
+      "     [-metamorphEviction <leastRecentlyMatched | leastFrequentlyMatched | mergeNearestDuplicate> (metamorph capacity eviction policy, default=leastFrequentlyMatched)]\n" +
+      "     [-decisionTreeMaxDepth <depth> (decisionTree driver tree depth limit, default=" + Pufferfish.DECISION_TREE_MAX_DEPTH + ")]\n" +
+      "     [-auditDecisionTree <probability> (compare decisionTree with metamorphRules driver, default=" + Pufferfish.AUDIT_DECISION_TREE_PROBABILITY + ")]\n" +
+      "     [-autopilot <live | tape> (autopilot runs live or replays a tape of its responses compiled ahead for the nest, default=live)]\n" +
+      "     [-verifyAutopilotTape (run autopilot alongside its tape, counting differing responses)]\n" +
+      "     [-loadAutopilotTape <file name> (replay autopilot tape)]\n" +
+      "     [-saveAutopilotTape <file name> (save autopilot tape, compiled if not loaded)]\n" +
+      "     [-untilComplete <autopilot | <nest image file name>> (run until the nest matches the nest finished by the autopilot or the nest image, for at most steps if given, reporting steps to completion)]\n" +
+      "     [-replaySteps <steps> (after training with the autopilot for steps, restore the nest and replay with the driver in the same run, reporting both phases)]\n" +
+      "     [-writeNestQuality <file name> (write time series of nest elevation error, differing cells and center and spoke match rate against the untilComplete target, default=" + NEST_IMAGE_FILE + ")]\n" +
       "     [-save <file name>]\n" +
+      "     [-saveFormat <compressed | packed | legacy> (save file format: sections with bit-packed nest cells, deflated or not, or legacy, default=compressed)]\n" +
+      "     [-autosave <file name> (checkpoint to file during run, keeping older checkpoints as file name.1, .2, ...)]\n" +
+      "     [-autosaveSteps <steps> (checkpoint every steps)]\n" +
+      "     [-autosaveSeconds <seconds> (checkpoint every seconds)]\n" +
+      "     [-autosaveKeep <quantity> (checkpoints kept, default=" + Autosave.DEFAULT_KEEP + ")]\n" +
       "     [-print (print parameters and properties)]\n" +
       "     [-writeMetamorphDataset <file name> (write metamorph dataset file, default=" + Pufferfish.DATASET_FILE_NAME + ")]\n" +
+      "     [-networkHiddenUnits <quantity> (neuralNetwork driver hidden layer units, 0 for none, default=" + Pufferfish.NETWORK_HIDDEN_UNITS + ")]\n" +
+      "     [-networkTrainingEpochs <quantity> (epochs to train network on metamorphs, default=" + Pufferfish.NETWORK_TRAINING_EPOCHS + ")]\n" +
+      "     [-saveNetwork <file name> (save network weights, training on metamorphs if not loaded)]\n" +
       "  Resume run:\n" +
       "    java morphognosis.pufferfish.Main\n" +
       "      -load <file name>\n" +
       "     [-steps <steps> | -display (default)]\n" +
-      "     [-driver <metamorphRules | autopilot> (default=autopilot)]\n" +
+      "     [-driver <metamorphRules | decisionTree | neuralNetwork | autopilot> (default=autopilot)]\n" +
       "     [-randomSeed <random number seed>]\n" +
+      "     [-morphognosticUpdate <incremental | full> (default=incremental)]\n" +
+      "     [-verifyMorphognosticUpdate <probability> (default=" + Pufferfish.VERIFY_MORPHOGNOSTIC_UPDATE_PROBABILITY + ")]\n" +
+      "     [-parallelSearchThreshold <quantity> (default=" + MetamorphStore.PARALLEL_SEARCH_THRESHOLD + ")]\n" +
+      "     [-distanceKernel <scalar | vector> (default=scalar)]\n" +
+      "     [-simulations <quantity> (default=1)]\n" +
+      "     [-metamorphSearch <exact | approximate> (default=exact)]\n" +
+      "     [-lshParameters <tables> <hashes> <bucket width> (default=" + MetamorphIndex.DEFAULT_NUM_TABLES + " " + MetamorphIndex.DEFAULT_NUM_HASHES + " " + MetamorphIndex.DEFAULT_BUCKET_WIDTH + ")]\n" +
+      "     [-auditApproximateSearch <probability> (default=" + Pufferfish.AUDIT_APPROXIMATE_SEARCH_PROBABILITY + ")]\n" +
+      "     [-metamorphCapacity <quantity> (default=" + Pufferfish.METAMORPH_CAPACITY + ")]\n" +
+      "     [-metamorphEviction <leastRecentlyMatched | leastFrequentlyMatched | mergeNearestDuplicate> (default=leastFrequentlyMatched)]\n" +
+      "     [-decisionTreeMaxDepth <depth> (default=" + Pufferfish.DECISION_TREE_MAX_DEPTH + ")]\n" +
+      "     [-auditDecisionTree <probability> (default=" + Pufferfish.AUDIT_DECISION_TREE_PROBABILITY + ")]\n" +
+      "     [-autopilot <live | tape> (default=live)]\n" +
+      "     [-verifyAutopilotTape]\n" +
+      "     [-loadAutopilotTape <file name>]\n" +
+      "     [-saveAutopilotTape <file name>]\n" +
+      "     [-untilComplete <autopilot | <nest image file name>>]\n" +
+      "     [-replaySteps <steps>]\n" +
+      "     [-writeNestQuality <file name>]\n" +
+      "     [-compactMetamorphs <centroids> (product quantize loaded metamorphs with up to " + MetamorphQuantizer.MAX_CENTROIDS + " centroids per codebook)]\n" +
       "     [-save <file name>]\n" +
+      "     [-saveFormat <compressed | packed | legacy>]\n" +
+      "     [-autosave <file name>]\n" +
+      "     [-autosaveSteps <steps>]\n" +
+      "     [-autosaveSeconds <seconds>]\n" +
+      "     [-autosaveKeep <quantity>]\n" +
       "     [-print (print parameters and properties)]\n" +
       "     [-writeMetamorphDataset <file name> (write metamorph dataset file, default=" + Pufferfish.DATASET_FILE_NAME + ")]\n" +
+      "     [-loadNetwork <file name> (load neuralNetwork driver weights)]\n" +
+      "     [-networkHiddenUnits <quantity> (default=" + Pufferfish.NETWORK_HIDDEN_UNITS + ")]\n" +
+      "     [-networkTrainingEpochs <quantity> (default=" + Pufferfish.NETWORK_TRAINING_EPOCHS + ")]\n" +
+      "     [-saveNetwork <file name>]\n" +
       "  Version:\n" +
       "    java morphognosis.pufferfish.Main -version\n" +
       "Exit codes:\n" +
@@ -104,8 +165,8 @@ public class Main
    public int          randomSeed;
    public SecureRandom random;
 
-   // Previous response.
-   public static int previousResponse = Pufferfish.WAIT;
+   // Autosave.
+   public Autosave autosave;
 
    // Constructor.
    public Main(int randomSeed)
@@ -154,7 +215,6 @@ public class Main
       {
          display.close();
       }
-      previousResponse = Pufferfish.WAIT;
    }
 
 
@@ -184,12 +244,12 @@ public class Main
       {
          throw new IOException("Cannot open output file " + filename + ":" + e.getMessage());
       }
-      save(writer);
+      SaveFile.save(writer, nest, pufferfish, SaveFile.FORMAT);
       writer.close();
    }
 
 
-   // Save.
+   // Save in legacy format.
    public void save(DataOutputStream writer) throws IOException
    {
       // Save cells.
@@ -202,6 +262,14 @@ public class Main
 
    // Load from file.
    public void load(String filename) throws IOException
+   {
+      load(filename, true);
+   }
+
+
+   // Load from file, setting the nest properties and equivalent morphognostic distance,
+   // or checking that they are the current ones.
+   public void load(String filename, boolean setProperties) throws IOException
    {
       FileInputStream input;
 
@@ -213,21 +281,39 @@ public class Main
       {
          throw new IOException("Cannot open input file " + filename + ":" + e.getMessage());
       }
-      load(input);
+      load(new BufferedInputStream(input), setProperties);
       input.close();
    }
 
 
-   // Load.
-   public void load(FileInputStream input) throws IOException
+   // Load save file or legacy file.
+   public void load(InputStream input) throws IOException
+   {
+      load(input, true);
+   }
+
+
+   // Load save file or legacy file, setting the nest properties and equivalent
+   // morphognostic distance, or checking that they are the current ones.
+   public void load(InputStream input, boolean setProperties) throws IOException
    {
+      if (!input.markSupported())
+      {
+         input = new BufferedInputStream(input);
+      }
+      if (SaveFile.isSaveFile(input))
+      {
+         SaveFile.load(new DataInputStream(input), this, setProperties);
+         return;
+      }
+
       // Load cells.
       nest = new Nest();
-      nest.load(input);
+      nest.load(input, setProperties);
 
       // Load pufferfish.
       pufferfish = new Pufferfish(nest, randomSeed);
-      pufferfish.load(input);
+      pufferfish.load(input, setProperties);
    }
 
 
@@ -252,6 +338,213 @@ public class Main
    }
 
 
+   // Train then replay phase.
+   public static class Phase
+   {
+      public int   steps;
+      public float seconds;
+      public int   metamorphs;
+      public int   mismatches;
+      public int   error;
+      public float structureMatchRate;
+
+      // Report.
+      public void report(String name)
+      {
+         System.out.println(name + ": " + steps + " steps in " + seconds + " seconds, " +
+                            metamorphs + " metamorphs, " + mismatches + " cells differing from autopilot nest, error=" +
+                            error + ", center and spoke match rate=" + structureMatchRate);
+      }
+   }
+
+   // Train with the autopilot, then restore the nest and replay with the pufferfish
+   // driver, keeping the metamorphs learned in memory. While the nest is restored,
+   // what the driver searches is built from the new metamorphs on another thread.
+   // Both phases are measured against the nest finished by the autopilot.
+   // Return the train and replay phases.
+   public Phase[] trainThenReplay(int trainSteps, int replaySteps) throws Exception
+   {
+      Phase[] phases = new Phase[] { new Phase(), new Phase() };
+      int     driver = pufferfish.driver;
+
+      if (nest.completion == null)
+      {
+         nest.completion = NestCompletion.forAutopilot(nest, pufferfish);
+      }
+
+      // Train.
+      long start = System.nanoTime();
+      pufferfish.driver = Pufferfish.DRIVER_TYPE.AUTOPILOT.getValue();
+      run(trainSteps);
+      measure(phases[0], trainSteps, start);
+
+      // Restore nest while preparing driver.
+      start = System.nanoTime();
+      pufferfish.metamorphTree = null;
+      Exception[] error   = new Exception[1];
+      Thread      prepare = new Thread(() ->
+                                       {
+                                          try
+                                          {
+                                             pufferfish.prepareDriver(driver);
+                                          }
+                                          catch (Exception e)
+                                          {
+                                             error[0] = e;
+                                          }
+                                       }
+                                       );
+      prepare.start();
+      reset();
+      prepare.join();
+      if (error[0] != null) { throw error[0]; }
+
+      // Replay.
+      pufferfish.driver = driver;
+      run(replaySteps);
+      measure(phases[1], replaySteps, start);
+      return(phases);
+   }
+
+
+   // Measure phase.
+   void measure(Phase phase, int steps, long start)
+   {
+      phase.steps              = steps;
+      phase.seconds            = (float)(System.nanoTime() - start) / 1.0e9f;
+      phase.metamorphs         = pufferfish.metamorphs.size();
+      phase.mismatches         = nest.completion.getMismatches();
+      phase.error              = nest.completion.getError();
+      phase.structureMatchRate = nest.completion.getStructureMatchRate();
+   }
+
+
+   // Run until nest is complete, for at most steps if not -1.
+   // Return steps to completion, or -1 if not complete.
+   public int runUntilComplete(int steps)
+   {
+      random.setSeed(randomSeed);
+      for (int i = 0; ; i++)
+      {
+         if (nest.completion.isComplete())
+         {
+            return(i);
+         }
+         if (i == steps)
+         {
+            return(-1);
+         }
+         stepPufferfish();
+      }
+   }
+
+
+   // Run simulations in lockstep on their own threads: this one, loaded, and others
+   // copied from it with successive random seeds. The loaded metamorphs are made
+   // read-only and shared by all simulations, each learning into its own overlay.
+   // The metamorphRules driver of each searches the shared metamorphs in batches.
+   public MetamorphBatchSearch runSimulations(int numSimulations, int steps) throws Exception
+   {
+      MetamorphStore shared = pufferfish.metamorphs;
+
+      shared.setReadOnly();
+      Main[] simulations = copySimulations(numSimulations);
+      MetamorphBatchSearch batchSearch = new MetamorphBatchSearch(shared, numSimulations);
+      for (Main simulation : simulations)
+      {
+         simulation.pufferfish.shareMetamorphs(shared);
+         simulation.pufferfish.metamorphBatchSearch = batchSearch;
+      }
+      runSimulations(simulations, steps, batchSearch);
+      for (Main simulation : simulations)
+      {
+         simulation.pufferfish.metamorphBatchSearch = null;
+      }
+      return(batchSearch);
+   }
+
+
+   // Run learning simulations in parallel on their own threads: this one and others
+   // copied from it with successive random seeds, all learning concurrently into
+   // the metamorphs of this one without duplicating equivalent metamorphs.
+   public void runLearningSimulations(int numSimulations, int steps) throws Exception
+   {
+      Main[] simulations = copySimulations(numSimulations);
+
+      for (Main simulation : simulations)
+      {
+         simulation.pufferfish.metamorphs = pufferfish.metamorphs;
+      }
+      runSimulations(simulations, steps, null);
+   }
+
+
+   // Copy simulations from this one, without its metamorphs, with successive random
+   // seeds. The first is this one.
+   Main[] copySimulations(int numSimulations) throws IOException
+   {
+      Main[] simulations = new Main[numSimulations];
+
+      MetamorphStore metamorphs = pufferfish.metamorphs;
+      pufferfish.metamorphs = new MetamorphStore();
+      ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+      save(new DataOutputStream(snapshot));
+      pufferfish.metamorphs = metamorphs;
+      simulations[0]        = this;
+      for (int i = 1; i < numSimulations; i++)
+      {
+         simulations[i] = new Main(randomSeed + i);
+         simulations[i].load(new ByteArrayInputStream(snapshot.toByteArray()));
+         simulations[i].reset();
+         simulations[i].pufferfish.driver = pufferfish.driver;
+      }
+      return(simulations);
+   }
+
+
+   // Run simulations on their own threads, leaving the batch search, if any, as each finishes.
+   static void runSimulations(Main[] simulations, int steps, MetamorphBatchSearch batchSearch) throws Exception
+   {
+      int         numSimulations = simulations.length;
+      Thread[]    threads        = new Thread[numSimulations];
+      Exception[] errors         = new Exception[numSimulations];
+
+      for (int i = 0; i < numSimulations; i++)
+      {
+         final Main simulation = simulations[i];
+         final int  index      = i;
+         threads[i] = new Thread(() ->
+                                 {
+                                    try
+                                    {
+                                       simulation.run(steps);
+                                    }
+                                    catch (Exception e)
+                                    {
+                                       errors[index] = e;
+                                    }
+                                    finally
+                                    {
+                                       if (batchSearch != null)
+                                       {
+                                          batchSearch.leave();
+                                       }
+                                    }
+                                 }
+                                 );
+         threads[i].start();
+      }
+      for (int i = 0; i < numSimulations; i++)
+      {
+         threads[i].join();
+      }
+      for (Exception e : errors)
+      {
+         if (e != null) { throw e; }
+      }
+   }
+
+
    // Step pufferfish.
    public void stepPufferfish()
    {
@@ -365,10 +658,10 @@ public class Main
             sensors[i] = (float)nest.cells[x][y][Nest.ELEVATION_CELL_INDEX];
          }
       }
-      sensors[Pufferfish.PREVIOUS_RESPONSE_INDEX] = (float)previousResponse;
+      sensors[Pufferfish.PREVIOUS_RESPONSE_INDEX] = (float)pufferfish.previousResponse;
 
       // Cycle pufferfish.
-      previousResponse = pufferfish.response;
+      pufferfish.previousResponse = pufferfish.response;
       int response = pufferfish.cycle(sensors);
 
       // Process response.
@@ -397,13 +690,25 @@ public class Main
          break;
 
       case Pufferfish.RAISE:
-         nest.cells[pufferfish.x][pufferfish.y][Nest.ELEVATION_CELL_INDEX] = Nest.MAX_ELEVATION;
+         nest.setElevation(pufferfish.x, pufferfish.y, Nest.MAX_ELEVATION);
          break;
 
       case Pufferfish.LOWER:
-         nest.cells[pufferfish.x][pufferfish.y][Nest.ELEVATION_CELL_INDEX] = 2;
+         nest.setElevation(pufferfish.x, pufferfish.y, 2);
          break;
       }
+
+      // Record nest quality.
+      if (nest.completion != null)
+      {
+         nest.completion.record();
+      }
+
+      // Autosave.
+      if (autosave != null)
+      {
+         autosave.step(this);
+      }
    }
 
 
@@ -464,7 +769,20 @@ public class Main
       int     driver            = Pufferfish.DRIVER_TYPE.AUTOPILOT.getValue();
       int     randomSeed        = DEFAULT_RANDOM_SEED;
       String  loadfile          = null;
+      int     compactCentroids  = -1;
+      int     simulations       = 1;
       String  savefile          = null;
+      String  networkLoadfile   = null;
+      String  networkSavefile   = null;
+      String  tapeLoadfile      = null;
+      String  tapeSavefile      = null;
+      String  completionTarget  = null;
+      String  qualityFile       = null;
+      int     replaySteps       = -1;
+      String  autosaveFile      = null;
+      int     autosaveSteps     = -1;
+      int     autosaveSeconds   = -1;
+      int     autosaveKeep      = -1;
       boolean display           = false;
       boolean gotParm           = false;
       boolean printParm         = false;
@@ -575,6 +893,14 @@ public class Main
             {
                driver = Pufferfish.DRIVER_TYPE.AUTOPILOT.getValue();
             }
+            else if (args[i].equals("decisionTree"))
+            {
+               driver = Pufferfish.DRIVER_TYPE.DECISION_TREE.getValue();
+            }
+            else if (args[i].equals("neuralNetwork"))
+            {
+               driver = Pufferfish.DRIVER_TYPE.NEURAL_NETWORK.getValue();
+            }
             else
             {
                System.err.println("Invalid driver option");
@@ -913,118 +1239,914 @@ public class Main
             }
             continue;
          }
-         if (args[i].equals("-randomSeed"))
+         if (args[i].equals("-morphognosticUpdate"))
          {
             i++;
             if (i >= args.length)
             {
-               System.err.println("Invalid randomSeed option");
+               System.err.println("Invalid morphognosticUpdate option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if (args[i].equals("incremental"))
+            {
+               Pufferfish.INCREMENTAL_MORPHOGNOSTIC_UPDATE = true;
+            }
+            else if (args[i].equals("full"))
+            {
+               Pufferfish.INCREMENTAL_MORPHOGNOSTIC_UPDATE = false;
+            }
+            else
+            {
+               System.err.println("Invalid morphognosticUpdate option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-verifyMorphognosticUpdate"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid verifyMorphognosticUpdate option");
                System.err.println(Usage);
                System.exit(1);
             }
             try
             {
-               randomSeed = Integer.parseInt(args[i]);
+               Pufferfish.VERIFY_MORPHOGNOSTIC_UPDATE_PROBABILITY = Float.parseFloat(args[i]);
             }
             catch (NumberFormatException e) {
-               System.err.println("Invalid randomSeed option");
+               System.err.println("Invalid verifyMorphognosticUpdate option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if ((Pufferfish.VERIFY_MORPHOGNOSTIC_UPDATE_PROBABILITY < 0.0f) ||
+                (Pufferfish.VERIFY_MORPHOGNOSTIC_UPDATE_PROBABILITY > 1.0f))
+            {
+               System.err.println("Invalid verifyMorphognosticUpdate option");
                System.err.println(Usage);
                System.exit(1);
             }
             continue;
          }
-         if (args[i].equals("-load"))
+         if (args[i].equals("-parallelSearchThreshold"))
          {
             i++;
             if (i >= args.length)
             {
-               System.err.println("Invalid load option");
+               System.err.println("Invalid parallelSearchThreshold option");
                System.err.println(Usage);
                System.exit(1);
             }
-            if (loadfile == null)
+            try
             {
-               loadfile = args[i];
+               MetamorphStore.PARALLEL_SEARCH_THRESHOLD = Integer.parseInt(args[i]);
             }
-            else
+            catch (NumberFormatException e) {
+               System.err.println("Invalid parallelSearchThreshold option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if (MetamorphStore.PARALLEL_SEARCH_THRESHOLD < 0)
             {
-               System.err.println("Duplicate load option");
+               System.err.println("Invalid parallelSearchThreshold option");
                System.err.println(Usage);
                System.exit(1);
             }
             continue;
          }
-         if (args[i].equals("-save"))
+         if (args[i].equals("-distanceKernel"))
          {
             i++;
             if (i >= args.length)
             {
-               System.err.println("Invalid save option");
+               System.err.println("Invalid distanceKernel option");
                System.err.println(Usage);
                System.exit(1);
             }
-            if (savefile == null)
+            if (args[i].equals("scalar"))
             {
-               savefile = args[i];
+               MorphognosticDistance.kernel = MorphognosticDistance.newKernel(false);
+            }
+            else if (args[i].equals("vector"))
+            {
+               MorphognosticDistance.kernel = MorphognosticDistance.newKernel(true);
+               if (!MorphognosticDistance.isVectorKernel())
+               {
+                  System.err.println("Vector distance kernel not available: requires " +
+                                     MorphognosticDistance.VECTOR_KERNEL_CLASS + " and the " +
+                                     MorphognosticDistance.VECTOR_MODULE + " module");
+                  System.exit(1);
+               }
             }
             else
             {
-               System.err.println("Duplicate save option");
+               System.err.println("Invalid distanceKernel option");
                System.err.println(Usage);
                System.exit(1);
             }
             continue;
          }
-         if (args[i].equals("-print"))
+         if (args[i].equals("-metamorphSearch"))
          {
-            printParm = true;
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid metamorphSearch option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if (args[i].equals("exact"))
+            {
+               Pufferfish.APPROXIMATE_METAMORPH_SEARCH = false;
+            }
+            else if (args[i].equals("approximate"))
+            {
+               Pufferfish.APPROXIMATE_METAMORPH_SEARCH = true;
+            }
+            else
+            {
+               System.err.println("Invalid metamorphSearch option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
             continue;
          }
-         if (args[i].equals("-writeMetamorphDataset"))
+         if (args[i].equals("-lshParameters"))
          {
             i++;
             if (i >= args.length)
             {
-               System.err.println("Invalid writeMetamorphDataset option");
+               System.err.println("Invalid lshParameters option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            try
+            {
+               Pufferfish.LSH_NUM_TABLES = Integer.parseInt(args[i]);
+            }
+            catch (NumberFormatException e) {
+               System.err.println("Invalid LSH tables");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if (Pufferfish.LSH_NUM_TABLES <= 0)
+            {
+               System.err.println("Invalid LSH tables");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid lshParameters option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            try
+            {
+               Pufferfish.LSH_NUM_HASHES = Integer.parseInt(args[i]);
+            }
+            catch (NumberFormatException e) {
+               System.err.println("Invalid LSH hashes");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if (Pufferfish.LSH_NUM_HASHES <= 0)
+            {
+               System.err.println("Invalid LSH hashes");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid lshParameters option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            try
+            {
+               Pufferfish.LSH_BUCKET_WIDTH = Float.parseFloat(args[i]);
+            }
+            catch (NumberFormatException e) {
+               System.err.println("Invalid LSH bucket width");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if (Pufferfish.LSH_BUCKET_WIDTH <= 0.0f)
+            {
+               System.err.println("Invalid LSH bucket width");
                System.err.println(Usage);
                System.exit(1);
             }
-            Pufferfish.DATASET_FILE_NAME = args[i];
-            gotDatasetParm = true;
             continue;
          }
-         if (args[i].equals("-help") || args[i].equals("-h") || args[i].equals("-?"))
+         if (args[i].equals("-auditApproximateSearch"))
          {
-            System.out.println(Usage);
-            System.exit(0);
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid auditApproximateSearch option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            try
+            {
+               Pufferfish.AUDIT_APPROXIMATE_SEARCH_PROBABILITY = Float.parseFloat(args[i]);
+            }
+            catch (NumberFormatException e) {
+               System.err.println("Invalid auditApproximateSearch option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if ((Pufferfish.AUDIT_APPROXIMATE_SEARCH_PROBABILITY < 0.0f) ||
+                (Pufferfish.AUDIT_APPROXIMATE_SEARCH_PROBABILITY > 1.0f))
+            {
+               System.err.println("Invalid auditApproximateSearch option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
          }
-         if (args[i].equals("-version"))
+         if (args[i].equals("-metamorphCapacity"))
          {
-            System.out.println("Pufferfish version = " + VERSION);
-            System.out.println("Morphognosis version = " + Morphognosis.VERSION);
-            System.exit(0);
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid metamorphCapacity option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            try
+            {
+               Pufferfish.METAMORPH_CAPACITY = Integer.parseInt(args[i]);
+            }
+            catch (NumberFormatException e) {
+               System.err.println("Invalid metamorphCapacity option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if (Pufferfish.METAMORPH_CAPACITY < 0)
+            {
+               System.err.println("Invalid metamorphCapacity option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
          }
-         System.err.println("Invalid option: " + args[i]);
-         System.err.println(Usage);
-         System.exit(1);
-      }
-
-      // Check options.
-      if ((steps != -1) && display)
-      {
-         System.err.println(Usage);
-         System.exit(1);
-      }
-      else if ((steps == -1) && !display)
-      {
-         display = true;
-      }
-      if (!display)
-      {
-         if (driver == Pufferfish.DRIVER_TYPE.MANUAL.getValue())
+         if (args[i].equals("-metamorphEviction"))
          {
-            System.err.println("Cannot run manually without display");
-            System.err.println(Usage);
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid metamorphEviction option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if (args[i].equals("leastRecentlyMatched"))
+            {
+               Pufferfish.METAMORPH_EVICTION_POLICY = MetamorphStore.EVICTION_POLICY.LEAST_RECENTLY_MATCHED;
+            }
+            else if (args[i].equals("leastFrequentlyMatched"))
+            {
+               Pufferfish.METAMORPH_EVICTION_POLICY = MetamorphStore.EVICTION_POLICY.LEAST_FREQUENTLY_MATCHED;
+            }
+            else if (args[i].equals("mergeNearestDuplicate"))
+            {
+               Pufferfish.METAMORPH_EVICTION_POLICY = MetamorphStore.EVICTION_POLICY.MERGE_NEAREST_DUPLICATE;
+            }
+            else
+            {
+               System.err.println("Invalid metamorphEviction option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-decisionTreeMaxDepth"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid decisionTreeMaxDepth option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            try
+            {
+               Pufferfish.DECISION_TREE_MAX_DEPTH = Integer.parseInt(args[i]);
+            }
+            catch (NumberFormatException e) {
+               System.err.println("Invalid decisionTreeMaxDepth option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if (Pufferfish.DECISION_TREE_MAX_DEPTH < 0)
+            {
+               System.err.println("Invalid decisionTreeMaxDepth option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-auditDecisionTree"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid auditDecisionTree option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            try
+            {
+               Pufferfish.AUDIT_DECISION_TREE_PROBABILITY = Float.parseFloat(args[i]);
+            }
+            catch (NumberFormatException e) {
+               System.err.println("Invalid auditDecisionTree option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if ((Pufferfish.AUDIT_DECISION_TREE_PROBABILITY < 0.0f) ||
+                (Pufferfish.AUDIT_DECISION_TREE_PROBABILITY > 1.0f))
+            {
+               System.err.println("Invalid auditDecisionTree option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-simulations"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid simulations option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            try
+            {
+               simulations = Integer.parseInt(args[i]);
+            }
+            catch (NumberFormatException e) {
+               System.err.println("Invalid simulations option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if (simulations <= 0)
+            {
+               System.err.println("Invalid simulations option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-compactMetamorphs"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid compactMetamorphs option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            try
+            {
+               compactCentroids = Integer.parseInt(args[i]);
+            }
+            catch (NumberFormatException e) {
+               System.err.println("Invalid compactMetamorphs option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if ((compactCentroids < 1) || (compactCentroids > MetamorphQuantizer.MAX_CENTROIDS))
+            {
+               System.err.println("Invalid compactMetamorphs option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-randomSeed"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid randomSeed option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            try
+            {
+               randomSeed = Integer.parseInt(args[i]);
+            }
+            catch (NumberFormatException e) {
+               System.err.println("Invalid randomSeed option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-load"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid load option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if (loadfile == null)
+            {
+               loadfile = args[i];
+            }
+            else
+            {
+               System.err.println("Duplicate load option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-save"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid save option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if (savefile == null)
+            {
+               savefile = args[i];
+            }
+            else
+            {
+               System.err.println("Duplicate save option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-autosave"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid autosave option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if (autosaveFile == null)
+            {
+               autosaveFile = args[i];
+            }
+            else
+            {
+               System.err.println("Duplicate autosave option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-autosaveSteps"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid autosaveSteps option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            try
+            {
+               autosaveSteps = Integer.parseInt(args[i]);
+            }
+            catch (NumberFormatException e) {
+               System.err.println("Invalid autosaveSteps option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if (autosaveSteps <= 0)
+            {
+               System.err.println("Invalid autosaveSteps option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-autosaveSeconds"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid autosaveSeconds option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            try
+            {
+               autosaveSeconds = Integer.parseInt(args[i]);
+            }
+            catch (NumberFormatException e) {
+               System.err.println("Invalid autosaveSeconds option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if (autosaveSeconds <= 0)
+            {
+               System.err.println("Invalid autosaveSeconds option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-autosaveKeep"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid autosaveKeep option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            try
+            {
+               autosaveKeep = Integer.parseInt(args[i]);
+            }
+            catch (NumberFormatException e) {
+               System.err.println("Invalid autosaveKeep option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if (autosaveKeep <= 0)
+            {
+               System.err.println("Invalid autosaveKeep option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-saveFormat"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid saveFormat option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if (args[i].equals("compressed"))
+            {
+               SaveFile.FORMAT = SaveFile.COMPRESSED_FORMAT;
+            }
+            else if (args[i].equals("packed"))
+            {
+               SaveFile.FORMAT = SaveFile.PACKED_FORMAT;
+            }
+            else if (args[i].equals("legacy"))
+            {
+               SaveFile.FORMAT = SaveFile.LEGACY_FORMAT;
+            }
+            else
+            {
+               System.err.println("Invalid saveFormat option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-autopilot"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid autopilot option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if (args[i].equals("live"))
+            {
+               Pufferfish.AUTOPILOT_TAPE = false;
+            }
+            else if (args[i].equals("tape"))
+            {
+               Pufferfish.AUTOPILOT_TAPE = true;
+            }
+            else
+            {
+               System.err.println("Invalid autopilot option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-verifyAutopilotTape"))
+         {
+            Pufferfish.VERIFY_AUTOPILOT_TAPE = true;
+            continue;
+         }
+         if (args[i].equals("-loadAutopilotTape"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid loadAutopilotTape option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if (tapeLoadfile == null)
+            {
+               tapeLoadfile = args[i];
+            }
+            else
+            {
+               System.err.println("Duplicate loadAutopilotTape option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-saveAutopilotTape"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid saveAutopilotTape option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if (tapeSavefile == null)
+            {
+               tapeSavefile = args[i];
+            }
+            else
+            {
+               System.err.println("Duplicate saveAutopilotTape option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-untilComplete"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid untilComplete option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if (completionTarget == null)
+            {
+               completionTarget = args[i];
+            }
+            else
+            {
+               System.err.println("Duplicate untilComplete option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-replaySteps"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid replaySteps option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            try
+            {
+               replaySteps = Integer.parseInt(args[i]);
+            }
+            catch (NumberFormatException e) {
+               System.err.println("Invalid replaySteps option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if (replaySteps < 0)
+            {
+               System.err.println("Invalid replaySteps option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-writeNestQuality"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid writeNestQuality option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if (qualityFile == null)
+            {
+               qualityFile = args[i];
+            }
+            else
+            {
+               System.err.println("Duplicate writeNestQuality option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-loadNetwork"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid loadNetwork option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if (networkLoadfile == null)
+            {
+               networkLoadfile = args[i];
+            }
+            else
+            {
+               System.err.println("Duplicate loadNetwork option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-saveNetwork"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid saveNetwork option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if (networkSavefile == null)
+            {
+               networkSavefile = args[i];
+            }
+            else
+            {
+               System.err.println("Duplicate saveNetwork option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-networkHiddenUnits"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid networkHiddenUnits option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            try
+            {
+               Pufferfish.NETWORK_HIDDEN_UNITS = Integer.parseInt(args[i]);
+            }
+            catch (NumberFormatException e) {
+               System.err.println("Invalid networkHiddenUnits option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if (Pufferfish.NETWORK_HIDDEN_UNITS < 0)
+            {
+               System.err.println("Invalid networkHiddenUnits option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-networkTrainingEpochs"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid networkTrainingEpochs option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            try
+            {
+               Pufferfish.NETWORK_TRAINING_EPOCHS = Integer.parseInt(args[i]);
+            }
+            catch (NumberFormatException e) {
+               System.err.println("Invalid networkTrainingEpochs option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if (Pufferfish.NETWORK_TRAINING_EPOCHS < 0)
+            {
+               System.err.println("Invalid networkTrainingEpochs option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-print"))
+         {
+            printParm = true;
+            continue;
+         }
+         if (args[i].equals("-writeMetamorphDataset"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid writeMetamorphDataset option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            Pufferfish.DATASET_FILE_NAME = args[i];
+            gotDatasetParm = true;
+            continue;
+         }
+         if (args[i].equals("-help") || args[i].equals("-h") || args[i].equals("-?"))
+         {
+            System.out.println(Usage);
+            System.exit(0);
+         }
+         if (args[i].equals("-version"))
+         {
+            System.out.println("Pufferfish version = " + VERSION);
+            System.out.println("Morphognosis version = " + Morphognosis.VERSION);
+            System.exit(0);
+         }
+         System.err.println("Invalid option: " + args[i]);
+         System.err.println(Usage);
+         System.exit(1);
+      }
+
+      // Check options.
+      if ((steps != -1) && display)
+      {
+         System.err.println(Usage);
+         System.exit(1);
+      }
+      else if ((steps == -1) && !display && (completionTarget == null))
+      {
+         display = true;
+      }
+      if ((completionTarget != null) && (display || (simulations > 1)))
+      {
+         System.err.println("Cannot run until complete with display or multiple simulations");
+         System.err.println(Usage);
+         System.exit(1);
+      }
+      if ((replaySteps != -1) &&
+          (display || (simulations > 1) || (completionTarget != null) ||
+           (driver == Pufferfish.DRIVER_TYPE.AUTOPILOT.getValue()) ||
+           (driver == Pufferfish.DRIVER_TYPE.MANUAL.getValue())))
+      {
+         System.err.println("Replay requires steps and metamorphRules, decisionTree or neuralNetwork driver, without untilComplete or multiple simulations");
+         System.err.println(Usage);
+         System.exit(1);
+      }
+      if ((qualityFile != null) && (simulations > 1))
+      {
+         System.err.println("Cannot write nest quality of multiple simulations");
+         System.err.println(Usage);
+         System.exit(1);
+      }
+      if (autosaveFile != null)
+      {
+         if ((autosaveSteps == -1) && (autosaveSeconds == -1))
+         {
+            System.err.println("Autosave requires autosaveSteps or autosaveSeconds");
+            System.err.println(Usage);
+            System.exit(1);
+         }
+         if (simulations > 1)
+         {
+            System.err.println("Cannot autosave multiple simulations");
+            System.err.println(Usage);
+            System.exit(1);
+         }
+      }
+      else if ((autosaveSteps != -1) || (autosaveSeconds != -1) || (autosaveKeep != -1))
+      {
+         System.err.println("Autosave options require autosave file");
+         System.err.println(Usage);
+         System.exit(1);
+      }
+      if (!display)
+      {
+         if (driver == Pufferfish.DRIVER_TYPE.MANUAL.getValue())
+         {
+            System.err.println("Cannot run manually without display");
+            System.err.println(Usage);
             System.exit(1);
          }
       }
@@ -1033,14 +2155,56 @@ public class Main
          System.err.println(Usage);
          System.exit(1);
       }
+      if ((compactCentroids != -1) && (loadfile == null))
+      {
+         System.err.println("Cannot compact metamorphs without loading them");
+         System.err.println(Usage);
+         System.exit(1);
+      }
+      if (simulations > 1)
+      {
+         if (display || ((driver != Pufferfish.DRIVER_TYPE.AUTOPILOT.getValue()) &&
+                         (driver != Pufferfish.DRIVER_TYPE.METAMORPH_RULES.getValue())))
+         {
+            System.err.println("Multiple simulations require steps and autopilot or metamorphRules driver");
+            System.err.println(Usage);
+            System.exit(1);
+         }
+         if (driver == Pufferfish.DRIVER_TYPE.METAMORPH_RULES.getValue())
+         {
+            if (loadfile == null)
+            {
+               System.err.println("Multiple metamorphRules simulations require loading");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if (savefile != null)
+            {
+               System.err.println("Cannot save multiple metamorphRules simulations");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+         }
+      }
+      if ((tapeLoadfile != null) || Pufferfish.VERIFY_AUTOPILOT_TAPE)
+      {
+         Pufferfish.AUTOPILOT_TAPE = true;
+      }
 
-      // Set look and feel.
-      try {
-         UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
+      // Set look and feel for display, otherwise run headless without loading the toolkit.
+      if (display)
+      {
+         try {
+            UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
+         }
+         catch (Exception e)
+         {
+            System.err.println("Warning: cannot set look and feel");
+         }
       }
-      catch (Exception e)
+      else
       {
-         System.err.println("Warning: cannot set look and feel");
+         System.setProperty("java.awt.headless", "true");
       }
 
       // Create world.
@@ -1075,6 +2239,33 @@ public class Main
          }
       }
 
+      // Compact metamorphs?
+      if (compactCentroids != -1)
+      {
+         SecureRandom compactRandom = new SecureRandom();
+         compactRandom.setSeed(randomSeed);
+         main.pufferfish.metamorphs.compact(compactCentroids, compactRandom);
+      }
+
+      // Load network?
+      if (networkLoadfile != null)
+      {
+         try
+         {
+            main.pufferfish.metamorphNetwork = MetamorphNetwork.load(networkLoadfile);
+         }
+         catch (Exception e)
+         {
+            System.err.println("Cannot load network from file " + networkLoadfile + ": " + e.getMessage());
+            System.exit(1);
+         }
+         if (!main.pufferfish.isNetworkCompatible(main.pufferfish.metamorphNetwork))
+         {
+            System.err.println("Network in file " + networkLoadfile + " does not match morphognostic inputs and responses");
+            System.exit(1);
+         }
+      }
+
       // Print parameters and properties?
       if (printParm)
       {
@@ -1096,8 +2287,199 @@ public class Main
       // Set pufferfish driver.
       main.pufferfish.driver = driver;
 
+      // Load autopilot tape?
+      if (tapeLoadfile != null)
+      {
+         try
+         {
+            main.pufferfish.autopilotTape = AutopilotTape.load(tapeLoadfile);
+         }
+         catch (Exception e)
+         {
+            System.err.println("Cannot load autopilot tape from file " + tapeLoadfile + ": " + e.getMessage());
+            System.exit(1);
+         }
+         if (!main.pufferfish.autopilotTape.isFor(main.pufferfish))
+         {
+            System.err.println("Autopilot tape in file " + tapeLoadfile + " does not match nest and pufferfish position");
+            System.exit(1);
+         }
+      }
+
+      // Save autopilot tape?
+      if (tapeSavefile != null)
+      {
+         if (main.pufferfish.autopilotTape == null)
+         {
+            main.pufferfish.autopilotTape = main.pufferfish.compileAutopilotTape();
+         }
+         try
+         {
+            main.pufferfish.autopilotTape.save(tapeSavefile);
+         }
+         catch (Exception e)
+         {
+            System.err.println("Cannot save autopilot tape to file " + tapeSavefile + ": " + e.getMessage());
+            System.exit(1);
+         }
+      }
+
+      // Detect nest completion and quality?
+      if ((completionTarget != null) || ((qualityFile != null) && (replaySteps == -1)))
+      {
+         String target = (completionTarget != null) ? completionTarget : NEST_IMAGE_FILE;
+         if (target.equals("autopilot"))
+         {
+            main.nest.completion = NestCompletion.forAutopilot(main.nest, main.pufferfish);
+         }
+         else
+         {
+            try
+            {
+               main.nest.completion = NestCompletion.forImage(main.nest, target);
+            }
+            catch (Exception e)
+            {
+               System.err.println(e.getMessage());
+               System.exit(1);
+            }
+         }
+      }
+
+      // Autosave?
+      if (autosaveFile != null)
+      {
+         main.autosave = new Autosave(autosaveFile, Math.max(autosaveSteps, 0),
+                                      Math.max(autosaveSeconds, 0),
+                                      (autosaveKeep != -1) ? autosaveKeep : Autosave.DEFAULT_KEEP);
+      }
+
       // Run.
-      main.run(steps);
+      if (replaySteps != -1)
+      {
+         try
+         {
+            Phase[] phases = main.trainThenReplay(steps, replaySteps);
+            phases[0].report("Train");
+            phases[1].report("Replay");
+         }
+         catch (Exception e)
+         {
+            System.err.println("Cannot train and replay: " + e.getMessage());
+            System.exit(1);
+         }
+      }
+      else if (completionTarget != null)
+      {
+         int completionSteps = main.runUntilComplete(steps);
+         if (completionSteps != -1)
+         {
+            System.out.println("Nest complete in " + completionSteps + " steps");
+         }
+         else
+         {
+            System.out.println("Nest not complete in " + steps + " steps: " +
+                               main.nest.completion.getMismatches() + " cells differing");
+         }
+      }
+      else if (simulations > 1)
+      {
+         try
+         {
+            if (driver == Pufferfish.DRIVER_TYPE.AUTOPILOT.getValue())
+            {
+               main.runLearningSimulations(simulations, steps);
+               System.out.println("Ran " + simulations + " simulations for " + steps + " steps learning " +
+                                  main.pufferfish.metamorphs.size() + " metamorphs");
+            }
+            else
+            {
+               MetamorphBatchSearch batchSearch = main.runSimulations(simulations, steps);
+               System.out.println("Ran " + simulations + " simulations for " + steps + " steps with " +
+                                  batchSearch.numBatches + " batch searches");
+            }
+         }
+         catch (Exception e)
+         {
+            System.err.println("Cannot run simulations: " + e.getMessage());
+            System.exit(1);
+         }
+      }
+      else
+      {
+         main.run(steps);
+      }
+
+      // Finish autosave.
+      if (main.autosave != null)
+      {
+         main.autosave.close();
+      }
+
+      // Write nest quality.
+      if (qualityFile != null)
+      {
+         try
+         {
+            main.nest.completion.writeSeries(qualityFile);
+         }
+         catch (Exception e)
+         {
+            System.err.println("Cannot write nest quality to file " + qualityFile + ": " + e.getMessage());
+            System.exit(1);
+         }
+      }
+
+      // Report autopilot tape verification.
+      if (Pufferfish.VERIFY_AUTOPILOT_TAPE)
+      {
+         System.out.println("Autopilot tape verification: " +
+                            main.pufferfish.autopilotTapeMismatches + " responses differing from autopilot");
+      }
+
+      // Report incremental morphognostic update verification.
+      if (main.pufferfish.incrementalMorphognostic.verifications > 0)
+      {
+         System.out.println("Incremental morphognostic update verification: " +
+                            main.pufferfish.incrementalMorphognostic.mismatches + " mismatches in " +
+                            main.pufferfish.incrementalMorphognostic.verifications + " verified steps");
+      }
+
+      // Report approximate search audit.
+      if (main.pufferfish.approximateSearchAudits > 0)
+      {
+         System.out.println("Approximate metamorph search audit: " +
+                            main.pufferfish.approximateSearchDisagreements + " responses differing from exact search in " +
+                            main.pufferfish.approximateSearchAudits + " samples");
+      }
+
+      // Report decision tree.
+      if (main.pufferfish.metamorphTree != null)
+      {
+         System.out.println("Metamorph decision tree: " + main.pufferfish.metamorphTree.getNumNodes() + " nodes, depth=" +
+                            main.pufferfish.metamorphTree.getDepth() + ", training agreement=" +
+                            main.pufferfish.metamorphTree.getTrainingAgreement());
+      }
+      if (main.pufferfish.decisionTreeAudits > 0)
+      {
+         System.out.println("Decision tree audit: " +
+                            main.pufferfish.decisionTreeDisagreements + " responses differing from metamorph rules in " +
+                            main.pufferfish.decisionTreeAudits + " samples");
+      }
+
+      // Report network training.
+      if ((main.pufferfish.metamorphNetwork != null) && (networkLoadfile == null))
+      {
+         System.out.println("Metamorph network: training agreement=" + main.pufferfish.networkTrainingAgreement);
+      }
+
+      // Report bounded metamorph store.
+      if (main.pufferfish.metamorphs.getCapacity() > 0)
+      {
+         System.out.println("Metamorph store: " + main.pufferfish.metamorphs.size() + " metamorphs, " +
+                            main.pufferfish.metamorphs.evictions + " evictions, " +
+                            main.pufferfish.metamorphs.merges + " merges");
+      }
 
       // Save?
       if (savefile != null)
@@ -1113,6 +2495,25 @@ public class Main
          }
       }
 
+      // Save network?
+      if (networkSavefile != null)
+      {
+         if (main.pufferfish.metamorphNetwork == null)
+         {
+            main.pufferfish.trainMetamorphNetwork();
+            System.out.println("Metamorph network: training agreement=" + main.pufferfish.networkTrainingAgreement);
+         }
+         try
+         {
+            main.pufferfish.metamorphNetwork.save(networkSavefile);
+         }
+         catch (Exception e)
+         {
+            System.err.println("Cannot save network to file " + networkSavefile + ": " + e.getMessage());
+            System.exit(1);
+         }
+      }
+
       // Write metamorph dataset?
       if (gotDatasetParm)
       {
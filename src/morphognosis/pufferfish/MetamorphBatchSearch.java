@@ -0,0 +1,102 @@
+// For conditions of distribution and use, see copyright notice in Main.java
+
+// Metamorph batch search.
+// Nearest metamorph lookup service for simulations running in lockstep on their
+// own threads against a shared, read-only metamorph store: each simulation's query
+// for a step waits until every active simulation has submitted one, and the batch
+// is then scored in a single pass over the store.
+// Results, including random tie breaking, are those of searching the shared store
+// for each query separately.
+
+package morphognosis.pufferfish;
+
+import java.security.SecureRandom;
+
+public class MetamorphBatchSearch
+{
+   // Shared metamorphs.
+   public MetamorphStore metamorphs;
+
+   // Active simulations.
+   int numActive;
+
+   // Pending batch.
+   MetamorphStore.Query[] queries;
+   SecureRandom[]         randoms;
+   int[]                  results;
+   int                    count;
+   long                   batch;
+
+   // Batches searched.
+   public long numBatches;
+
+   // Constructor.
+   public MetamorphBatchSearch(MetamorphStore metamorphs, int numSimulations)
+   {
+      this.metamorphs = metamorphs;
+      numActive       = numSimulations;
+      queries         = new MetamorphStore.Query[numSimulations];
+      randoms         = new SecureRandom[numSimulations];
+      results         = new int[numSimulations];
+   }
+
+
+   // Find index of nearest metamorph to query, or -1 if the store is empty.
+   // Blocks until the batch including the query is searched.
+   public synchronized int findNearest(MetamorphStore.Query query, SecureRandom random)
+   {
+      int  slot = count++;
+      long b    = batch;
+
+      queries[slot] = query;
+      randoms[slot] = random;
+      if (count == numActive)
+      {
+         searchBatch();
+      }
+      else
+      {
+         while (b == batch)
+         {
+            try
+            {
+               wait();
+            }
+            catch (InterruptedException e)
+            {
+               Thread.currentThread().interrupt();
+               throw new RuntimeException("Metamorph batch search interrupted", e);
+            }
+         }
+      }
+      return(results[slot]);
+   }
+
+
+   // Simulation leaves, searching a batch waiting only on it.
+   public synchronized void leave()
+   {
+      numActive--;
+      if ((count > 0) && (count == numActive))
+      {
+         searchBatch();
+      }
+   }
+
+
+   // Search pending batch and release its simulations.
+   // Results remain valid until every simulation submits its next query.
+   void searchBatch()
+   {
+      metamorphs.findNearest(queries, randoms, count, results);
+      for (int i = 0; i < count; i++)
+      {
+         queries[i] = null;
+         randoms[i] = null;
+      }
+      count = 0;
+      batch++;
+      numBatches++;
+      notifyAll();
+   }
+}
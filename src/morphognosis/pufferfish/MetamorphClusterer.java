@@ -0,0 +1,372 @@
+// For conditions of distribution and use, see copyright notice in Main.java
+
+// Metamorph clusterer.
+// Offline compaction of a saved metamorph table: metamorphs with the same response
+// within a clustering distance of a cluster leader, in any orientation, are merged
+// into a representative metamorph with the mean type densities of the cluster,
+// rectified to the leader's orientation.
+// Agreement of the original and clustered tables with the autopilot is measured
+// by replaying the saved run from its start with the autopilot driver.
+
+package morphognosis.pufferfish;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import morphognosis.Metamorph;
+import morphognosis.Orientation;
+
+public class MetamorphClusterer
+{
+   // Usage.
+   public static final String Usage =
+      "Usage:\n" +
+      "    java morphognosis.pufferfish.MetamorphClusterer\n" +
+      "      -load <file name>\n" +
+      "      -clusterDistance <distance> (greater than the equivalent morphognostic distance of the run to merge metamorphs)\n" +
+      "     [-save <file name> (save with clustered metamorphs)]\n" +
+      "     [-agreementSteps <steps> (autopilot replay steps to measure agreement, default=0)]\n" +
+      "     [-randomSeed <random number seed> (default=" + Main.DEFAULT_RANDOM_SEED + ")]";
+
+   // Cluster of metamorphs with the same response.
+   static class Cluster
+   {
+      Metamorph leader;
+      double[]  densitySums;
+      int       size;
+
+      Cluster(Metamorph leader, float[] vector)
+      {
+         this.leader = leader;
+         densitySums = new double[vector.length];
+         add(vector);
+      }
+
+
+      // Add type densities rectified to leader orientation.
+      void add(float[] vector)
+      {
+         for (int i = 0; i < vector.length; i++)
+         {
+            densitySums[i] += vector[i];
+         }
+         size++;
+      }
+
+
+      // Get representative type densities.
+      float[] getVector()
+      {
+         float[] vector = new float[densitySums.length];
+
+         for (int i = 0; i < vector.length; i++)
+         {
+            vector[i] = (float)(densitySums[i] / size);
+         }
+         return(vector);
+      }
+   }
+
+   // Cluster metamorphs.
+   // Each metamorph joins the first cluster of its response whose leader is within
+   // distance of it, or leads a new cluster.
+   public static MetamorphStore cluster(MetamorphStore metamorphs, float distance)
+   {
+      MetamorphStore clustered = new MetamorphStore();
+      HashMap<Integer, MetamorphStore>     leaders  = new HashMap<Integer, MetamorphStore>();
+      HashMap<Integer, ArrayList<Cluster> > clusters = new HashMap<Integer, ArrayList<Cluster> >();
+      MetamorphStore.Query query   = new MetamorphStore.Query();
+      ArrayList<Cluster>   ordered = new ArrayList<Cluster>();
+
+      for (int m = 0, n = metamorphs.size(); m < n; m++)
+      {
+         Metamorph metamorph = metamorphs.get(m);
+         float[]   vector    = metamorphs.getVector(m);
+         MetamorphStore leaderStore = leaders.get(metamorph.response);
+         if (leaderStore == null)
+         {
+            leaderStore = new MetamorphStore();
+            leaders.put(metamorph.response, leaderStore);
+            clusters.put(metamorph.response, new ArrayList<Cluster>());
+         }
+         query.set(vector, metamorph.morphognostic.orientation, metamorphs.layout);
+         int c = leaderStore.findEquivalent(query, distance);
+         if (c == -1)
+         {
+            leaderStore.add(metamorph, vector);
+            Cluster cluster = new Cluster(metamorph, vector);
+            clusters.get(metamorph.response).add(cluster);
+            ordered.add(cluster);
+         }
+         else
+         {
+            // Add in the orientation nearest the leader.
+            float[] leaderVector = leaderStore.getVector(c);
+            float[] nearest      = null;
+            float   d            = 0.0f;
+            for (int i = 0; i < Orientation.NUM_ORIENTATIONS; i++)
+            {
+               float d2 = MorphognosticDistance.compare(leaderVector, query.rotations[i], query.offsets);
+               if ((nearest == null) || (d2 < d))
+               {
+                  nearest = query.rotations[i];
+                  d       = d2;
+               }
+            }
+            clusters.get(metamorph.response).get(c).add(nearest);
+         }
+      }
+      for (Cluster cluster : ordered)
+      {
+         Metamorph leader = cluster.leader;
+         float[]   vector = cluster.getVector();
+         clustered.add(new Metamorph(new FrozenMorphognostic(metamorphs.layout, leader.morphognostic.orientation, vector),
+                                     leader.response, leader.responseName), vector);
+      }
+      return(clustered);
+   }
+
+
+   // Agreement with autopilot.
+   static class Agreement
+   {
+      MetamorphStore metamorphs;
+      SecureRandom   random;
+      int            agreements;
+      long           searchTime;
+
+      Agreement(MetamorphStore metamorphs, int randomSeed)
+      {
+         this.metamorphs = metamorphs;
+         random          = new SecureRandom();
+         random.setSeed(randomSeed);
+      }
+
+
+      // Compare metamorph rules response to query with autopilot response.
+      void compare(MetamorphStore.Query query, int response)
+      {
+         long start = System.nanoTime();
+         int  m     = metamorphs.findNearest(query, random);
+
+         searchTime += System.nanoTime() - start;
+         if ((m != -1) && (metamorphs.getResponse(m) == response))
+         {
+            agreements++;
+         }
+      }
+
+
+      // Report.
+      void report(String name, int steps)
+      {
+         System.out.println(name + " metamorphs: " + metamorphs.size() + ", agreement with autopilot=" +
+                            ((float)agreements / (float)steps) + ", mean search time=" +
+                            (searchTime / 1000 / steps) + " microseconds");
+      }
+   }
+
+   // Main.
+   public static void main(String[] args)
+   {
+      String loadfile        = null;
+      String savefile        = null;
+      float  clusterDistance = -1.0f;
+      int    agreementSteps  = 0;
+      int    randomSeed      = Main.DEFAULT_RANDOM_SEED;
+
+      for (int i = 0; i < args.length; i++)
+      {
+         if (args[i].equals("-load"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid load option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if (loadfile == null)
+            {
+               loadfile = args[i];
+            }
+            else
+            {
+               System.err.println("Duplicate load option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-save"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid save option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if (savefile == null)
+            {
+               savefile = args[i];
+            }
+            else
+            {
+               System.err.println("Duplicate save option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-clusterDistance"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid clusterDistance option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            try
+            {
+               clusterDistance = Float.parseFloat(args[i]);
+            }
+            catch (NumberFormatException e) {
+               System.err.println("Invalid clusterDistance option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if (clusterDistance < 0.0f)
+            {
+               System.err.println("Invalid clusterDistance option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-agreementSteps"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid agreementSteps option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            try
+            {
+               agreementSteps = Integer.parseInt(args[i]);
+            }
+            catch (NumberFormatException e) {
+               System.err.println("Invalid agreementSteps option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if (agreementSteps < 0)
+            {
+               System.err.println("Invalid agreementSteps option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-randomSeed"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid randomSeed option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            try
+            {
+               randomSeed = Integer.parseInt(args[i]);
+            }
+            catch (NumberFormatException e) {
+               System.err.println("Invalid randomSeed option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-help") || args[i].equals("-h") || args[i].equals("-?"))
+         {
+            System.out.println(Usage);
+            System.exit(0);
+         }
+         System.err.println("Invalid option: " + args[i]);
+         System.err.println(Usage);
+         System.exit(1);
+      }
+      if ((loadfile == null) || (clusterDistance < 0.0f))
+      {
+         System.err.println(Usage);
+         System.exit(1);
+      }
+
+      // Load and cluster metamorphs.
+      Main main = new Main(randomSeed);
+      try
+      {
+         main.load(loadfile);
+      }
+      catch (Exception e)
+      {
+         System.err.println("Cannot load from file " + loadfile + ": " + e.getMessage());
+         System.exit(1);
+      }
+      MetamorphStore metamorphs = main.pufferfish.metamorphs.copy();
+      MetamorphStore clustered  = cluster(metamorphs, clusterDistance);
+      System.out.println("Clustered " + metamorphs.size() + " metamorphs into " + clustered.size() +
+                         " at distance " + clusterDistance);
+
+      // Save?
+      if (savefile != null)
+      {
+         main.pufferfish.metamorphs.clear();
+         for (int m = 0, n = clustered.size(); m < n; m++)
+         {
+            main.pufferfish.metamorphs.add(clustered.get(m), clustered.getVector(m));
+         }
+         try
+         {
+            main.save(savefile);
+         }
+         catch (Exception e)
+         {
+            System.err.println("Cannot save to file " + savefile + ": " + e.getMessage());
+            System.exit(1);
+         }
+      }
+
+      // Measure agreement with autopilot replay.
+      if (agreementSteps > 0)
+      {
+         try
+         {
+            main.load(loadfile);
+         }
+         catch (Exception e)
+         {
+            System.err.println("Cannot load from file " + loadfile + ": " + e.getMessage());
+            System.exit(1);
+         }
+         main.reset();
+         main.pufferfish.driver = Pufferfish.DRIVER_TYPE.AUTOPILOT.getValue();
+         main.random.setSeed(randomSeed);
+         Agreement original      = new Agreement(metamorphs, randomSeed);
+         Agreement clusteredRule = new Agreement(clustered, randomSeed);
+         for (int i = 0; i < agreementSteps; i++)
+         {
+            main.stepPufferfish();
+            original.compare(main.pufferfish.metamorphQuery, main.pufferfish.response);
+            clusteredRule.compare(main.pufferfish.metamorphQuery, main.pufferfish.response);
+         }
+         original.report("Original", agreementSteps);
+         clusteredRule.report("Clustered", agreementSteps);
+      }
+      System.exit(0);
+   }
+}
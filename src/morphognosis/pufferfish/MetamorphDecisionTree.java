@@ -0,0 +1,359 @@
+// For conditions of distribution and use, see copyright notice in Main.java
+
+// Metamorph decision tree.
+// Learned metamorphs compiled into a binary decision tree over the sector type
+// densities of the query rectified to north, for responses in time proportional
+// to the tree depth instead of a nearest metamorph search.
+// A metamorph matches a query in any orientation, so each metamorph is trained
+// in every orientation, as the north query that would match it in that orientation.
+// Splits threshold a single density, chosen to minimize Gini impurity.
+
+package morphognosis.pufferfish;
+
+import java.util.Arrays;
+import java.util.TreeSet;
+import java.util.stream.IntStream;
+import morphognosis.Orientation;
+
+public class MetamorphDecisionTree
+{
+   // Parameters.
+   public static final int DEFAULT_MAX_DEPTH = 32;
+   public int              maxDepth;
+
+   // Nodes: split density and threshold, or -1 and response for a leaf.
+   int[]   features;
+   float[] thresholds;
+   int[]   lefts;
+   int[]   rights;
+   int[]   responses;
+   int     numNodes;
+   int     depth;
+
+   // Training: metamorph vectors, response classes, and density index in each
+   // orientation of each north density.
+   float[][] vectors;
+   int[]     classes;
+   int[]     classResponses;
+   int[][]   featureMaps;
+   int[]     activeFeatures;
+
+   // Training examples agreeing with their leaf response.
+   int numExamples;
+   int agreements;
+
+   // Minimum examples for parallel split search.
+   public static final int MIN_PARALLEL_SPLIT_WORK = 100000;
+
+   // Constructor: compile metamorphs.
+   public MetamorphDecisionTree(MetamorphStore metamorphs, int maxDepth)
+   {
+      this.maxDepth = maxDepth;
+      features      = new int[16];
+      thresholds    = new float[16];
+      lefts         = new int[16];
+      rights        = new int[16];
+      responses     = new int[16];
+      int n = metamorphs.size();
+      if (n == 0)
+      {
+         newLeaf(Pufferfish.WAIT);
+         return;
+      }
+      initTraining(metamorphs);
+      int[] examples = new int[n * Orientation.NUM_ORIENTATIONS];
+      for (int i = 0; i < examples.length; i++)
+      {
+         examples[i] = i;
+      }
+      numExamples = examples.length;
+      build(examples, 0, examples.length, 0);
+      vectors = null;
+   }
+
+
+   // Initialize training from metamorphs.
+   void initTraining(MetamorphStore metamorphs)
+   {
+      int n = metamorphs.size();
+
+      vectors = new float[n][];
+      classes = new int[n];
+      TreeSet<Integer> responseSet = new TreeSet<Integer>();
+      for (int m = 0; m < n; m++)
+      {
+         vectors[m] = metamorphs.getVector(m);
+         responseSet.add(metamorphs.getResponse(m));
+      }
+      classResponses = new int[responseSet.size()];
+      int c = 0;
+      for (int response : responseSet)
+      {
+         classResponses[c++] = response;
+      }
+      for (int m = 0; m < n; m++)
+      {
+         classes[m] = Arrays.binarySearch(classResponses, metamorphs.getResponse(m));
+      }
+
+      // A north query matching a metamorph in an orientation has the metamorph
+      // density at the position rectified from north to that orientation.
+      FrozenMorphognostic.Layout layout = metamorphs.layout;
+      int length = layout.getVectorLength();
+      featureMaps = new int[Orientation.NUM_ORIENTATIONS][length];
+      for (int o = 0; o < Orientation.NUM_ORIENTATIONS; o++)
+      {
+         for (int i = 0; i < layout.NUM_NEIGHBORHOODS; i++)
+         {
+            for (int p = 0, k = layout.sectorCounts[i] * layout.sectorCounts[i]; p < k; p++)
+            {
+               int q = layout.getPosition(i, Orientation.NORTH, p, o);
+               for (int j = 0; j < layout.sectorLength; j++)
+               {
+                  featureMaps[o][layout.offsets[i] + (p * layout.sectorLength) + j] =
+                     layout.offsets[i] + (q * layout.sectorLength) + j;
+               }
+            }
+         }
+      }
+
+      // North densities varying over metamorphs in any orientation.
+      boolean[] varying = new boolean[length];
+      for (int f = 0; f < length; f++)
+      {
+         for (int m = 1; m < n && !varying[f]; m++)
+         {
+            varying[f] = (vectors[m][f] != vectors[0][f]);
+         }
+      }
+      int[] active = new int[length];
+      int   count  = 0;
+      for (int f = 0; f < length; f++)
+      {
+         for (int o = 0; o < Orientation.NUM_ORIENTATIONS; o++)
+         {
+            if (varying[featureMaps[o][f]])
+            {
+               active[count++] = f;
+               break;
+            }
+         }
+      }
+      activeFeatures = Arrays.copyOf(active, count);
+   }
+
+
+   // Density of training example: metamorph in orientation.
+   float getValue(int example, int feature)
+   {
+      return(vectors[example / Orientation.NUM_ORIENTATIONS][featureMaps[example % Orientation.NUM_ORIENTATIONS][feature]]);
+   }
+
+
+   // Response class of training example.
+   int getClass(int example)
+   {
+      return(classes[example / Orientation.NUM_ORIENTATIONS]);
+   }
+
+
+   // Build subtree for examples in range, returning its node.
+   int build(int[] examples, int from, int to, int level)
+   {
+      int   n      = to - from;
+      int[] counts = new int[classResponses.length];
+
+      depth = Math.max(depth, level);
+      for (int i = from; i < to; i++)
+      {
+         counts[getClass(examples[i])]++;
+      }
+      int majority = 0;
+      for (int c = 1; c < counts.length; c++)
+      {
+         if (counts[c] > counts[majority])
+         {
+            majority = c;
+         }
+      }
+      if ((counts[majority] == n) || (level >= maxDepth))
+      {
+         agreements += counts[majority];
+         return(newLeaf(classResponses[majority]));
+      }
+
+      // Find best split.
+      int       numFeatures  = activeFeatures.length;
+      double[]  impurities   = new double[numFeatures];
+      float[]   splits       = new float[numFeatures];
+      double    nodeImpurity = n - (sumSquares(counts) / n);
+      IntStream featureRange = IntStream.range(0, numFeatures);
+      if ((long)n * numFeatures >= MIN_PARALLEL_SPLIT_WORK)
+      {
+         featureRange = featureRange.parallel();
+      }
+      featureRange.forEach(f ->
+                           {
+                              impurities[f] = findSplit(examples, from, to, activeFeatures[f], splits, f);
+                           }
+                           );
+      int best = -1;
+      for (int f = 0; f < numFeatures; f++)
+      {
+         if ((impurities[f] < nodeImpurity) && ((best == -1) || (impurities[f] < impurities[best])))
+         {
+            best = f;
+         }
+      }
+      if (best == -1)
+      {
+         agreements += counts[majority];
+         return(newLeaf(classResponses[majority]));
+      }
+
+      // Partition and split.
+      int   feature   = activeFeatures[best];
+      float threshold = splits[best];
+      int   mid       = from;
+      for (int i = from; i < to; i++)
+      {
+         if (getValue(examples[i], feature) <= threshold)
+         {
+            int e = examples[i];
+            examples[i]     = examples[mid];
+            examples[mid++] = e;
+         }
+      }
+      int node = newNode();
+      features[node]   = feature;
+      thresholds[node] = threshold;
+      int left = build(examples, from, mid, level + 1);
+      lefts[node] = left;
+      int right = build(examples, mid, to, level + 1);
+      rights[node] = right;
+      return(node);
+   }
+
+
+   // Find split of examples in range on feature minimizing weighted Gini impurity.
+   // Returns the impurity, with the threshold stored at index, or infinity if none.
+   double findSplit(int[] examples, int from, int to, int feature, float[] splits, int index)
+   {
+      int    n    = to - from;
+      long[] keys = new long[n];
+
+      // Densities are non-negative, so their bits sort as the values.
+      for (int i = 0; i < n; i++)
+      {
+         keys[i] = ((long)Float.floatToIntBits(getValue(examples[from + i], feature)) << 32) |
+                   getClass(examples[from + i]);
+      }
+      Arrays.sort(keys);
+      int[] lowCounts  = new int[classResponses.length];
+      int[] highCounts = new int[classResponses.length];
+      for (int i = 0; i < n; i++)
+      {
+         highCounts[(int)keys[i]]++;
+      }
+      double best = Double.POSITIVE_INFINITY;
+      for (int i = 1; i < n; i++)
+      {
+         int c = (int)keys[i - 1];
+         lowCounts[c]++;
+         highCounts[c]--;
+         if ((keys[i] >>> 32) != (keys[i - 1] >>> 32))
+         {
+            double impurity = (i - (sumSquares(lowCounts) / i)) +
+                              ((n - i) - (sumSquares(highCounts) / (n - i)));
+            if (impurity < best)
+            {
+               float low  = Float.intBitsToFloat((int)(keys[i - 1] >>> 32));
+               float high = Float.intBitsToFloat((int)(keys[i] >>> 32));
+               best          = impurity;
+               splits[index] = (low + high) / 2.0f;
+               if (splits[index] >= high)
+               {
+                  splits[index] = low;
+               }
+            }
+         }
+      }
+      return(best);
+   }
+
+
+   // Sum of squared counts.
+   static double sumSquares(int[] counts)
+   {
+      double sum = 0.0;
+
+      for (int count : counts)
+      {
+         sum += (double)count * (double)count;
+      }
+      return(sum);
+   }
+
+
+   // New node.
+   int newNode()
+   {
+      if (numNodes == features.length)
+      {
+         int n = numNodes * 2;
+         features   = Arrays.copyOf(features, n);
+         thresholds = Arrays.copyOf(thresholds, n);
+         lefts      = Arrays.copyOf(lefts, n);
+         rights     = Arrays.copyOf(rights, n);
+         responses  = Arrays.copyOf(responses, n);
+      }
+      return(numNodes++);
+   }
+
+
+   // New leaf.
+   int newLeaf(int response)
+   {
+      int node = newNode();
+
+      features[node]  = -1;
+      responses[node] = response;
+      return(node);
+   }
+
+
+   // Get response to query.
+   public int getResponse(MetamorphStore.Query query)
+   {
+      float[] vector = query.rotations[Orientation.NORTH];
+      int     node   = 0;
+
+      while (features[node] != -1)
+      {
+         node = (vector[features[node]] <= thresholds[node]) ? lefts[node] : rights[node];
+      }
+      return(responses[node]);
+   }
+
+
+   // Get number of nodes.
+   public int getNumNodes()
+   {
+      return(numNodes);
+   }
+
+
+   // Get depth.
+   public int getDepth()
+   {
+      return(depth);
+   }
+
+
+   // Get fraction of metamorphs in all orientations agreeing with their leaf response.
+   public float getTrainingAgreement()
+   {
+      if (numExamples == 0) { return(1.0f); }
+      return((float)agreements / (float)numExamples);
+   }
+}
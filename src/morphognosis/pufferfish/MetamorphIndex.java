@@ -0,0 +1,160 @@
+// For conditions of distribution and use, see copyright notice in Main.java
+
+// Metamorph locality-sensitive hash index.
+// Approximate nearest metamorph search for the L1 morphognostic distance:
+// flattened type densities are hashed by random Cauchy (1-stable) projections
+// quantized into buckets, in several independent tables. Metamorphs sharing a
+// bucket with the query in any table are candidates. More tables raise recall,
+// more hashes per table or narrower buckets make candidate sets smaller.
+
+package morphognosis.pufferfish;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+
+public class MetamorphIndex
+{
+   // Parameters.
+   public static final int   DEFAULT_NUM_TABLES   = 8;
+   public static final int   DEFAULT_NUM_HASHES   = 4;
+   public static final float DEFAULT_BUCKET_WIDTH = 2.0f;
+   public int                numTables;
+   public int                numHashes;
+   public float              bucketWidth;
+
+   // Random projections and offsets: [table][hash].
+   float[][][] projections;
+   float[][]   projectionOffsets;
+   SecureRandom random;
+
+   // Buckets: metamorph indexes by hash key, per table.
+   ArrayList<HashMap<Long, ArrayList<Integer> > > tables;
+
+   // Constructor.
+   public MetamorphIndex(int numTables, int numHashes, float bucketWidth, int randomSeed)
+   {
+      this.numTables   = numTables;
+      this.numHashes   = numHashes;
+      this.bucketWidth = bucketWidth;
+      random           = new SecureRandom();
+      random.setSeed(randomSeed);
+      tables = new ArrayList<HashMap<Long, ArrayList<Integer> > >();
+      for (int i = 0; i < numTables; i++)
+      {
+         tables.add(new HashMap<Long, ArrayList<Integer> >());
+      }
+   }
+
+
+   // Clear.
+   public void clear()
+   {
+      for (HashMap<Long, ArrayList<Integer> > table : tables)
+      {
+         table.clear();
+      }
+   }
+
+
+   // Add metamorph type density vector at store index.
+   public void add(int index, float[] vector)
+   {
+      for (int i = 0; i < numTables; i++)
+      {
+         Long key = hash(i, vector);
+         ArrayList<Integer> bucket = tables.get(i).get(key);
+         if (bucket == null)
+         {
+            bucket = new ArrayList<Integer>();
+            tables.get(i).put(key, bucket);
+         }
+         bucket.add(index);
+      }
+   }
+
+
+   // Remove metamorph type density vector at store index.
+   public void remove(int index, float[] vector)
+   {
+      for (int i = 0; i < numTables; i++)
+      {
+         Long key = hash(i, vector);
+         ArrayList<Integer> bucket = tables.get(i).get(key);
+         if (bucket != null)
+         {
+            bucket.remove(Integer.valueOf(index));
+            if (bucket.size() == 0)
+            {
+               tables.get(i).remove(key);
+            }
+         }
+      }
+   }
+
+
+   // Get candidate store indexes for query in any orientation.
+   public BitSet getCandidates(MetamorphStore.Query query)
+   {
+      BitSet candidates = new BitSet();
+
+      if (projections == null) { return(candidates); }
+      for (float[] rotation : query.rotations)
+      {
+         for (int i = 0; i < numTables; i++)
+         {
+            ArrayList<Integer> bucket = tables.get(i).get(hash(i, rotation));
+            if (bucket != null)
+            {
+               for (int index : bucket)
+               {
+                  candidates.set(index);
+               }
+            }
+         }
+      }
+      return(candidates);
+   }
+
+
+   // Hash vector for table.
+   long hash(int table, float[] vector)
+   {
+      if (projections == null)
+      {
+         initProjections(vector.length);
+      }
+      long key = 17;
+      for (int i = 0; i < numHashes; i++)
+      {
+         float[] a = projections[table][i];
+         float   p = projectionOffsets[table][i];
+         for (int j = 0; j < vector.length; j++)
+         {
+            p += a[j] * vector[j];
+         }
+         key = (key * 31) + (long)Math.floor(p / bucketWidth);
+      }
+      return(key);
+   }
+
+
+   // Initialize random projections for vector length.
+   void initProjections(int length)
+   {
+      projections       = new float[numTables][numHashes][length];
+      projectionOffsets = new float[numTables][numHashes];
+      for (int i = 0; i < numTables; i++)
+      {
+         for (int j = 0; j < numHashes; j++)
+         {
+            for (int k = 0; k < length; k++)
+            {
+               projections[i][j][k] = (float)Math.tan(Math.PI * (random.nextDouble() - 0.5));
+            }
+            projectionOffsets[i][j] = random.nextFloat() * bucketWidth;
+         }
+      }
+   }
+}
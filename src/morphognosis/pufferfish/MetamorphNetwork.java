@@ -0,0 +1,502 @@
+// For conditions of distribution and use, see copyright notice in Main.java
+
+// Metamorph neural network.
+// Feedforward network mapping a flattened morphognostic, in the metamorph dataset
+// layout, to a response: fully connected ReLU hidden layers and a softmax output
+// with a unit per response.
+// Weights are saved in a simple binary format: the number of layers and the units
+// of each, including the input and output layers, followed for each layer by its
+// weights, row-major by output unit, and biases.
+// Evaluation uses preallocated buffers for up to a batch of inputs.
+// Training is by minibatch gradient descent with Adam on the cross entropy of
+// the metamorph responses.
+
+package morphognosis.pufferfish;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import morphognosis.Morphognostic;
+import morphognosis.Utility;
+
+public class MetamorphNetwork
+{
+   // Training parameters.
+   public static final int   DEFAULT_HIDDEN_UNITS = 64;
+   public static final int   DEFAULT_EPOCHS       = 50;
+   public static final int   BATCH_SIZE           = 32;
+   public static final float LEARNING_RATE        = 0.001f;
+   public static final float ADAM_BETA1           = 0.9f;
+   public static final float ADAM_BETA2           = 0.999f;
+   public static final float ADAM_EPSILON         = 1.0e-8f;
+
+   // Units per layer, including input and output layers.
+   public int[] units;
+
+   // Weights, row-major by output unit, and biases of each layer.
+   float[][] weights;
+   float[][] biases;
+
+   // Activations of each layer for a batch.
+   float[][] activations;
+   int       batchCapacity;
+
+   // Constructor.
+   public MetamorphNetwork(int[] units)
+   {
+      this.units = units.clone();
+      int n = units.length - 1;
+      weights = new float[n][];
+      biases  = new float[n][];
+      for (int l = 0; l < n; l++)
+      {
+         weights[l] = new float[units[l + 1] * units[l]];
+         biases[l]  = new float[units[l + 1]];
+      }
+      setBatchCapacity(1);
+   }
+
+
+   // Initialize random weights.
+   public void initWeights(SecureRandom random)
+   {
+      for (int l = 0; l < weights.length; l++)
+      {
+         float scale = (float)Math.sqrt(2.0 / units[l]);
+         for (int i = 0; i < weights[l].length; i++)
+         {
+            weights[l][i] = (float)random.nextGaussian() * scale;
+         }
+         for (int i = 0; i < biases[l].length; i++)
+         {
+            biases[l][i] = 0.0f;
+         }
+      }
+   }
+
+
+   // Get number of inputs.
+   public int getNumInputs()
+   {
+      return(units[0]);
+   }
+
+
+   // Get input indexes of flattened morphognostic in the metamorph dataset layout.
+   public static int[] getInputIndexes(Morphognostic morphognostic)
+   {
+      int dx = 0;
+
+      if (Pufferfish.IGNORE_ELEVATION_SENSOR_VALUES)
+      {
+         dx = 3;
+      }
+      int[] offsets = MorphognosticDistance.getNeighborhoodOffsets(morphognostic);
+      int   length  = offsets[offsets.length - 1];
+      int   n       = 0;
+      int[] indexes = new int[length];
+      for (int p = 0; p < length; )
+      {
+         for (int d = 0; d < morphognostic.eventDimensions; d++)
+         {
+            for (int k = 0; k < morphognostic.numEventTypes[d]; k++, p++)
+            {
+               if (d >= dx)
+               {
+                  indexes[n++] = p;
+               }
+            }
+         }
+      }
+      int[] inputIndexes = new int[n];
+      System.arraycopy(indexes, 0, inputIndexes, 0, n);
+      return(inputIndexes);
+   }
+
+
+   // Set input from flattened morphognostic.
+   public static float[] getInput(float[] vector, int[] inputIndexes, float[] input, int offset)
+   {
+      for (int i = 0; i < inputIndexes.length; i++)
+      {
+         input[offset + i] = vector[inputIndexes[i]];
+      }
+      return(input);
+   }
+
+
+   // Set batch capacity.
+   void setBatchCapacity(int capacity)
+   {
+      if (capacity <= batchCapacity) { return; }
+      batchCapacity = capacity;
+      activations   = new float[units.length][];
+      for (int l = 0; l < units.length; l++)
+      {
+         activations[l] = new float[capacity * units[l]];
+      }
+   }
+
+
+   // Evaluate batch of inputs, row-major by input, into output probabilities.
+   // Returns the output activations, valid until the next evaluation.
+   public float[] evaluate(float[] inputs, int count)
+   {
+      setBatchCapacity(count);
+      System.arraycopy(inputs, 0, activations[0], 0, count * units[0]);
+      for (int l = 0; l < weights.length; l++)
+      {
+         int     n      = units[l];
+         int     m      = units[l + 1];
+         float[] in     = activations[l];
+         float[] out    = activations[l + 1];
+         float[] w      = weights[l];
+         float[] b      = biases[l];
+         boolean hidden = (l < weights.length - 1);
+         for (int s = 0; s < count; s++)
+         {
+            for (int j = 0; j < m; j++)
+            {
+               float sum = b[j];
+               for (int i = 0, k = j * n, x = s * n; i < n; i++, k++, x++)
+               {
+                  sum += w[k] * in[x];
+               }
+               if (hidden && (sum < 0.0f))
+               {
+                  sum = 0.0f;
+               }
+               out[(s * m) + j] = sum;
+            }
+         }
+      }
+      int     m      = units[units.length - 1];
+      float[] output = activations[units.length - 1];
+      for (int s = 0; s < count; s++)
+      {
+         float max = output[s * m];
+         for (int j = 1; j < m; j++)
+         {
+            max = Math.max(max, output[(s * m) + j]);
+         }
+         float sum = 0.0f;
+         for (int j = 0; j < m; j++)
+         {
+            output[(s * m) + j] = (float)Math.exp(output[(s * m) + j] - max);
+            sum += output[(s * m) + j];
+         }
+         for (int j = 0; j < m; j++)
+         {
+            output[(s * m) + j] /= sum;
+         }
+      }
+      return(output);
+   }
+
+
+   // Get responses to batch of inputs.
+   public int[] getResponses(float[] inputs, int count, int[] responses)
+   {
+      float[] output = evaluate(inputs, count);
+      int     m      = units[units.length - 1];
+
+      for (int s = 0; s < count; s++)
+      {
+         int response = 0;
+         for (int j = 1; j < m; j++)
+         {
+            if (output[(s * m) + j] > output[(s * m) + response])
+            {
+               response = j;
+            }
+         }
+         responses[s] = response;
+      }
+      return(responses);
+   }
+
+
+   // Get response to input.
+   public int getResponse(float[] input)
+   {
+      float[] output   = evaluate(input, 1);
+      int     response = 0;
+
+      for (int j = 1, m = units[units.length - 1]; j < m; j++)
+      {
+         if (output[j] > output[response])
+         {
+            response = j;
+         }
+      }
+      return(response);
+   }
+
+
+   // Train on metamorphs.
+   // Returns the fraction of metamorph responses agreeing with the network.
+   public float train(MetamorphStore metamorphs, int[] inputIndexes, int epochs, SecureRandom random)
+   {
+      int n = metamorphs.size();
+
+      if (n == 0) { return(1.0f); }
+      int     numInputs = units[0];
+      float[] inputs    = new float[n * numInputs];
+      int[]   targets   = new int[n];
+      for (int i = 0; i < n; i++)
+      {
+         getInput(metamorphs.getVector(i), inputIndexes, inputs, i * numInputs);
+         targets[i] = metamorphs.getResponse(i);
+      }
+
+      // Gradients, Adam moments and deltas.
+      int       numLayers       = weights.length;
+      float[][] weightGradients = new float[numLayers][];
+      float[][] biasGradients   = new float[numLayers][];
+      float[][] weightMoments   = new float[numLayers * 2][];
+      float[][] biasMoments     = new float[numLayers * 2][];
+      float[][] deltas          = new float[units.length][];
+      for (int l = 0; l < numLayers; l++)
+      {
+         weightGradients[l]         = new float[weights[l].length];
+         biasGradients[l]           = new float[biases[l].length];
+         weightMoments[l * 2]       = new float[weights[l].length];
+         weightMoments[(l * 2) + 1] = new float[weights[l].length];
+         biasMoments[l * 2]         = new float[biases[l].length];
+         biasMoments[(l * 2) + 1]   = new float[biases[l].length];
+      }
+      for (int l = 0; l < units.length; l++)
+      {
+         deltas[l] = new float[BATCH_SIZE * units[l]];
+      }
+      float[] batch = new float[BATCH_SIZE * numInputs];
+      int[]   order = new int[n];
+      for (int i = 0; i < n; i++)
+      {
+         order[i] = i;
+      }
+      int step = 0;
+      for (int epoch = 0; epoch < epochs; epoch++)
+      {
+         for (int i = n - 1; i > 0; i--)
+         {
+            int j = random.nextInt(i + 1);
+            int k = order[i];
+            order[i] = order[j];
+            order[j] = k;
+         }
+         for (int from = 0; from < n; from += BATCH_SIZE)
+         {
+            int count = Math.min(BATCH_SIZE, n - from);
+            for (int s = 0; s < count; s++)
+            {
+               System.arraycopy(inputs, order[from + s] * numInputs, batch, s * numInputs, numInputs);
+            }
+            float[] output = evaluate(batch, count);
+
+            // Output deltas: softmax cross entropy.
+            int m = units[units.length - 1];
+            for (int s = 0; s < count; s++)
+            {
+               for (int j = 0; j < m; j++)
+               {
+                  deltas[numLayers][(s * m) + j] = (output[(s * m) + j] -
+                                                    ((j == targets[order[from + s]]) ? 1.0f : 0.0f)) / count;
+               }
+            }
+
+            // Back propagate.
+            for (int l = numLayers - 1; l >= 0; l--)
+            {
+               int     in  = units[l];
+               int     out = units[l + 1];
+               float[] w   = weights[l];
+               float[] wg  = weightGradients[l];
+               float[] bg  = biasGradients[l];
+               float[] a   = activations[l];
+               float[] d   = deltas[l + 1];
+               Arrays.fill(wg, 0.0f);
+               Arrays.fill(bg, 0.0f);
+               for (int s = 0; s < count; s++)
+               {
+                  for (int j = 0; j < out; j++)
+                  {
+                     float dj = d[(s * out) + j];
+                     if (dj == 0.0f) { continue; }
+                     bg[j] += dj;
+                     for (int i = 0, k = j * in, x = s * in; i < in; i++, k++, x++)
+                     {
+                        wg[k] += dj * a[x];
+                     }
+                  }
+               }
+               if (l > 0)
+               {
+                  float[] d2 = deltas[l];
+                  for (int s = 0; s < count; s++)
+                  {
+                     for (int i = 0; i < in; i++)
+                     {
+                        float sum = 0.0f;
+                        if (a[(s * in) + i] > 0.0f)
+                        {
+                           for (int j = 0; j < out; j++)
+                           {
+                              sum += w[(j * in) + i] * d[(s * out) + j];
+                           }
+                        }
+                        d2[(s * in) + i] = sum;
+                     }
+                  }
+               }
+            }
+
+            // Update.
+            step++;
+            float correction1 = 1.0f - (float)Math.pow(ADAM_BETA1, step);
+            float correction2 = 1.0f - (float)Math.pow(ADAM_BETA2, step);
+            for (int l = 0; l < numLayers; l++)
+            {
+               adam(weights[l], weightGradients[l], weightMoments[l * 2], weightMoments[(l * 2) + 1],
+                    correction1, correction2);
+               adam(biases[l], biasGradients[l], biasMoments[l * 2], biasMoments[(l * 2) + 1],
+                    correction1, correction2);
+            }
+         }
+      }
+
+      // Agreement with metamorph responses.
+      int   agreements = 0;
+      int[] responses  = new int[BATCH_SIZE];
+      for (int from = 0; from < n; from += BATCH_SIZE)
+      {
+         int count = Math.min(BATCH_SIZE, n - from);
+         System.arraycopy(inputs, from * numInputs, batch, 0, count * numInputs);
+         getResponses(batch, count, responses);
+         for (int s = 0; s < count; s++)
+         {
+            if (responses[s] == targets[from + s])
+            {
+               agreements++;
+            }
+         }
+      }
+      return((float)agreements / (float)n);
+   }
+
+
+   // Adam update.
+   static void adam(float[] parameters, float[] gradients, float[] moments, float[] squares,
+                    float correction1, float correction2)
+   {
+      for (int i = 0; i < parameters.length; i++)
+      {
+         float g = gradients[i];
+         moments[i]     = (ADAM_BETA1 * moments[i]) + ((1.0f - ADAM_BETA1) * g);
+         squares[i]     = (ADAM_BETA2 * squares[i]) + ((1.0f - ADAM_BETA2) * g * g);
+         parameters[i] -= LEARNING_RATE * (moments[i] / correction1) /
+                          ((float)Math.sqrt(squares[i] / correction2) + ADAM_EPSILON);
+      }
+   }
+
+
+   // Save weights to file.
+   public void save(String filename) throws IOException
+   {
+      DataOutputStream writer;
+
+      try
+      {
+         writer = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(filename))));
+      }
+      catch (Exception e)
+      {
+         throw new IOException("Cannot open output file " + filename + ":" + e.getMessage());
+      }
+      save(writer);
+      writer.close();
+   }
+
+
+   // Save weights.
+   public void save(DataOutputStream writer) throws IOException
+   {
+      Utility.saveInt(writer, units.length);
+      for (int n : units)
+      {
+         Utility.saveInt(writer, n);
+      }
+      for (int l = 0; l < weights.length; l++)
+      {
+         for (float w : weights[l])
+         {
+            Utility.saveFloat(writer, w);
+         }
+         for (float b : biases[l])
+         {
+            Utility.saveFloat(writer, b);
+         }
+      }
+      writer.flush();
+   }
+
+
+   // Load weights from file.
+   public static MetamorphNetwork load(String filename) throws IOException
+   {
+      DataInputStream reader;
+
+      try
+      {
+         reader = new DataInputStream(new BufferedInputStream(new FileInputStream(new File(filename))));
+      }
+      catch (Exception e)
+      {
+         throw new IOException("Cannot open input file " + filename + ":" + e.getMessage());
+      }
+      MetamorphNetwork network = load(reader);
+      reader.close();
+      return(network);
+   }
+
+
+   // Load weights.
+   public static MetamorphNetwork load(DataInputStream reader) throws IOException
+   {
+      int n = Utility.loadInt(reader);
+
+      if (n < 2)
+      {
+         throw new IOException("Invalid number of network layers: " + n);
+      }
+      int[] units = new int[n];
+      for (int l = 0; l < n; l++)
+      {
+         units[l] = Utility.loadInt(reader);
+         if (units[l] <= 0)
+         {
+            throw new IOException("Invalid number of network units: " + units[l]);
+         }
+      }
+      MetamorphNetwork network = new MetamorphNetwork(units);
+      for (int l = 0; l < network.weights.length; l++)
+      {
+         for (int i = 0; i < network.weights[l].length; i++)
+         {
+            network.weights[l][i] = Utility.loadFloat(reader);
+         }
+         for (int i = 0; i < network.biases[l].length; i++)
+         {
+            network.biases[l][i] = Utility.loadFloat(reader);
+         }
+      }
+      return(network);
+   }
+}
@@ -0,0 +1,366 @@
+// For conditions of distribution and use, see copyright notice in Main.java
+
+// Metamorph product quantizer.
+// Compact metamorph encoding: the type densities of each sector and event dimension
+// in a flattened morphognostic form a subvector that is coded as one of up to 256
+// centroids, with a codebook per neighborhood and event dimension.
+// Distances from a query are summed from lookup tables of query subvector to centroid
+// distances. Rotating a morphognostic permutes its sectors, so a single table serves
+// every orientation of the query.
+
+package morphognosis.pufferfish;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import morphognosis.Metamorph;
+import morphognosis.Orientation;
+
+public class MetamorphQuantizer
+{
+   // Parameters.
+   public static final int MAX_CENTROIDS           = 256;
+   public static final int MAX_TRAINING_SUBVECTORS = 20000;
+   public static final int TRAINING_ITERATIONS     = 10;
+   public int              numCentroids;
+
+   // Layout.
+   FrozenMorphognostic.Layout layout;
+   int[]                      offsets;
+   int                        eventDimensions;
+   int[]                      dimensionOffsets;
+   int                        sectorLength;
+
+   // Subspaces: vector offset and codebook of each code.
+   public int    numSubspaces;
+   int[]         subspaceOffsets;
+   int[]         subspaceCodebooks;
+
+   // Subspace permutation from each orientation to north.
+   int[][] rotations;
+
+   // Codebooks: centroids and codes of known subvectors.
+   // Known subvector codes are looked up without locking.
+   int[]     codebookLengths;
+   float[][] centroids;
+   ArrayList<ConcurrentHashMap<Subvector, Integer> > codeCache;
+
+   // Subvector key: range of values, which are not copied.
+   static class Subvector
+   {
+      float[] values;
+      int     offset;
+      int     length;
+      int     hash;
+
+      Subvector(float[] values, int offset, int length)
+      {
+         this.values = values;
+         this.offset = offset;
+         this.length = length;
+         hash        = 1;
+         for (int i = offset, j = offset + length; i < j; i++)
+         {
+            hash = (31 * hash) + Float.floatToIntBits(values[i]);
+         }
+      }
+
+
+      // Copy of subvector owning its values.
+      Subvector copy()
+      {
+         return(new Subvector(Arrays.copyOfRange(values, offset, offset + length), 0, length));
+      }
+
+
+      public boolean equals(Object o)
+      {
+         if (!(o instanceof Subvector)) { return(false); }
+         Subvector v = (Subvector)o;
+         return((hash == v.hash) &&
+                Arrays.equals(values, offset, offset + length, v.values, v.offset, v.offset + v.length));
+      }
+
+
+      public int hashCode()
+      {
+         return(hash);
+      }
+   }
+
+   // Constructor: train codebooks on metamorph type density vectors.
+   public MetamorphQuantizer(FrozenMorphognostic.Layout layout, List<float[]> vectors,
+                             int numCentroids, SecureRandom random)
+   {
+      this.numCentroids = Math.max(1, Math.min(numCentroids, MAX_CENTROIDS));
+      initLayout(layout);
+      int numCodebooks = layout.NUM_NEIGHBORHOODS * eventDimensions;
+      codebookLengths = new int[numCodebooks];
+      centroids       = new float[numCodebooks][];
+      codeCache       = new ArrayList<ConcurrentHashMap<Subvector, Integer> >();
+      for (int i = 0; i < numCodebooks; i++)
+      {
+         codebookLengths[i] = layout.numEventTypes[i % eventDimensions];
+         codeCache.add(new ConcurrentHashMap<Subvector, Integer>());
+      }
+      train(vectors, random);
+   }
+
+
+   // Initialize subspaces from layout.
+   void initLayout(FrozenMorphognostic.Layout layout)
+   {
+      this.layout      = layout;
+      offsets          = layout.offsets;
+      eventDimensions  = layout.eventDimensions;
+      dimensionOffsets = new int[eventDimensions + 1];
+      for (int d = 0; d < eventDimensions; d++)
+      {
+         dimensionOffsets[d + 1] = dimensionOffsets[d] + layout.numEventTypes[d];
+      }
+      sectorLength      = layout.sectorLength;
+      numSubspaces      = layout.getVectorLength() / sectorLength * eventDimensions;
+      subspaceOffsets   = new int[numSubspaces];
+      subspaceCodebooks = new int[numSubspaces];
+      rotations         = new int[Orientation.NUM_ORIENTATIONS][numSubspaces];
+      int s = 0;
+      for (int i = 0; i < layout.NUM_NEIGHBORHOODS; i++)
+      {
+         int n    = layout.sectorCounts[i];
+         int base = s;
+         for (int p = 0; p < n * n; p++)
+         {
+            for (int d = 0; d < eventDimensions; d++, s++)
+            {
+               subspaceOffsets[s]   = offsets[i] + (p * sectorLength) + dimensionOffsets[d];
+               subspaceCodebooks[s] = (i * eventDimensions) + d;
+               for (int o = 0; o < Orientation.NUM_ORIENTATIONS; o++)
+               {
+                  int q = layout.getPosition(i, o, p, Orientation.NORTH);
+                  rotations[o][s] = base + (q * eventDimensions) + d;
+               }
+            }
+         }
+      }
+   }
+
+
+   // Train codebooks by k-means clustering of distinct subvectors weighted by frequency.
+   // A codebook with no more distinct subvectors than centroids is exact.
+   void train(List<float[]> vectors, SecureRandom random)
+   {
+      ArrayList<HashMap<Subvector, Integer> > frequencies = new ArrayList<HashMap<Subvector, Integer> >();
+      for (int c = 0; c < centroids.length; c++)
+      {
+         frequencies.add(new HashMap<Subvector, Integer>());
+      }
+      for (float[] vector : vectors)
+      {
+         for (int s = 0; s < numSubspaces; s++)
+         {
+            int c = subspaceCodebooks[s];
+            HashMap<Subvector, Integer> counts = frequencies.get(c);
+            Subvector key   = new Subvector(vector, subspaceOffsets[s], codebookLengths[c]);
+            Integer   count = counts.get(key);
+            if (count != null)
+            {
+               counts.put(key, count + 1);
+            }
+            else if (counts.size() < MAX_TRAINING_SUBVECTORS)
+            {
+               counts.put(key.copy(), 1);
+            }
+         }
+      }
+      for (int c = 0; c < centroids.length; c++)
+      {
+         int length = codebookLengths[c];
+         HashMap<Subvector, Integer> counts = frequencies.get(c);
+         ArrayList<Subvector> points = new ArrayList<Subvector>(counts.keySet());
+         int k = Math.max(1, Math.min(numCentroids, points.size()));
+         float[] means = new float[k * length];
+         for (int i = 0; i < points.size(); i++)
+         {
+            int j = i + random.nextInt(points.size() - i);
+            Subvector p = points.get(j);
+            points.set(j, points.get(i));
+            points.set(i, p);
+         }
+         for (int i = 0; i < k && i < points.size(); i++)
+         {
+            System.arraycopy(points.get(i).values, 0, means, i * length, length);
+         }
+         if (points.size() > k)
+         {
+            int[]    assignments = new int[points.size()];
+            double[] sums        = new double[k * length];
+            double[] weights     = new double[k];
+            for (int iteration = 0; iteration < TRAINING_ITERATIONS; iteration++)
+            {
+               boolean changed = false;
+               for (int i = 0; i < points.size(); i++)
+               {
+                  int j = nearest(points.get(i).values, 0, means, k, length);
+                  if ((iteration == 0) || (j != assignments[i]))
+                  {
+                     assignments[i] = j;
+                     changed        = true;
+                  }
+               }
+               if (!changed) { break; }
+               Arrays.fill(sums, 0.0);
+               Arrays.fill(weights, 0.0);
+               for (int i = 0; i < points.size(); i++)
+               {
+                  float[] values = points.get(i).values;
+                  int     w      = counts.get(points.get(i));
+                  int     j      = assignments[i];
+                  weights[j] += w;
+                  for (int l = 0; l < length; l++)
+                  {
+                     sums[(j * length) + l] += values[l] * w;
+                  }
+               }
+               for (int j = 0; j < k; j++)
+               {
+                  if (weights[j] > 0.0)
+                  {
+                     for (int l = 0; l < length; l++)
+                     {
+                        means[(j * length) + l] = (float)(sums[(j * length) + l] / weights[j]);
+                     }
+                  }
+               }
+            }
+         }
+         for (Subvector point : points)
+         {
+            codeCache.get(c).put(point, nearest(point.values, 0, means, k, length));
+         }
+         centroids[c] = means;
+      }
+   }
+
+
+   // Index of nearest centroid to subvector.
+   static int nearest(float[] vector, int offset, float[] means, int k, int length)
+   {
+      int   nearest = 0;
+      float d       = Float.MAX_VALUE;
+
+      for (int j = 0; j < k; j++)
+      {
+         float d2 = MorphognosticDistance.kernel.distance(vector, offset, means, j * length, length);
+         if (d2 < d)
+         {
+            d       = d2;
+            nearest = j;
+         }
+      }
+      return(nearest);
+   }
+
+
+   // Number of centroids in codebook.
+   int getCodebookSize(int codebook)
+   {
+      return(centroids[codebook].length / codebookLengths[codebook]);
+   }
+
+
+   // Encode type density vector into codes at offset.
+   public void encode(float[] vector, byte[] codes, int offset)
+   {
+      for (int s = 0; s < numSubspaces; s++)
+      {
+         int                                   c      = subspaceCodebooks[s];
+         int                                   length = codebookLengths[c];
+         ConcurrentHashMap<Subvector, Integer> cache  = codeCache.get(c);
+         Subvector key  = new Subvector(vector, subspaceOffsets[s], length);
+         Integer   code = cache.get(key);
+         if (code == null)
+         {
+            code = nearest(vector, subspaceOffsets[s], centroids[c], getCodebookSize(c), length);
+            if (cache.size() < MAX_TRAINING_SUBVECTORS)
+            {
+               cache.putIfAbsent(key.copy(), code);
+            }
+         }
+         codes[offset + s] = (byte)(int)code;
+      }
+   }
+
+
+   // Decode codes at offset into type density vector.
+   public float[] decode(byte[] codes, int offset, float[] vector)
+   {
+      for (int s = 0; s < numSubspaces; s++)
+      {
+         int c      = subspaceCodebooks[s];
+         int length = codebookLengths[c];
+         System.arraycopy(centroids[c], (codes[offset + s] & 0xff) * length,
+                          vector, subspaceOffsets[s], length);
+      }
+      return(vector);
+   }
+
+
+   // Get vector length.
+   public int getVectorLength()
+   {
+      return(offsets[offsets.length - 1]);
+   }
+
+
+   // Create metamorph from codes at offset.
+   public Metamorph createMetamorph(byte[] codes, int offset, int orientation,
+                                    int response, String responseName)
+   {
+      float[] vector = decode(codes, offset, new float[getVectorLength()]);
+
+      return(new Metamorph(new FrozenMorphognostic(layout, orientation, vector), response, responseName));
+   }
+
+
+   // Get query distance table: distance of each north query subvector to each centroid.
+   public float[] getDistanceTable(MetamorphStore.Query query, float[] table)
+   {
+      float[] vector = query.rotations[Orientation.NORTH];
+
+      for (int s = 0; s < numSubspaces; s++)
+      {
+         int c      = subspaceCodebooks[s];
+         int length = codebookLengths[c];
+         for (int j = 0, k = getCodebookSize(c); j < k; j++)
+         {
+            table[(s * MAX_CENTROIDS) + j] =
+               MorphognosticDistance.kernel.distance(vector, subspaceOffsets[s], centroids[c], j * length, length);
+         }
+      }
+      return(table);
+   }
+
+
+   // Get distance table size.
+   public int getDistanceTableSize()
+   {
+      return(numSubspaces * MAX_CENTROIDS);
+   }
+
+
+   // Distance of query in orientation from codes at offset using distance table.
+   public float distance(float[] table, int orientation, byte[] codes, int offset)
+   {
+      int[] rotation = rotations[orientation];
+      float d        = 0.0f;
+
+      for (int s = 0; s < numSubspaces; s++)
+      {
+         d += table[(rotation[s] * MAX_CENTROIDS) + (codes[offset + s] & 0xff)];
+      }
+      return(d);
+   }
+}
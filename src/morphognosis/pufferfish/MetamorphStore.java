@@ -0,0 +1,1342 @@
+// For conditions of distribution and use, see copyright notice in Main.java
+
+// Metamorph store.
+// Learned metamorphs with their type densities cached as flattened vectors,
+// searched with a query morphognostic flattened once for every orientation.
+// Metamorphs are stored with frozen morphognostics sharing the cached vectors.
+// A store can be bounded to a capacity, evicting metamorphs by how recently or
+// frequently they were matched, kept in a heap, or merging new metamorphs into
+// nearest duplicates, averaging their densities weighted by match counts.
+// A store can be compacted to product quantized codes, keeping only the codes,
+// orientation and response of each metamorph; metamorphs are then recreated
+// from their codes on access, with approximate densities and cleared events.
+// A store can be made read-only and shared by overlay stores, each holding its own
+// metamorphs after the shared ones: indexes, search order and random tie breaking
+// are those of a single store with the shared metamorphs followed by its own.
+// Full stores can be searched while a metamorph is added unless equivalent, by
+// any number of threads: searches read metamorphs published before they start,
+// and additions are serialized, checking only metamorphs added during their search.
+
+package morphognosis.pufferfish;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.stream.IntStream;
+import morphognosis.Metamorph;
+import morphognosis.Morphognostic;
+import morphognosis.Orientation;
+
+public class MetamorphStore implements Iterable<Metamorph>
+{
+   // Metamorphs and their flattened type densities.
+   AppendList<Metamorph>      metamorphs;
+   AppendList<float[]>        vectors;
+   FrozenMorphognostic.Layout layout;
+
+   // Neighborhood search order: most discriminative first.
+   // Determined by type density variance over the stored vectors.
+   volatile int[] searchOrder;
+   int            searchOrderSize;
+   int[]    offsets;
+   double[] densitySums;
+   double[] densitySquares;
+
+   // Approximate search index, or null.
+   MetamorphIndex index;
+
+   // Compact metamorphs: quantizer, or null if not compact, and codes,
+   // orientations and responses.
+   MetamorphQuantizer quantizer;
+   byte[]             codes;
+   byte[]             orientations;
+   int[]              responses;
+   String[]           responseNames;
+   int                compactSize;
+
+   // Capacity, or 0 if unbounded, and eviction policy.
+   public enum EVICTION_POLICY
+   {
+      LEAST_RECENTLY_MATCHED,
+      LEAST_FREQUENTLY_MATCHED,
+      MERGE_NEAREST_DUPLICATE
+   }
+   int             capacity;
+   EVICTION_POLICY evictionPolicy = EVICTION_POLICY.LEAST_FREQUENTLY_MATCHED;
+
+   // Match counts and times of last match or insertion.
+   int[]  matches;
+   long[] matchTimes;
+   long   matchClock;
+
+   // Eviction heap of own metamorph indexes, next to evict first, and the position
+   // of each index in it; built when first evicting.
+   int[] evictionHeap;
+   int[] evictionPositions;
+   int   evictionHeapSize;
+
+   // Eviction statistics.
+   public int evictions;
+   public int merges;
+
+   // Read-only: metamorphs cannot be added, and matches are not recorded.
+   boolean readOnly;
+
+   // Shared read-only metamorphs preceding those of an overlay store, or null.
+   MetamorphStore shared;
+   int            sharedSize;
+
+   // Stores with at least this many metamorphs are searched in parallel chunks.
+   public static int PARALLEL_SEARCH_THRESHOLD = 20000;
+
+   // Minimum parallel search chunk size.
+   public static final int MIN_SEARCH_CHUNK_SIZE = 1000;
+
+   // Query: morphognostic flattened for each orientation.
+   public static class Query
+   {
+      public float[][] rotations;
+      public int[]     offsets;
+
+      // Set query from morphognostic.
+      // The morphognostic is not modified.
+      public void set(Morphognostic morphognostic)
+      {
+         if (offsets == null)
+         {
+            offsets   = MorphognosticDistance.getNeighborhoodOffsets(morphognostic);
+            rotations = new float[Orientation.NUM_ORIENTATIONS][offsets[offsets.length - 1]];
+         }
+         for (int i = 0; i < Orientation.NUM_ORIENTATIONS; i++)
+         {
+            MorphognosticDistance.flatten(morphognostic, i, rotations[i]);
+         }
+      }
+
+
+      // Set query from type densities rectified to orientation.
+      public void set(float[] vector, int orientation, FrozenMorphognostic.Layout layout)
+      {
+         if (offsets == null)
+         {
+            offsets   = layout.offsets.clone();
+            rotations = new float[Orientation.NUM_ORIENTATIONS][layout.getVectorLength()];
+         }
+         for (int i = 0; i < Orientation.NUM_ORIENTATIONS; i++)
+         {
+            layout.rotate(vector, orientation, i, rotations[i]);
+         }
+      }
+   }
+
+   // Constructor.
+   public MetamorphStore()
+   {
+      metamorphs = new AppendList<Metamorph>();
+      vectors    = new AppendList<float[]>();
+   }
+
+
+   // Constructor: overlay of shared read-only metamorphs.
+   public MetamorphStore(MetamorphStore shared)
+   {
+      this();
+      if (!shared.readOnly)
+      {
+         throw new IllegalArgumentException("Shared metamorph store must be read-only");
+      }
+      this.shared = shared;
+      sharedSize  = shared.size();
+      layout      = shared.layout;
+   }
+
+
+   // Size.
+   public int size()
+   {
+      return(sharedSize + ownSize());
+   }
+
+
+   // Size excluding shared metamorphs.
+   int ownSize()
+   {
+      return((quantizer != null) ? compactSize : metamorphs.size());
+   }
+
+
+   // Get shared metamorphs, or null.
+   public MetamorphStore getShared()
+   {
+      return(shared);
+   }
+
+
+   // Make store read-only, so that it can be shared by overlay stores and searched
+   // concurrently.
+   public void setReadOnly()
+   {
+      if ((offsets != null) && (vectors.size() > 0))
+      {
+         searchOrder = null;
+         getSearchOrder();
+      }
+      readOnly = true;
+   }
+
+
+   // Is store read-only?
+   public boolean isReadOnly()
+   {
+      return(readOnly);
+   }
+
+
+   // Check store can be modified.
+   void checkWritable()
+   {
+      if (readOnly)
+      {
+         throw new UnsupportedOperationException("Metamorph store is read-only");
+      }
+   }
+
+
+   // Get metamorph.
+   public Metamorph get(int index)
+   {
+      if (index < sharedSize)
+      {
+         return(shared.get(index));
+      }
+      index -= sharedSize;
+      if (quantizer != null)
+      {
+         if ((index < 0) || (index >= compactSize))
+         {
+            throw new IndexOutOfBoundsException("Metamorph index " + index + " out of bounds");
+         }
+         return(quantizer.createMetamorph(codes, index * quantizer.numSubspaces, orientations[index],
+                                          responses[index], responseNames[index]));
+      }
+      return(metamorphs.get(index));
+   }
+
+
+   // Get metamorph response.
+   public int getResponse(int index)
+   {
+      if (index < sharedSize)
+      {
+         return(shared.getResponse(index));
+      }
+      index -= sharedSize;
+      return((quantizer != null) ? responses[index] : metamorphs.get(index).response);
+   }
+
+
+   // Get metamorph type density vector.
+   public float[] getVector(int index)
+   {
+      if (index < sharedSize)
+      {
+         return(shared.getVector(index));
+      }
+      index -= sharedSize;
+      if (quantizer != null)
+      {
+         return(quantizer.decode(codes, index * quantizer.numSubspaces,
+                                 new float[quantizer.getVectorLength()]));
+      }
+      return(vectors.get(index));
+   }
+
+
+   // Iterate metamorphs.
+   public Iterator<Metamorph> iterator()
+   {
+      if ((quantizer != null) || (shared != null))
+      {
+         return(new Iterator<Metamorph>()
+                {
+                   int next = 0;
+
+                   public boolean hasNext()
+                   {
+                      return(next < size());
+                   }
+
+
+                   public Metamorph next()
+                   {
+                      if (next >= size())
+                      {
+                         throw new NoSuchElementException();
+                      }
+                      return(get(next++));
+                   }
+                });
+      }
+      return(Collections.unmodifiableList(metamorphs).iterator());
+   }
+
+
+   // Add metamorph.
+   public void add(Metamorph metamorph)
+   {
+      add(metamorph, MorphognosticDistance.flatten(metamorph.morphognostic));
+   }
+
+
+   // Add metamorph with its flattened type densities.
+   // The metamorph is stored with a frozen morphognostic sharing the vector,
+   // which must not be modified.
+   // A store at capacity evicts a metamorph to make room for it, or merges it
+   // into its nearest duplicate. The capacity of an overlay store bounds its own
+   // metamorphs, which alone are evicted.
+   public void add(Metamorph metamorph, float[] vector)
+   {
+      checkWritable();
+      if (layout == null)
+      {
+         if (metamorph.morphognostic instanceof FrozenMorphognostic)
+         {
+            layout = ((FrozenMorphognostic)metamorph.morphognostic).layout;
+         }
+         else
+         {
+            layout = new FrozenMorphognostic.Layout(metamorph.morphognostic);
+         }
+      }
+      int m = ownSize();
+      if ((capacity > 0) && (m >= capacity))
+      {
+         if ((evictionPolicy == EVICTION_POLICY.MERGE_NEAREST_DUPLICATE) && merge(metamorph, vector))
+         {
+            merges++;
+            return;
+         }
+         m = getEvictionIndex();
+         evictions++;
+      }
+      set(m, metamorph, vector);
+   }
+
+
+   // Set own metamorph at index, appending at index equal to size.
+   void set(int m, Metamorph metamorph, float[] vector)
+   {
+      boolean append = (m == ownSize());
+
+      if (quantizer != null)
+      {
+         if (append)
+         {
+            if (compactSize == responses.length)
+            {
+               growCompact(compactSize * 2);
+            }
+            compactSize++;
+         }
+         quantizer.encode(vector, codes, m * quantizer.numSubspaces);
+         orientations[m]  = (byte)metamorph.morphognostic.orientation;
+         responses[m]     = metamorph.response;
+         responseNames[m] = metamorph.responseName.intern();
+      }
+      else
+      {
+         if (!(metamorph.morphognostic instanceof FrozenMorphognostic) ||
+             (((FrozenMorphognostic)metamorph.morphognostic).vector != vector))
+         {
+            metamorph = new Metamorph(new FrozenMorphognostic(layout, metamorph.morphognostic.orientation, vector),
+                                      metamorph.response, metamorph.responseName);
+         }
+         if (offsets == null)
+         {
+            offsets        = layout.offsets;
+            densitySums    = new double[vector.length];
+            densitySquares = new double[vector.length];
+         }
+         if (append)
+         {
+            vectors.add(vector);
+            metamorphs.add(metamorph);
+         }
+         else
+         {
+            float[] evicted = vectors.get(m);
+            if (index != null)
+            {
+               index.remove(m, evicted);
+            }
+            for (int i = 0; i < evicted.length; i++)
+            {
+               densitySums[i]    -= evicted[i];
+               densitySquares[i] -= evicted[i] * evicted[i];
+            }
+            vectors.set(m, vector);
+            metamorphs.set(m, metamorph);
+         }
+         if (index != null)
+         {
+            index.add(m, vector);
+         }
+         for (int i = 0; i < vector.length; i++)
+         {
+            densitySums[i]    += vector[i];
+            densitySquares[i] += vector[i] * vector[i];
+         }
+      }
+      if ((matches == null) || (m >= matches.length))
+      {
+         int n = Math.max(16, (m + 1) * 2);
+         matches    = (matches == null) ? new int[n] : Arrays.copyOf(matches, n);
+         matchTimes = (matchTimes == null) ? new long[n] : Arrays.copyOf(matchTimes, n);
+      }
+      matches[m]    = 0;
+      matchTimes[m] = matchClock++;
+      updateEviction(m);
+   }
+
+
+   // Record match of metamorph.
+   public synchronized void recordMatch(int index)
+   {
+      index -= sharedSize;
+      if (readOnly || (index < 0)) { return; }
+      matches[index]++;
+      matchTimes[index] = matchClock++;
+      updateEviction(index);
+   }
+
+
+   // Get metamorph match count.
+   public int getMatches(int index)
+   {
+      if (index < sharedSize)
+      {
+         return(shared.getMatches(index));
+      }
+      return(matches[index - sharedSize]);
+   }
+
+
+   // Set capacity, 0 for unbounded, and eviction policy.
+   // Metamorphs beyond a reduced capacity are kept until replaced.
+   public void setCapacity(int capacity, EVICTION_POLICY evictionPolicy)
+   {
+      this.capacity       = capacity;
+      this.evictionPolicy = evictionPolicy;
+      evictionHeap        = null;
+   }
+
+
+   // Get capacity.
+   public int getCapacity()
+   {
+      return(capacity);
+   }
+
+
+   // Get eviction policy.
+   public EVICTION_POLICY getEvictionPolicy()
+   {
+      return(evictionPolicy);
+   }
+
+
+   // Merge metamorph into its nearest duplicate, a nearest metamorph with the same
+   // response, returning whether merged.
+   // The densities of an own duplicate become the average of its densities and those
+   // of the metamorph in the nearest orientation, weighted by its match count plus
+   // one and one, and the metamorph is counted as a match. A shared duplicate is
+   // not modified: the metamorph is dropped.
+   boolean merge(Metamorph metamorph, float[] vector)
+   {
+      Query query = new Query();
+
+      query.set(vector, metamorph.morphognostic.orientation, layout);
+      int nearest = findNearest(query);
+      if ((nearest == -1) || (getResponse(nearest) != metamorph.response)) { return(false); }
+      int m = nearest - sharedSize;
+      if (m < 0) { return(true); }
+      Metamorph duplicate = get(nearest);
+      float[]   densities = getVector(nearest);
+      float[]   rotation  = query.rotations[0];
+      float     distance  = MorphognosticDistance.compare(densities, rotation, layout.offsets);
+      for (int i = 1; i < Orientation.NUM_ORIENTATIONS; i++)
+      {
+         float d = MorphognosticDistance.compare(densities, query.rotations[i], layout.offsets);
+         if (d < distance)
+         {
+            distance = d;
+            rotation = query.rotations[i];
+         }
+      }
+      int     count  = matches[m];
+      float   weight = (float)(count + 1);
+      float[] merged = new float[densities.length];
+      for (int i = 0; i < merged.length; i++)
+      {
+         merged[i] = ((densities[i] * weight) + rotation[i]) / (weight + 1.0f);
+      }
+      set(m, new Metamorph(new FrozenMorphognostic(layout, duplicate.morphognostic.orientation, merged),
+                           duplicate.response, duplicate.responseName), merged);
+      matches[m] = count + 1;
+      updateEviction(m);
+      return(true);
+   }
+
+
+   // Get index of own metamorph to evict: the least frequently matched metamorph,
+   // the least recently matched or inserted among ties, unless evicting the least
+   // recently matched.
+   int getEvictionIndex()
+   {
+      if (evictionHeap == null)
+      {
+         int n = ownSize();
+         evictionHeap      = new int[matches.length];
+         evictionPositions = new int[matches.length];
+         evictionHeapSize  = n;
+         for (int m = 0; m < n; m++)
+         {
+            evictionHeap[m]      = m;
+            evictionPositions[m] = m;
+         }
+         for (int i = (n / 2) - 1; i >= 0; i--)
+         {
+            siftEvictionDown(i);
+         }
+      }
+      return(evictionHeap[0]);
+   }
+
+
+   // Update eviction heap for changed or appended own metamorph.
+   void updateEviction(int m)
+   {
+      if (evictionHeap == null) { return; }
+      if (m >= evictionHeapSize)
+      {
+         if (evictionHeapSize == evictionHeap.length)
+         {
+            evictionHeap      = Arrays.copyOf(evictionHeap, Math.max(16, evictionHeapSize * 2));
+            evictionPositions = Arrays.copyOf(evictionPositions, evictionHeap.length);
+         }
+         evictionHeap[evictionHeapSize] = m;
+         evictionPositions[m]           = evictionHeapSize++;
+      }
+      siftEvictionUp(evictionPositions[m]);
+      siftEvictionDown(evictionPositions[m]);
+   }
+
+
+   // Is metamorph a to be evicted before metamorph b?
+   boolean evictsBefore(int a, int b)
+   {
+      if (evictionPolicy == EVICTION_POLICY.LEAST_RECENTLY_MATCHED)
+      {
+         return(matchTimes[a] < matchTimes[b]);
+      }
+      return((matches[a] < matches[b]) ||
+             ((matches[a] == matches[b]) && (matchTimes[a] < matchTimes[b])));
+   }
+
+
+   // Sift eviction heap entry up.
+   void siftEvictionUp(int i)
+   {
+      while (i > 0)
+      {
+         int parent = (i - 1) / 2;
+         if (!evictsBefore(evictionHeap[i], evictionHeap[parent])) { break; }
+         swapEviction(i, parent);
+         i = parent;
+      }
+   }
+
+
+   // Sift eviction heap entry down.
+   void siftEvictionDown(int i)
+   {
+      while (true)
+      {
+         int least = i;
+         int left  = (2 * i) + 1;
+         int right = left + 1;
+         if ((left < evictionHeapSize) && evictsBefore(evictionHeap[left], evictionHeap[least]))
+         {
+            least = left;
+         }
+         if ((right < evictionHeapSize) && evictsBefore(evictionHeap[right], evictionHeap[least]))
+         {
+            least = right;
+         }
+         if (least == i) { break; }
+         swapEviction(i, least);
+         i = least;
+      }
+   }
+
+
+   // Swap eviction heap entries.
+   void swapEviction(int i, int j)
+   {
+      int a = evictionHeap[i];
+      int b = evictionHeap[j];
+
+      evictionHeap[i]      = b;
+      evictionHeap[j]      = a;
+      evictionPositions[b] = i;
+      evictionPositions[a] = j;
+   }
+
+
+   // Copy metamorphs, including shared metamorphs, sharing their type densities.
+   public MetamorphStore copy()
+   {
+      MetamorphStore copy = new MetamorphStore();
+
+      for (int m = 0, n = size(); m < n; m++)
+      {
+         copy.add(get(m), getVector(m));
+      }
+      return(copy);
+   }
+
+
+   // Get read-only snapshot of the metamorphs stored now, which another thread can
+   // read while this store is modified.
+   // Unbounded stores only append, so the snapshot records their size, sharing the
+   // metamorphs; bounded stores replace metamorphs in place, so theirs are copied.
+   public MetamorphStore getSnapshot()
+   {
+      MetamorphStore snapshot = new MetamorphStore();
+
+      snapshot.shared     = shared;
+      snapshot.sharedSize = sharedSize;
+      snapshot.layout     = layout;
+      snapshot.readOnly   = true;
+      if (quantizer != null)
+      {
+         snapshot.quantizer   = quantizer;
+         snapshot.compactSize = compactSize;
+         if (capacity == 0)
+         {
+            snapshot.codes         = codes;
+            snapshot.orientations  = orientations;
+            snapshot.responses     = responses;
+            snapshot.responseNames = responseNames;
+         }
+         else
+         {
+            snapshot.codes         = Arrays.copyOf(codes, compactSize * quantizer.numSubspaces);
+            snapshot.orientations  = Arrays.copyOf(orientations, compactSize);
+            snapshot.responses     = Arrays.copyOf(responses, compactSize);
+            snapshot.responseNames = Arrays.copyOf(responseNames, compactSize);
+         }
+      }
+      else if (capacity == 0)
+      {
+         snapshot.metamorphs = metamorphs.head();
+         snapshot.vectors    = vectors.head();
+      }
+      else
+      {
+         snapshot.metamorphs.addAll(metamorphs);
+         snapshot.vectors.addAll(vectors);
+      }
+      return(snapshot);
+   }
+
+
+   // Clear.
+   // A compact store reverts to full metamorphs, and an overlay store no longer
+   // shares metamorphs; capacity and eviction policy are kept.
+   public void clear()
+   {
+      checkWritable();
+      metamorphs.clear();
+      vectors.clear();
+      offsets         = null;
+      searchOrder     = null;
+      searchOrderSize = 0;
+      if (index != null)
+      {
+         index.clear();
+      }
+      matches       = null;
+      matchTimes    = null;
+      matchClock    = 0;
+      evictionHeap  = null;
+      evictions     = 0;
+      merges        = 0;
+      layout        = null;
+      quantizer     = null;
+      codes         = null;
+      orientations  = null;
+      responses     = null;
+      responseNames = null;
+      compactSize   = 0;
+      shared        = null;
+      sharedSize    = 0;
+   }
+
+
+   // Is store compact?
+   public boolean isCompact()
+   {
+      return(quantizer != null);
+   }
+
+
+   // Compact store to product quantized codes with the given number of centroids
+   // per codebook, trained on the stored metamorphs.
+   // Metamorphs added later are encoded with the same codebooks.
+   // An overlay store compacts only its own metamorphs.
+   public void compact(int numCentroids, SecureRandom random)
+   {
+      checkWritable();
+      if ((quantizer != null) || (metamorphs.size() == 0)) { return; }
+      MetamorphQuantizer q = new MetamorphQuantizer(layout, vectors, numCentroids, random);
+      int                n = metamorphs.size();
+      codes         = new byte[n * q.numSubspaces];
+      orientations  = new byte[n];
+      responses     = new int[n];
+      responseNames = new String[n];
+      IntStream.range(0, n).parallel().forEach(m -> q.encode(vectors.get(m), codes, m * q.numSubspaces));
+      for (int m = 0; m < n; m++)
+      {
+         Metamorph metamorph = metamorphs.get(m);
+         orientations[m]  = (byte)metamorph.morphognostic.orientation;
+         responses[m]     = metamorph.response;
+         responseNames[m] = metamorph.responseName.intern();
+      }
+      quantizer   = q;
+      compactSize = n;
+      metamorphs  = new AppendList<Metamorph>();
+      vectors     = new AppendList<float[]>();
+      offsets     = null;
+      searchOrder = null;
+      if (index != null)
+      {
+         index.clear();
+      }
+   }
+
+
+   // Grow compact arrays to capacity.
+   void growCompact(int capacity)
+   {
+      capacity      = Math.max(capacity, 16);
+      codes         = Arrays.copyOf(codes, capacity * quantizer.numSubspaces);
+      orientations  = Arrays.copyOf(orientations, capacity);
+      responses     = Arrays.copyOf(responses, capacity);
+      responseNames = Arrays.copyOf(responseNames, capacity);
+   }
+
+
+   // Get approximate search index.
+   public MetamorphIndex getIndex()
+   {
+      return(index);
+   }
+
+
+   // Set approximate search index, indexing stored metamorphs.
+   // A compact store is not indexed.
+   public void setIndex(MetamorphIndex index)
+   {
+      checkWritable();
+      this.index = index;
+      if (index != null)
+      {
+         index.clear();
+         for (int m = 0, n = vectors.size(); m < n; m++)
+         {
+            index.add(m, vectors.get(m));
+         }
+      }
+   }
+
+
+   // Get neighborhood search order, updated as the store grows.
+   int[] getSearchOrder()
+   {
+      int   n     = vectors.size();
+      int[] order = searchOrder;
+
+      if ((order != null) && (n < searchOrderSize * 2) && (n < searchOrderSize + 1000))
+      {
+         return(order);
+      }
+      int      numNeighborhoods = offsets.length - 1;
+      double[] variances        = new double[numNeighborhoods];
+      for (int i = 0; i < numNeighborhoods; i++)
+      {
+         for (int j = offsets[i]; j < offsets[i + 1]; j++)
+         {
+            double mean = densitySums[j] / (double)n;
+            variances[i] += (densitySquares[j] / (double)n) - (mean * mean);
+         }
+      }
+      order = new int[numNeighborhoods];
+      for (int i = 0; i < numNeighborhoods; i++)
+      {
+         int k = i;
+         while ((k > 0) && (variances[order[k - 1]] < variances[i]))
+         {
+            order[k] = order[k - 1];
+            k--;
+         }
+         order[k] = i;
+      }
+      searchOrderSize = n;
+      searchOrder     = order;
+      return(order);
+   }
+
+
+   // Find index of metamorph within distance of query in any orientation, or -1.
+   // Compact metamorphs are compared with the query using a query distance table.
+   // Shared metamorphs are searched first.
+   public int findEquivalent(Query query, float distance)
+   {
+      return(findEquivalent(query, distance, 0, ownSize()));
+   }
+
+
+   // Find index of metamorph within distance of query among own metamorphs from start
+   // to end, after shared metamorphs if starting at 0, or -1.
+   int findEquivalent(Query query, float distance, int start, int end)
+   {
+      if ((shared != null) && (start == 0))
+      {
+         int m = shared.findEquivalent(query, distance);
+         if (m != -1) { return(m); }
+      }
+      if (start >= end) { return(-1); }
+      RangeSearch<Integer> search;
+      if (quantizer != null)
+      {
+         float[] table = quantizer.getDistanceTable(query, new float[quantizer.getDistanceTableSize()]);
+         search = (from, to) -> findEquivalent(table, distance, from, to);
+      }
+      else
+      {
+         int[] order = getSearchOrder();
+         search = (from, to) -> findEquivalent(query, distance, order, from, to);
+      }
+      for (int m : search(search, start, end))
+      {
+         if (m != -1) { return(sharedSize + m); }
+      }
+      return(-1);
+   }
+
+
+   // Add metamorph unless a metamorph within distance of query, its morphognostic
+   // in all orientations, is stored, returning the index of that metamorph, counted
+   // as matched, or -1 if added. The vector of the query in the orientation of the
+   // morphognostic is copied.
+   // Safe for concurrent use with searches and other additions: metamorphs stored
+   // before the search are searched without locking, then those added during it.
+   // A bounded, compact or indexed store searches entirely while locked.
+   public int addIfNotEquivalent(Metamorph metamorph, Query query, float distance)
+   {
+      int from = 0;
+      int m    = -1;
+
+      if ((capacity == 0) && (quantizer == null) && (index == null))
+      {
+         from = ownSize();
+         m    = findEquivalent(query, distance, 0, from);
+      }
+      synchronized (this)
+      {
+         if (m == -1)
+         {
+            m = findEquivalent(query, distance, from, ownSize());
+            if (m == -1)
+            {
+               add(metamorph, query.rotations[metamorph.morphognostic.orientation].clone());
+               return(-1);
+            }
+         }
+         recordMatch(m);
+      }
+      return(m);
+   }
+
+
+   // Find index of metamorph within distance of query in range, or -1.
+   int findEquivalent(Query query, float distance, int[] order, int from, int to)
+   {
+      float[] distances = new float[order.length];
+      for (int m = from; m < to; m++)
+      {
+         float[] vector = vectors.get(m);
+         for (int i = 0; i < Orientation.NUM_ORIENTATIONS; i++)
+         {
+            if (MorphognosticDistance.compare(vector, query.rotations[i], query.offsets,
+                                              order, distance, distances) <= distance)
+            {
+               return(m);
+            }
+         }
+      }
+      return(-1);
+   }
+
+
+   // Find index of compact metamorph within distance of query in range using
+   // query distance table, or -1.
+   int findEquivalent(float[] table, float distance, int from, int to)
+   {
+      int n = quantizer.numSubspaces;
+
+      for (int m = from; m < to; m++)
+      {
+         for (int i = 0; i < Orientation.NUM_ORIENTATIONS; i++)
+         {
+            if (quantizer.distance(table, i, codes, m * n) <= distance)
+            {
+               return(m);
+            }
+         }
+      }
+      return(-1);
+   }
+
+
+   // Find index of nearest metamorph to query in any orientation, or -1 if store is empty.
+   // Ties are broken randomly as metamorphs are scanned.
+   // Candidates are abandoned once they must be farther than the nearest so far,
+   // which neither matches nor ties, so results and random draws are unchanged.
+   // Large stores are scanned in parallel chunks, each recording the candidates that
+   // were nearest or tied so far within it; replaying these in chunk order reproduces
+   // the sequential scan, including its random draws.
+   // Compact metamorphs are compared using a query distance table.
+   public int findNearest(Query query, SecureRandom random)
+   {
+      if (size() == 0) { return(-1); }
+      Candidates nearest = null;
+      for (Candidates candidates : getNearestCandidates(query))
+      {
+         nearest = candidates.replay(nearest, random);
+      }
+      return(nearest.nearest);
+   }
+
+
+   // Find index of nearest metamorph to query in any orientation, the first of any
+   // ties, or -1 if store is empty.
+   public int findNearest(Query query)
+   {
+      int   nearest  = -1;
+      float distance = 0.0f;
+
+      if (size() == 0) { return(-1); }
+      for (Candidates candidates : getNearestCandidates(query))
+      {
+         if (candidates.size > 0)
+         {
+            float d = candidates.distances[candidates.size - 1];
+            if ((nearest == -1) || (d < distance))
+            {
+               int i = 0;
+               while (candidates.distances[i] != d)
+               {
+                  i++;
+               }
+               nearest  = candidates.indexes[i];
+               distance = d;
+            }
+         }
+      }
+      return(nearest);
+   }
+
+
+   // Get nearest candidates to query in chunk order, after those of shared metamorphs.
+   ArrayList<Candidates> getNearestCandidates(Query query)
+   {
+      ArrayList<Candidates> candidates;
+
+      if (shared != null)
+      {
+         candidates = shared.getNearestCandidates(query);
+      }
+      else
+      {
+         candidates = new ArrayList<Candidates>();
+      }
+      if (ownSize() > 0)
+      {
+         for (Candidates chunk : search(getNearestSearch(query)))
+         {
+            candidates.add(chunk.offset(sharedSize));
+         }
+      }
+      return(candidates);
+   }
+
+
+   // Get nearest candidates search for query.
+   RangeSearch<Candidates> getNearestSearch(Query query)
+   {
+      if (quantizer != null)
+      {
+         float[] table = quantizer.getDistanceTable(query, new float[quantizer.getDistanceTableSize()]);
+         return((from, to) -> findNearest(table, from, to));
+      }
+      else
+      {
+         int[] order = getSearchOrder();
+         return((from, to) -> findNearest(query, order, from, to));
+      }
+   }
+
+
+   // Find indexes of nearest metamorphs to a batch of queries, each as by findNearest
+   // with its random numbers, or -1 if store is empty.
+   // Metamorphs are scanned in the outer loop and queries in the inner loop, so each
+   // metamorph is read once for the batch.
+   public int[] findNearest(Query[] queries, SecureRandom[] randoms, int count, int[] results)
+   {
+      if (size() == 0)
+      {
+         Arrays.fill(results, 0, count, -1);
+         return(results);
+      }
+      ArrayList<Candidates[]> chunks = getNearestCandidates(queries, count);
+      for (int q = 0; q < count; q++)
+      {
+         Candidates nearest = null;
+         for (Candidates[] candidates : chunks)
+         {
+            nearest = candidates[q].replay(nearest, randoms[q]);
+         }
+         results[q] = nearest.nearest;
+      }
+      return(results);
+   }
+
+
+   // Get nearest candidates to batch of queries in chunk order, after those of
+   // shared metamorphs.
+   ArrayList<Candidates[]> getNearestCandidates(Query[] queries, int count)
+   {
+      ArrayList<Candidates[]> candidates;
+
+      if (shared != null)
+      {
+         candidates = shared.getNearestCandidates(queries, count);
+      }
+      else
+      {
+         candidates = new ArrayList<Candidates[]>();
+      }
+      if (ownSize() > 0)
+      {
+         for (Candidates[] chunk : search(getNearestSearch(queries, count)))
+         {
+            for (int q = 0; q < count; q++)
+            {
+               chunk[q].offset(sharedSize);
+            }
+            candidates.add(chunk);
+         }
+      }
+      return(candidates);
+   }
+
+
+   // Get nearest candidates search for batch of queries.
+   RangeSearch<Candidates[]> getNearestSearch(Query[] queries, int count)
+   {
+      if (quantizer != null)
+      {
+         float[][] tables = new float[count][];
+         for (int q = 0; q < count; q++)
+         {
+            tables[q] = quantizer.getDistanceTable(queries[q], new float[quantizer.getDistanceTableSize()]);
+         }
+         return((from, to) -> findNearest(tables, count, from, to));
+      }
+      else
+      {
+         int[] order = getSearchOrder();
+         return((from, to) -> findNearest(queries, count, order, from, to));
+      }
+   }
+
+
+   // Find index of approximate nearest metamorph to query using the index, or -1.
+   // Only metamorphs sharing an index bucket with the query are compared,
+   // in store order with ties broken randomly as by findNearest.
+   // Falls back to exact search if there is no index or no candidate, or for an
+   // overlay store.
+   public int findApproximateNearest(Query query, SecureRandom random)
+   {
+      if ((index == null) || (quantizer != null) || (shared != null)) { return(findNearest(query, random)); }
+      BitSet candidates = index.getCandidates(query);
+      if (candidates.isEmpty()) { return(findNearest(query, random)); }
+      int[]      order     = getSearchOrder();
+      float[]    distances = new float[order.length];
+      Candidates nearest   = new Candidates();
+      for (int m = candidates.nextSetBit(0); m >= 0; m = candidates.nextSetBit(m + 1))
+      {
+         nearest.scan(query, m, order, distances);
+      }
+      return(nearest.replay(null, random).nearest);
+   }
+
+
+   // Nearest candidates in scan order: each was nearer than or tied with all before it.
+   class Candidates
+   {
+      int[]   indexes   = new int[8];
+      float[] distances = new float[8];
+      int     size;
+      int     nearest = -1;
+      float   distance;
+
+      // Add candidate.
+      void add(int index, float distance)
+      {
+         if (size == indexes.length)
+         {
+            indexes   = Arrays.copyOf(indexes, size * 2);
+            distances = Arrays.copyOf(distances, size * 2);
+         }
+         indexes[size]   = index;
+         distances[size] = distance;
+         size++;
+      }
+
+
+      // Compare query with metamorph in each orientation,
+      // adding it while nearer than or tied with the candidates so far.
+      void scan(Query query, int m, int[] order, float[] scratch)
+      {
+         float[] vector = vectors.get(m);
+         for (int i = 0; i < Orientation.NUM_ORIENTATIONS; i++)
+         {
+            float limit = (size == 0) ? Float.MAX_VALUE : distances[size - 1];
+            float d     = MorphognosticDistance.compare(query.rotations[i], vector, query.offsets,
+                                                        order, limit, scratch);
+            if ((size == 0) || (d <= limit))
+            {
+               add(m, d);
+            }
+         }
+      }
+
+
+      // Compare query distance table with compact metamorph in each orientation.
+      void scan(float[] table, int m)
+      {
+         for (int i = 0; i < Orientation.NUM_ORIENTATIONS; i++)
+         {
+            float d = quantizer.distance(table, i, codes, m * quantizer.numSubspaces);
+            if ((size == 0) || (d <= distances[size - 1]))
+            {
+               add(m, d);
+            }
+         }
+      }
+
+
+      // Offset candidate indexes.
+      Candidates offset(int n)
+      {
+         for (int i = 0; i < size; i++)
+         {
+            indexes[i] += n;
+         }
+         return(this);
+      }
+
+
+      // Replay candidates after those of previous, breaking ties randomly.
+      Candidates replay(Candidates previous, SecureRandom random)
+      {
+         if (previous != null)
+         {
+            nearest  = previous.nearest;
+            distance = previous.distance;
+         }
+         for (int i = 0; i < size; i++)
+         {
+            float d2 = distances[i];
+            if ((nearest == -1) || (d2 < distance))
+            {
+               distance = d2;
+               nearest  = indexes[i];
+            }
+            else
+            {
+               if (d2 == distance)
+               {
+                  if (random.nextBoolean())
+                  {
+                     distance = d2;
+                     nearest  = indexes[i];
+                  }
+               }
+            }
+         }
+         return(this);
+      }
+   }
+
+
+   // Find nearest candidates to query in range.
+   Candidates findNearest(Query query, int[] order, int from, int to)
+   {
+      Candidates candidates = new Candidates();
+      float[]    distances  = new float[order.length];
+
+      for (int m = from; m < to; m++)
+      {
+         candidates.scan(query, m, order, distances);
+      }
+      return(candidates);
+   }
+
+
+   // Find nearest compact candidates to query distance table in range.
+   Candidates findNearest(float[] table, int from, int to)
+   {
+      Candidates candidates = new Candidates();
+
+      for (int m = from; m < to; m++)
+      {
+         candidates.scan(table, m);
+      }
+      return(candidates);
+   }
+
+
+   // Find nearest candidates to batch of queries in range.
+   Candidates[] findNearest(Query[] queries, int count, int[] order, int from, int to)
+   {
+      Candidates[] candidates = new Candidates[count];
+      float[]      distances  = new float[order.length];
+
+      for (int q = 0; q < count; q++)
+      {
+         candidates[q] = new Candidates();
+      }
+      for (int m = from; m < to; m++)
+      {
+         for (int q = 0; q < count; q++)
+         {
+            candidates[q].scan(queries[q], m, order, distances);
+         }
+      }
+      return(candidates);
+   }
+
+
+   // Find nearest compact candidates to batch of query distance tables in range.
+   Candidates[] findNearest(float[][] tables, int count, int from, int to)
+   {
+      Candidates[] candidates = new Candidates[count];
+
+      for (int q = 0; q < count; q++)
+      {
+         candidates[q] = new Candidates();
+      }
+      for (int m = from; m < to; m++)
+      {
+         for (int q = 0; q < count; q++)
+         {
+            candidates[q].scan(tables[q], m);
+         }
+      }
+      return(candidates);
+   }
+
+
+   // Search of a range of metamorphs.
+   interface RangeSearch<T>
+   {
+      public T search(int from, int to);
+   }
+
+   // Search own metamorphs in chunks, in parallel for large stores.
+   // Returns results in chunk order.
+   <T> ArrayList<T> search(RangeSearch<T> search)
+   {
+      return(search(search, 0, ownSize()));
+   }
+
+
+   // Search own metamorphs in range in chunks.
+   <T> ArrayList<T> search(RangeSearch<T> search, int from, int to)
+   {
+      int[]        chunks  = getSearchChunks(to - from);
+      ArrayList<T> results = new ArrayList<T>();
+
+      if (chunks.length == 2)
+      {
+         results.add(search.search(from, to));
+         return(results);
+      }
+      ArrayList<Callable<T> > tasks = new ArrayList<Callable<T> >();
+      for (int i = 0; i < chunks.length - 1; i++)
+      {
+         final int chunkFrom = from + chunks[i];
+         final int chunkTo   = from + chunks[i + 1];
+         tasks.add(() -> search.search(chunkFrom, chunkTo));
+      }
+      for (Future<T> result : ForkJoinPool.commonPool().invokeAll(tasks))
+      {
+         results.add(getResult(result));
+      }
+      return(results);
+   }
+
+
+   // Get search chunk boundaries.
+   static int[] getSearchChunks(int n)
+   {
+      int parallelism = ForkJoinPool.getCommonPoolParallelism();
+      int numChunks   = 1;
+
+      if ((n >= PARALLEL_SEARCH_THRESHOLD) && (parallelism > 1))
+      {
+         numChunks = Math.max(1, Math.min(parallelism * 4, n / MIN_SEARCH_CHUNK_SIZE));
+      }
+      int[] chunks = new int[numChunks + 1];
+      for (int i = 1; i <= numChunks; i++)
+      {
+         chunks[i] = (int)(((long)n * (long)i) / (long)numChunks);
+      }
+      return(chunks);
+   }
+
+
+   // Get search task result.
+   static <T> T getResult(Future<T> result)
+   {
+      try
+      {
+         return(result.get());
+      }
+      catch (Exception e)
+      {
+         throw new RuntimeException("Metamorph search failed: " + e.getMessage(), e);
+      }
+   }
+}
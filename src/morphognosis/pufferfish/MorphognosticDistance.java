@@ -0,0 +1,275 @@
+// For conditions of distribution and use, see copyright notice in Main.java
+
+// Morphognostic distance.
+// Compares morphognostics as flattened, contiguous type density vectors laid out
+// neighborhood by neighborhood in the sector order of Neighborhood.rectifySectorTypeDensities,
+// so that a distance is the same as Morphognostic.compare for every orientation.
+// The distance kernel uses the JDK vector API when the jdk.incubator.vector module
+// is present and the optional VectorDistanceKernel in src-vector is built, otherwise
+// scalar code. It is loaded by name, so the rest of the code compiles without the module.
+
+package morphognosis.pufferfish;
+
+import morphognosis.Morphognostic;
+import morphognosis.Morphognostic.Neighborhood;
+import morphognosis.Orientation;
+
+public class MorphognosticDistance
+{
+   // Distance kernel: sum of absolute differences.
+   public interface Kernel
+   {
+      public float distance(float[] a, int aOffset, float[] b, int bOffset, int length);
+   }
+
+   // Scalar kernel.
+   public static class ScalarKernel implements Kernel
+   {
+      public float distance(float[] a, int aOffset, float[] b, int bOffset, int length)
+      {
+         float d = 0.0f;
+
+         for (int i = 0; i < length; i++)
+         {
+            d += Math.abs(a[aOffset + i] - b[bOffset + i]);
+         }
+         return(d);
+      }
+   }
+
+   // Vector kernel.
+   public static final String VECTOR_MODULE       = "jdk.incubator.vector";
+   public static final String VECTOR_KERNEL_CLASS = "morphognosis.pufferfish.VectorDistanceKernel";
+
+   // Kernel in use: scalar by default, as the vector kernel sums in a different
+   // order, so that distances may differ in the last bit and break ties differently.
+   public static Kernel kernel = new ScalarKernel();
+
+   // Create kernel, vector if requested and available.
+   public static Kernel newKernel(boolean vector)
+   {
+      if (vector && ModuleLayer.boot().findModule(VECTOR_MODULE).isPresent())
+      {
+         try
+         {
+            return((Kernel)Class.forName(VECTOR_KERNEL_CLASS).getDeclaredConstructor().newInstance());
+         }
+         catch (Throwable e)
+         {
+         }
+      }
+      return(new ScalarKernel());
+   }
+
+
+   // Is vector kernel in use?
+   public static boolean isVectorKernel()
+   {
+      return(!(kernel instanceof ScalarKernel));
+   }
+
+
+   // Get neighborhood offsets into flattened vector.
+   // The last offset is the vector length.
+   public static int[] getNeighborhoodOffsets(Morphognostic morphognostic)
+   {
+      if (morphognostic instanceof FrozenMorphognostic)
+      {
+         return(((FrozenMorphognostic)morphognostic).layout.offsets.clone());
+      }
+      int[] offsets = new int[morphognostic.NUM_NEIGHBORHOODS + 1];
+      int sectorLength = 0;
+
+      for (int d = 0; d < morphognostic.eventDimensions; d++)
+      {
+         sectorLength += morphognostic.numEventTypes[d];
+      }
+      for (int i = 0; i < morphognostic.NUM_NEIGHBORHOODS; i++)
+      {
+         int n = morphognostic.neighborhoods.get(i).sectors.length;
+         offsets[i + 1] = offsets[i] + (n * n * sectorLength);
+      }
+      return(offsets);
+   }
+
+
+   // Flatten morphognostic type densities rectified to orientation.
+   // The morphognostic is not modified.
+   public static float[] flatten(Morphognostic morphognostic, int orientation, float[] vector)
+   {
+      int p = 0;
+
+      if (morphognostic instanceof FrozenMorphognostic)
+      {
+         FrozenMorphognostic frozen = (FrozenMorphognostic)morphognostic;
+         if (orientation == frozen.orientation)
+         {
+            System.arraycopy(frozen.vector, 0, vector, 0, frozen.vector.length);
+            return(vector);
+         }
+         return(frozen.layout.rotate(frozen.vector, frozen.orientation, orientation, vector));
+      }
+      for (int i = 0; i < morphognostic.NUM_NEIGHBORHOODS; i++)
+      {
+         Neighborhood.Sector[][] sectors = morphognostic.neighborhoods.get(i).sectors;
+         int n = sectors.length;
+         for (int j = 0, j2 = n * n; j < j2; j++)
+         {
+            Neighborhood.Sector s = getRectifiedSector(sectors, orientation, j);
+            for (int d = 0; d < morphognostic.eventDimensions; d++)
+            {
+               float[] densities = s.typeDensities[d];
+               for (int k = 0; k < densities.length; k++)
+               {
+                  vector[p++] = densities[k];
+               }
+            }
+         }
+      }
+      return(vector);
+   }
+
+
+   public static float[] flatten(Morphognostic morphognostic, int orientation)
+   {
+      int[] offsets = getNeighborhoodOffsets(morphognostic);
+      return(flatten(morphognostic, orientation, new float[offsets[offsets.length - 1]]));
+   }
+
+
+   public static float[] flatten(Morphognostic morphognostic)
+   {
+      return(flatten(morphognostic, morphognostic.orientation));
+   }
+
+
+   // Get sector at rectified index for orientation.
+   // See Neighborhood.rectifySectorTypeDensities.
+   public static Neighborhood.Sector getRectifiedSector(Neighborhood.Sector[][] sectors, int orientation, int index)
+   {
+      int n = sectors.length;
+      int a = index / n;
+      int b = index % n;
+
+      switch (orientation)
+      {
+      case Orientation.NORTH:
+         return(sectors[b][a]);
+
+      case Orientation.EAST:
+         return(sectors[n - 1 - a][b]);
+
+      case Orientation.SOUTH:
+         return(sectors[n - 1 - b][n - 1 - a]);
+
+      case Orientation.WEST:
+         return(sectors[a][n - 1 - b]);
+      }
+      return(null);
+   }
+
+
+   // Compare flattened vectors: sum of neighborhood distances.
+   public static float compare(float[] a, float[] b, int[] offsets)
+   {
+      float d = 0.0f;
+
+      for (int i = 0, j = offsets.length - 1; i < j; i++)
+      {
+         d += kernel.distance(a, offsets[i], b, offsets[i], offsets[i + 1] - offsets[i]);
+      }
+      return(d);
+   }
+
+
+   // Compare flattened vectors, evaluating neighborhoods in the given order and
+   // abandoning once the distance must exceed limit.
+   // Neighborhood distances are summed in offset order so that a completed
+   // comparison equals compare(a, b, offsets); since every term is non-negative,
+   // the partial sum with unevaluated neighborhoods as zero is a lower bound.
+   // Returns the distance, or a lower bound greater than limit if abandoned.
+   // distances is scratch space with a slot per neighborhood.
+   public static float compare(float[] a, float[] b, int[] offsets, int[] order,
+                               float limit, float[] distances)
+   {
+      int n = order.length;
+
+      for (int i = 0; i < n; i++)
+      {
+         distances[i] = 0.0f;
+      }
+      float d = 0.0f;
+      for (int i = 0; i < n; i++)
+      {
+         int j = order[i];
+         distances[j] = kernel.distance(a, offsets[j], b, offsets[j], offsets[j + 1] - offsets[j]);
+         d            = 0.0f;
+         for (int k = 0; k < n; k++)
+         {
+            d += distances[k];
+         }
+         if (d > limit) { break; }
+      }
+      return(d);
+   }
+
+
+   // Compare morphognostics, rectified to their orientations.
+   // Equivalent to a.compare(b).
+   public static float compare(Morphognostic a, Morphognostic b)
+   {
+      Scratch scratch = scratchBuffers.get();
+      int[] offsets   = scratch.getOffsets(a);
+      int length      = offsets[offsets.length - 1];
+
+      if (scratch.a.length < length)
+      {
+         scratch.a = new float[length];
+         scratch.b = new float[length];
+      }
+      return(compare(flatten(a, a.orientation, scratch.a),
+                     flatten(b, b.orientation, scratch.b), offsets));
+   }
+
+
+   // Per-thread scratch buffers.
+   static class Scratch
+   {
+      float[] a = new float[0];
+      float[] b = new float[0];
+      int[]   offsets;
+      int[]   numEventTypes;
+      int[]   sectorDimensions;
+
+      // Get offsets, reusing those of a morphognostic with the same layout.
+      int[] getOffsets(Morphognostic morphognostic)
+      {
+         if (morphognostic instanceof FrozenMorphognostic)
+         {
+            return(((FrozenMorphognostic)morphognostic).layout.offsets);
+         }
+         boolean same = (numEventTypes == morphognostic.numEventTypes) &&
+                        (sectorDimensions.length == morphognostic.NUM_NEIGHBORHOODS);
+
+         for (int i = 0; same && i < sectorDimensions.length; i++)
+         {
+            if (sectorDimensions[i] != morphognostic.neighborhoods.get(i).sectors.length)
+            {
+               same = false;
+            }
+         }
+         if (!same)
+         {
+            offsets          = getNeighborhoodOffsets(morphognostic);
+            numEventTypes    = morphognostic.numEventTypes;
+            sectorDimensions = new int[morphognostic.NUM_NEIGHBORHOODS];
+            for (int i = 0; i < sectorDimensions.length; i++)
+            {
+               sectorDimensions[i] = morphognostic.neighborhoods.get(i).sectors.length;
+            }
+         }
+         return(offsets);
+      }
+   }
+   static final ThreadLocal<Scratch> scratchBuffers = ThreadLocal.withInitial(Scratch::new);
+}
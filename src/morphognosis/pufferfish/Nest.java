@@ -1,18 +1,15 @@
 // For conditions of distribution and use, see copyright notice in Main.java
 
 // Nest.
+// Headless runs do not load the window toolkit: the nest size and coordinates are
+// its own classes, and the nest image is loaded by NestImage.
 
 package morphognosis.pufferfish;
 
 import java.security.SecureRandom;
-import javax.imageio.ImageIO;
 import morphognosis.SectorDisplay;
 import morphognosis.Utility;
 import java.awt.Dimension;
-import java.awt.Graphics;
-import java.awt.Image;
-import java.awt.Point;
-import java.awt.image.BufferedImage;
 import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
@@ -20,6 +17,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 
 public class Nest
 {
@@ -32,11 +30,35 @@ public class Nest
    public static int SPOKE_LENGTH        = 4;
    public static int SPOKE_RIPPLE_LENGTH = 2;
 
+   // Size.
+   public static class Size
+   {
+      public int width, height;
+
+      public Size(int width, int height)
+      {
+         this.width  = width;
+         this.height = height;
+      }
+   }
+
+   // Cell coordinates.
+   public static class Coordinates
+   {
+      public int x, y;
+
+      public Coordinates(int x, int y)
+      {
+         this.x = x;
+         this.y = y;
+      }
+   }
+
    // Cells.
    // See SectorDisplay.EMPTY_CELL_VALUE.
    public static final int CELL_DIMENSIONS      = 1;
    public static final int ELEVATION_CELL_INDEX = 0;
-   public Dimension        size;
+   public Size             size;
    public int[][][]        cells;
    public int[][][]        restoreCells;
 
@@ -50,6 +72,9 @@ public class Nest
    // Nest image file.
    public String nestImageFile;
 
+   // Completion detector.
+   public NestCompletion completion;
+
    // Constructors.
    public Nest(int randomSeed)
    {
@@ -61,7 +86,7 @@ public class Nest
       random.setSeed(randomSeed);
 
       // Create cells.
-      size         = new Dimension(WIDTH, HEIGHT);
+      size         = new Size(WIDTH, HEIGHT);
       cells        = new int[WIDTH][HEIGHT][CELL_DIMENSIONS];
       restoreCells = new int[WIDTH][HEIGHT][CELL_DIMENSIONS];
       for (x = 0; x < size.width; x++)
@@ -90,9 +115,9 @@ public class Nest
       random.setSeed(randomSeed);
 
       // Create cells.
-      this.size    = size;
       width        = size.width;
       height       = size.height;
+      this.size    = new Size(width, height);
       cells        = new int[width][height][CELL_DIMENSIONS];
       restoreCells = new int[width][height][CELL_DIMENSIONS];
       for (x = 0; x < size.width; x++)
@@ -108,7 +133,10 @@ public class Nest
       }
 
       // Load elevations from nest image.
-      loadNestImageElevations();
+      if (!loadNestImageElevations(nestImageFile, cells))
+      {
+         System.err.println("Cannot load nest image file " + nestImageFile);
+      }
       checkpoint();
       lock = new Object();
    }
@@ -116,11 +144,31 @@ public class Nest
 
    public Nest()
    {
-      size = new Dimension();
+      size = new Size(0, 0);
       lock = new Object();
    }
 
 
+   // Snapshot of cells, for saving while the nest changes.
+   public Nest snapshot()
+   {
+      Nest snapshot = new Nest();
+
+      snapshot.size         = new Size(size.width, size.height);
+      snapshot.cells        = new int[size.width][size.height][];
+      snapshot.restoreCells = new int[size.width][size.height][];
+      for (int x = 0; x < size.width; x++)
+      {
+         for (int y = 0; y < size.height; y++)
+         {
+            snapshot.cells[x][y]        = cells[x][y].clone();
+            snapshot.restoreCells[x][y] = restoreCells[x][y].clone();
+         }
+      }
+      return(snapshot);
+   }
+
+
    // Get grid width.
    public int getWidth()
    {
@@ -151,61 +199,10 @@ public class Nest
    }
 
 
-   // Load nest image elevations.
-   private void loadNestImageElevations()
+   // Load nest image elevations into cells.
+   boolean loadNestImageElevations(String nestImageFile, int[][][] cells)
    {
-      // Load image as resource.
-      Image image = null;
-
-      try
-      {
-         image = (Image)ImageIO.read(getClass().getResource(nestImageFile));
-      }
-      catch (Exception e)
-      {
-      }
-
-      // Load external image file.
-      if (image == null)
-      {
-         try
-         {
-            image = (Image)ImageIO.read(new File(nestImageFile));
-         }
-         catch (Exception e)
-         {
-         }
-      }
-
-      if (image == null)
-      {
-         System.err.println("Cannot load nest image file " + nestImageFile);
-         return;
-      }
-
-      // Create cells image.
-      int           w            = size.width;
-      int           h            = size.height;
-      int           numCellTypes = MAX_ELEVATION + 1;
-      float         q            = 256.0f / (float)numCellTypes;
-      Image         s            = image.getScaledInstance(w, h, Image.SCALE_DEFAULT);
-      BufferedImage b            = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
-      Graphics      g            = b.createGraphics();
-      g.drawImage(s, 0, 0, null);
-      g.dispose();
-      for (int x = 0; x < w; x++)
-      {
-         for (int y = 0; y < h; y++)
-         {
-            int cy = (h - 1) - y;
-            int t  = (int)((float)(b.getRGB(x, y) & 0xFF) / q);
-            if (t >= numCellTypes)
-            {
-               t = numCellTypes - 1;
-            }
-            cells[x][cy][ELEVATION_CELL_INDEX] = t;
-         }
-      }
+      return(NestImage.loadElevations(nestImageFile, cells, size.width, size.height));
    }
 
 
@@ -281,23 +278,25 @@ public class Nest
 
 
    // Load cells.
-   public void load(FileInputStream input) throws IOException
+   public void load(InputStream input) throws IOException
+   {
+      load(input, true);
+   }
+
+
+   // Load cells, setting the nest properties, or checking that they are the current ones.
+   public void load(InputStream input, boolean setProperties) throws IOException
    {
       int x, y;
 
       DataInputStream reader = new DataInputStream(input);
 
-      WIDTH               = Utility.loadInt(reader);
-      HEIGHT              = Utility.loadInt(reader);
-      MAX_ELEVATION       = Utility.loadInt(reader);
-      CENTER_RADIUS       = Utility.loadInt(reader);
-      NUM_SPOKES          = Utility.loadInt(reader);
-      SPOKE_LENGTH        = Utility.loadInt(reader);
-      SPOKE_RIPPLE_LENGTH = Utility.loadInt(reader);
+      loadProperties(reader, setProperties);
       size.width          = WIDTH;
       size.height         = HEIGHT;
-      cells               = new int[size.width][size.height][2];
-      restoreCells        = new int[size.width][size.height][2];
+      cells               = new int[size.width][size.height][CELL_DIMENSIONS];
+      restoreCells        = new int[size.width][size.height][CELL_DIMENSIONS];
+      completion          = null;
       clear();
 
       for (x = 0; x < size.width; x++)
@@ -324,6 +323,144 @@ public class Nest
    }
 
 
+   // Save properties and bit-packed cells.
+   public void savePacked(DataOutputStream writer) throws IOException
+   {
+      Utility.saveInt(writer, WIDTH);
+      Utility.saveInt(writer, HEIGHT);
+      Utility.saveInt(writer, MAX_ELEVATION);
+      Utility.saveInt(writer, CENTER_RADIUS);
+      Utility.saveInt(writer, NUM_SPOKES);
+      Utility.saveInt(writer, SPOKE_LENGTH);
+      Utility.saveInt(writer, SPOKE_RIPPLE_LENGTH);
+
+      // Pack cell values above minimum in the fewest bits.
+      int min = Integer.MAX_VALUE;
+      int max = Integer.MIN_VALUE;
+      for (int x = 0; x < size.width; x++)
+      {
+         for (int y = 0; y < size.height; y++)
+         {
+            for (int d = 0; d < CELL_DIMENSIONS; d++)
+            {
+               min = Math.min(min, Math.min(cells[x][y][d], restoreCells[x][y][d]));
+               max = Math.max(max, Math.max(cells[x][y][d], restoreCells[x][y][d]));
+            }
+         }
+      }
+      int bits = 32 - Integer.numberOfLeadingZeros(max - min);
+      Utility.saveInt(writer, min);
+      Utility.saveInt(writer, bits);
+      long buffer = 0;
+      int  n      = 0;
+      for (int[][][] c : new int[][][][] { cells, restoreCells })
+      {
+         for (int x = 0; x < size.width; x++)
+         {
+            for (int y = 0; y < size.height; y++)
+            {
+               for (int d = 0; d < CELL_DIMENSIONS; d++)
+               {
+                  buffer |= ((long)(c[x][y][d] - min)) << n;
+                  n      += bits;
+                  while (n >= 8)
+                  {
+                     writer.writeByte((int)buffer);
+                     buffer >>>= 8;
+                     n        -= 8;
+                  }
+               }
+            }
+         }
+      }
+      if (n > 0)
+      {
+         writer.writeByte((int)buffer);
+      }
+      writer.flush();
+   }
+
+
+   // Load properties and bit-packed cells.
+   public void loadPacked(DataInputStream reader) throws IOException
+   {
+      loadPacked(reader, true);
+   }
+
+
+   // Load bit-packed cells, setting the nest properties, or checking that they are the current ones.
+   public void loadPacked(DataInputStream reader, boolean setProperties) throws IOException
+   {
+      loadProperties(reader, setProperties);
+      size.width          = WIDTH;
+      size.height         = HEIGHT;
+      cells               = new int[size.width][size.height][CELL_DIMENSIONS];
+      restoreCells        = new int[size.width][size.height][CELL_DIMENSIONS];
+      completion          = null;
+
+      int  min    = Utility.loadInt(reader);
+      int  bits   = Utility.loadInt(reader);
+      long mask   = (1L << bits) - 1;
+      long buffer = 0;
+      int  n      = 0;
+      if ((bits < 0) || (bits > 32))
+      {
+         throw new IOException("Invalid cell bits " + bits);
+      }
+      for (int[][][] c : new int[][][][] { cells, restoreCells })
+      {
+         for (int x = 0; x < size.width; x++)
+         {
+            for (int y = 0; y < size.height; y++)
+            {
+               for (int d = 0; d < CELL_DIMENSIONS; d++)
+               {
+                  while (n < bits)
+                  {
+                     buffer |= ((long)reader.readUnsignedByte()) << n;
+                     n      += 8;
+                  }
+                  c[x][y][d] = (int)(buffer & mask) + min;
+                  buffer   >>>= bits;
+                  n         -= bits;
+               }
+            }
+         }
+      }
+   }
+
+
+   // Load properties: width, height, maximum elevation, center radius, number of spokes,
+   // spoke length and spoke ripple length. Unless setting them, properties differing
+   // from the current ones are refused, leaving them unchanged.
+   static void loadProperties(DataInputStream reader, boolean setProperties) throws IOException
+   {
+      int[] properties = new int[7];
+
+      for (int i = 0; i < properties.length; i++)
+      {
+         properties[i] = Utility.loadInt(reader);
+      }
+      if (setProperties)
+      {
+         WIDTH               = properties[0];
+         HEIGHT              = properties[1];
+         MAX_ELEVATION       = properties[2];
+         CENTER_RADIUS       = properties[3];
+         NUM_SPOKES          = properties[4];
+         SPOKE_LENGTH        = properties[5];
+         SPOKE_RIPPLE_LENGTH = properties[6];
+      }
+      else if ((properties[0] != WIDTH) || (properties[1] != HEIGHT) ||
+               (properties[2] != MAX_ELEVATION) || (properties[3] != CENTER_RADIUS) ||
+               (properties[4] != NUM_SPOKES) || (properties[5] != SPOKE_LENGTH) ||
+               (properties[6] != SPOKE_RIPPLE_LENGTH))
+      {
+         throw new IOException("Nest properties differ from current ones");
+      }
+   }
+
+
    // Clear cells.
    public void clear()
    {
@@ -339,6 +476,10 @@ public class Nest
             }
          }
       }
+      if (completion != null)
+      {
+         completion.recount();
+      }
    }
 
 
@@ -375,6 +516,21 @@ public class Nest
             }
          }
       }
+      if (completion != null)
+      {
+         completion.recount();
+      }
+   }
+
+
+   // Set cell elevation.
+   public void setElevation(int x, int y, int elevation)
+   {
+      cells[x][y][ELEVATION_CELL_INDEX] = elevation;
+      if (completion != null)
+      {
+         completion.update(x, y);
+      }
    }
 
 
@@ -385,12 +541,12 @@ public class Nest
       {
          if ((fromX != centerX) || (fromY != centerY))
          {
-            Point[] forwardCoords = getForwardCoords(fromX, fromY, centerX, centerY);
+            Coordinates[] forwardCoords = getForwardCoords(fromX, fromY, centerX, centerY);
             int smoothElevation = Nest.MAX_ELEVATION / 2;
-            cells[fromX][fromY][ELEVATION_CELL_INDEX]     = smoothElevation;
-            cells[centerX][centerY][ELEVATION_CELL_INDEX] = smoothElevation;
-            cells[forwardCoords[0].x][forwardCoords[0].y][ELEVATION_CELL_INDEX] = smoothElevation;
-            cells[forwardCoords[2].x][forwardCoords[2].y][ELEVATION_CELL_INDEX] = smoothElevation;
+            setElevation(fromX, fromY, smoothElevation);
+            setElevation(centerX, centerY, smoothElevation);
+            setElevation(forwardCoords[0].x, forwardCoords[0].y, smoothElevation);
+            setElevation(forwardCoords[2].x, forwardCoords[2].y, smoothElevation);
          }
       }
    }
@@ -406,7 +562,7 @@ public class Nest
          {
             if ((fromX != toX) || (fromY != toY))
             {
-               Point[] plow = getForwardCoords(fromX, fromY, toX, toY);
+               Coordinates[] plow = getForwardCoords(fromX, fromY, toX, toY);
                int n = cells[toX][toY][ELEVATION_CELL_INDEX] - fishElevation;
                cells[toX][toY][ELEVATION_CELL_INDEX] = fishElevation;
                int j = random.nextInt(3);
@@ -419,6 +575,14 @@ public class Nest
                   }
                   j = (j + 1) % 3;
                }
+               if (completion != null)
+               {
+                  completion.update(toX, toY);
+                  for (Coordinates p : plow)
+                  {
+                     completion.update(p.x, p.y);
+                  }
+               }
             }
          }
       }
@@ -426,7 +590,7 @@ public class Nest
 
 
    // Get forward cell coordinates.
-   public Point[] getForwardCoords(int fromX, int fromY, int toX, int toY)
+   public Coordinates[] getForwardCoords(int fromX, int fromY, int toX, int toY)
    {
       int[] coordX = new int[3];
       int[] coordY = new int[3];
@@ -490,10 +654,10 @@ public class Nest
             coordX[2] += size.width;
          }
       }
-      Point[] result = new Point[3];
+      Coordinates[] result = new Coordinates[3];
       for (int i = 0; i < 3; i++)
       {
-         result[i] = new Point(coordX[i], coordY[i]);
+         result[i] = new Coordinates(coordX[i], coordY[i]);
       }
       return(result);
    }
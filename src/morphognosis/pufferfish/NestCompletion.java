@@ -0,0 +1,324 @@
+// For conditions of distribution and use, see copyright notice in Main.java
+
+// Nest completion detector.
+// Tracks the nest cells differing in elevation from a target nest: the nest image,
+// or the nest the autopilot finishes from the current nest and pufferfish position.
+// The nest updates the detector for each cell it changes, so completion and quality
+// are known at every step without comparing the whole nest.
+// Quality is the summed elevation error and the match rate of the center and
+// spoke cells, recorded as a time series of steps.
+
+package morphognosis.pufferfish;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import morphognosis.Orientation;
+
+public class NestCompletion
+{
+   // Nest and target elevations.
+   Nest        nest;
+   int[][]     target;
+   int[][]     elevations;
+   boolean[][] matched;
+
+   // Cells differing from target.
+   int mismatches;
+
+   // Summed elevation error.
+   int error;
+
+   // Center and spoke cells, and those matching target.
+   boolean[][] structure;
+   int         structureCells;
+   int         structureMatches;
+
+   // Quality time series: error, mismatches and structure matches by step.
+   int[] series;
+   int   seriesLength;
+
+   // Constructor.
+   public NestCompletion(Nest nest, int[][] target)
+   {
+      int w = nest.size.width;
+      int h = nest.size.height;
+
+      this.nest   = nest;
+      this.target = target;
+      elevations  = new int[w][h];
+      matched     = new boolean[w][h];
+      structure   = new boolean[w][h];
+      int cx = w / 2;
+      int cy = h / 2;
+      for (int x = 0; x < w; x++)
+      {
+         for (int y = 0; y < h; y++)
+         {
+            int dx = x - cx;
+            int dy = y - cy;
+            if (((dx * dx) + (dy * dy)) <= (Nest.CENTER_RADIUS * Nest.CENTER_RADIUS))
+            {
+               structure[x][y] = true;
+            }
+         }
+      }
+      AutopilotPlan plan = AutopilotPlan.get(w, h, Nest.CENTER_RADIUS, Nest.SPOKE_LENGTH,
+                                             Nest.SPOKE_RIPPLE_LENGTH, Nest.NUM_SPOKES);
+      for (int spoke = 0; spoke < plan.getNumSpokes(); spoke++)
+      {
+         for (AutopilotPlan.SpokePoint p : plan.getSpokePath(spoke))
+         {
+            structure[p.x][p.y] = true;
+         }
+      }
+      for (int x = 0; x < w; x++)
+      {
+         for (int y = 0; y < h; y++)
+         {
+            if (structure[x][y]) { structureCells++; }
+         }
+      }
+      series = new int[3 * 1024];
+      recount();
+      record();
+   }
+
+
+   // Completion to nest image.
+   public static NestCompletion forImage(Nest nest, String nestImageFile) throws IOException
+   {
+      int w = nest.size.width;
+      int h = nest.size.height;
+
+      int[][][] cells = new int[w][h][Nest.CELL_DIMENSIONS];
+      if (!nest.loadNestImageElevations(nestImageFile, cells))
+      {
+         throw new IOException("Cannot load nest image file " + nestImageFile);
+      }
+      int[][] target = new int[w][h];
+      for (int x = 0; x < w; x++)
+      {
+         for (int y = 0; y < h; y++)
+         {
+            target[x][y] = cells[x][y][Nest.ELEVATION_CELL_INDEX];
+         }
+      }
+      return(new NestCompletion(nest, target));
+   }
+
+
+   // Completion to nest finished by autopilot, replaying its tape from the pufferfish position.
+   public static NestCompletion forAutopilot(Nest nest, Pufferfish pufferfish)
+   {
+      int w = nest.size.width;
+      int h = nest.size.height;
+
+      if ((pufferfish.autopilotTape == null) || !pufferfish.autopilotTape.isFor(pufferfish))
+      {
+         pufferfish.autopilotTape = pufferfish.compileAutopilotTape();
+      }
+      AutopilotTape tape = pufferfish.autopilotTape;
+
+      // Build target on a copy of the nest.
+      Nest finished = new Nest();
+      finished.size.width  = w;
+      finished.size.height = h;
+      finished.cells       = new int[w][h][Nest.CELL_DIMENSIONS];
+      for (int x = 0; x < w; x++)
+      {
+         for (int y = 0; y < h; y++)
+         {
+            finished.cells[x][y][Nest.ELEVATION_CELL_INDEX] = nest.cells[x][y][Nest.ELEVATION_CELL_INDEX];
+         }
+      }
+      int x           = tape.x;
+      int y           = tape.y;
+      int orientation = Orientation.WEST;
+      for (int i = 0, n = tape.getLength(); i < n; i++)
+      {
+         int toX = x;
+         int toY = y;
+         switch (orientation)
+         {
+         case Orientation.NORTH:
+            toY = (y + 1) % h;
+            break;
+
+         case Orientation.EAST:
+            toX = (x + 1) % w;
+            break;
+
+         case Orientation.SOUTH:
+            toY = (y + h - 1) % h;
+            break;
+
+         case Orientation.WEST:
+            toX = (x + w - 1) % w;
+            break;
+         }
+         switch (tape.getResponse(i))
+         {
+         case Pufferfish.FORWARD:
+            x = toX;
+            y = toY;
+            break;
+
+         case Pufferfish.TURN_LEFT:
+            orientation = (orientation + Orientation.NUM_ORIENTATIONS - 1) % Orientation.NUM_ORIENTATIONS;
+            break;
+
+         case Pufferfish.TURN_RIGHT:
+            orientation = (orientation + 1) % Orientation.NUM_ORIENTATIONS;
+            break;
+
+         case Pufferfish.SMOOTH:
+            finished.smooth(x, y, toX, toY);
+            break;
+
+         case Pufferfish.RAISE:
+            finished.setElevation(x, y, Nest.MAX_ELEVATION);
+            break;
+
+         case Pufferfish.LOWER:
+            finished.setElevation(x, y, 2);
+            break;
+         }
+      }
+      int[][] target = new int[w][h];
+      for (x = 0; x < w; x++)
+      {
+         for (y = 0; y < h; y++)
+         {
+            target[x][y] = finished.cells[x][y][Nest.ELEVATION_CELL_INDEX];
+         }
+      }
+      return(new NestCompletion(nest, target));
+   }
+
+
+   // Update for changed cell.
+   public void update(int x, int y)
+   {
+      int e = nest.cells[x][y][Nest.ELEVATION_CELL_INDEX];
+
+      if (e == elevations[x][y]) { return; }
+      error           += Math.abs(e - target[x][y]) - Math.abs(elevations[x][y] - target[x][y]);
+      elevations[x][y] = e;
+      boolean m = (e == target[x][y]);
+      if (m != matched[x][y])
+      {
+         matched[x][y] = m;
+         mismatches   += m ? -1 : 1;
+         if (structure[x][y])
+         {
+            structureMatches += m ? 1 : -1;
+         }
+      }
+   }
+
+
+   // Recount cells differing from target.
+   public void recount()
+   {
+      mismatches       = 0;
+      error            = 0;
+      structureMatches = 0;
+      for (int x = 0; x < matched.length; x++)
+      {
+         for (int y = 0; y < matched[x].length; y++)
+         {
+            int e = nest.cells[x][y][Nest.ELEVATION_CELL_INDEX];
+            elevations[x][y] = e;
+            matched[x][y]    = (e == target[x][y]);
+            error           += Math.abs(e - target[x][y]);
+            if (matched[x][y])
+            {
+               if (structure[x][y]) { structureMatches++; }
+            }
+            else
+            {
+               mismatches++;
+            }
+         }
+      }
+   }
+
+
+   // Get number of cells differing from target.
+   public int getMismatches()
+   {
+      return(mismatches);
+   }
+
+
+   // Get summed elevation error.
+   public int getError()
+   {
+      return(error);
+   }
+
+
+   // Get center and spoke match rate.
+   public float getStructureMatchRate()
+   {
+      if (structureCells == 0) { return(1.0f); }
+      return((float)structureMatches / (float)structureCells);
+   }
+
+
+   // Is nest complete?
+   public boolean isComplete()
+   {
+      return(mismatches == 0);
+   }
+
+
+   // Record quality for step.
+   public void record()
+   {
+      if (seriesLength == series.length)
+      {
+         series = Arrays.copyOf(series, seriesLength * 2);
+      }
+      series[seriesLength++] = error;
+      series[seriesLength++] = mismatches;
+      series[seriesLength++] = structureMatches;
+   }
+
+
+   // Get number of steps recorded.
+   public int getNumRecorded()
+   {
+      return(seriesLength / 3);
+   }
+
+
+   // Write quality time series to csv file.
+   public void writeSeries(String filename) throws IOException
+   {
+      FileOutputStream output;
+
+      try
+      {
+         output = new FileOutputStream(new File(filename));
+      }
+      catch (Exception e)
+      {
+         throw new IOException("Cannot open output file " + filename + ":" + e.getMessage());
+      }
+      PrintWriter writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(output)));
+      writer.println("step,error,mismatches,structure_match_rate");
+      for (int i = 0; i < seriesLength; i += 3)
+      {
+         writer.println((i / 3) + "," + series[i] + "," + series[i + 1] + "," +
+                        (structureCells == 0 ? 1.0f : (float)series[i + 2] / (float)structureCells));
+      }
+      writer.flush();
+      output.close();
+   }
+}
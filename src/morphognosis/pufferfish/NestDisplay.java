@@ -696,9 +696,8 @@ public class NestDisplay extends JFrame
                int y  = random.nextInt(h);
                int y2 = random.nextInt(h);
                int c  = nest.cells[x][y][Nest.ELEVATION_CELL_INDEX];
-               nest.cells[x][y][Nest.ELEVATION_CELL_INDEX] =
-                  nest.cells[x2][y2][Nest.ELEVATION_CELL_INDEX];
-               nest.cells[x2][y2][Nest.ELEVATION_CELL_INDEX] = c;
+               nest.setElevation(x, y, nest.cells[x2][y2][Nest.ELEVATION_CELL_INDEX]);
+               nest.setElevation(x2, y2, c);
             }
             pufferfish.reset();
             pufferfishDashboard.update();
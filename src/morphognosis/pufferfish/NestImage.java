@@ -0,0 +1,71 @@
+// For conditions of distribution and use, see copyright notice in Main.java
+
+// Nest image.
+// Nest elevations loaded from an image, kept apart from the nest so that headless
+// runs do not load the window toolkit.
+
+package morphognosis.pufferfish;
+
+import java.awt.Graphics;
+import java.awt.Image;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import javax.imageio.ImageIO;
+
+public class NestImage
+{
+   // Load nest image elevations into cells of width and height.
+   public static boolean loadElevations(String nestImageFile, int[][][] cells, int w, int h)
+   {
+      // Load image as resource.
+      Image image = null;
+
+      try
+      {
+         image = (Image)ImageIO.read(NestImage.class.getResource(nestImageFile));
+      }
+      catch (Exception e)
+      {
+      }
+
+      // Load external image file.
+      if (image == null)
+      {
+         try
+         {
+            image = (Image)ImageIO.read(new File(nestImageFile));
+         }
+         catch (Exception e)
+         {
+         }
+      }
+
+      if (image == null)
+      {
+         return(false);
+      }
+
+      // Create cells image.
+      int           numCellTypes = Nest.MAX_ELEVATION + 1;
+      float         q            = 256.0f / (float)numCellTypes;
+      Image         s            = image.getScaledInstance(w, h, Image.SCALE_DEFAULT);
+      BufferedImage b            = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+      Graphics      g            = b.createGraphics();
+      g.drawImage(s, 0, 0, null);
+      g.dispose();
+      for (int x = 0; x < w; x++)
+      {
+         for (int y = 0; y < h; y++)
+         {
+            int cy = (h - 1) - y;
+            int t  = (int)((float)(b.getRGB(x, y) & 0xFF) / q);
+            if (t >= numCellTypes)
+            {
+               t = numCellTypes - 1;
+            }
+            cells[x][cy][Nest.ELEVATION_CELL_INDEX] = t;
+         }
+      }
+      return(true);
+   }
+}
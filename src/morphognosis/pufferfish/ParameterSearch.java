@@ -0,0 +1,730 @@
+// For conditions of distribution and use, see copyright notice in Main.java
+
+// Parameter search.
+// Grid or random search over nest and morphognosis parameters. Each trial trains
+// a pufferfish with the autopilot, then resets the nest and replays it with the
+// metamorphRules driver, measuring how closely it builds the autopilot's nest.
+// Trials run in parallel in their own processes, since nest parameters are static,
+// and are keyed by a hash of their parameters in the results table, so an
+// interrupted search resumes with the trials not yet in it.
+
+package morphognosis.pufferfish;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import morphognosis.Morphognostic;
+
+public class ParameterSearch
+{
+   // Parameters.
+   public static final String[] PARAMETERS =
+   {
+      "numNeighborhoods",
+      "neighborhoodInitialDimension",
+      "neighborhoodDimensionStride",
+      "neighborhoodDimensionMultiplier",
+      "epochIntervalStride",
+      "epochIntervalMultiplier",
+      "equivalentMorphognosticDistance",
+      "nestWidth",
+      "nestHeight",
+      "maxElevation",
+      "centerRadius",
+      "numSpokes",
+      "spokeLength",
+      "spokeRippleLength"
+   };
+   static final int EQUIVALENT_MORPHOGNOSTIC_DISTANCE_PARAMETER = 6;
+
+   // Default steps.
+   public static final int DEFAULT_TRAIN_STEPS  = 1000;
+   public static final int DEFAULT_REPLAY_STEPS = 1000;
+
+   // Usage.
+   public static final String Usage =
+      "Usage:\n" +
+      "    java morphognosis.pufferfish.ParameterSearch\n" +
+      "      -spec <file name> (lines of parameter name and values to search)\n" +
+      "      -results <file name> (results table, resuming trials already in it)\n" +
+      "     [-trainSteps <steps> (autopilot training steps, default=" + DEFAULT_TRAIN_STEPS + ")]\n" +
+      "     [-replaySteps <steps> (metamorphRules replay steps, default=" + DEFAULT_REPLAY_STEPS + ")]\n" +
+      "     [-randomTrials <quantity> (random search trials, default=grid search)]\n" +
+      "     [-threads <quantity> (parallel trials, default=available processors)]\n" +
+      "     [-randomSeed <random number seed> (default=" + Main.DEFAULT_RANDOM_SEED + ")]\n" +
+      "  Parameters:\n" +
+      "    " + String.join(", ", PARAMETERS);
+
+   // Searched parameters and values.
+   ArrayList<Integer>  parameters = new ArrayList<Integer>();
+   ArrayList<String[]> values     = new ArrayList<String[]>();
+
+   // Trial settings.
+   int trainSteps  = DEFAULT_TRAIN_STEPS;
+   int replaySteps = DEFAULT_REPLAY_STEPS;
+   int randomSeed  = Main.DEFAULT_RANDOM_SEED;
+
+   // Results table and trials in it.
+   String          resultsFile;
+   HashSet<String> completed = new HashSet<String>();
+   int             failures;
+
+   // Load search spec: lines of parameter name and values, with # comments.
+   public void loadSpec(String filename) throws IOException
+   {
+      BufferedReader reader;
+
+      try
+      {
+         reader = new BufferedReader(new FileReader(new File(filename)));
+      }
+      catch (Exception e)
+      {
+         throw new IOException("Cannot open spec file " + filename + ":" + e.getMessage());
+      }
+      String line;
+      while ((line = reader.readLine()) != null)
+      {
+         int c = line.indexOf('#');
+         if (c != -1) { line = line.substring(0, c); }
+         line = line.trim();
+         if (line.isEmpty()) { continue; }
+         String[] fields    = line.split("\\s+");
+         int      parameter = getParameter(fields[0]);
+         if (parameter == -1)
+         {
+            reader.close();
+            throw new IOException("Invalid parameter " + fields[0] + " in spec file " + filename);
+         }
+         if (parameters.contains(parameter))
+         {
+            reader.close();
+            throw new IOException("Duplicate parameter " + fields[0] + " in spec file " + filename);
+         }
+         if (fields.length < 2)
+         {
+            reader.close();
+            throw new IOException("No values for parameter " + fields[0] + " in spec file " + filename);
+         }
+         String[] v = new String[fields.length - 1];
+         for (int i = 0; i < v.length; i++)
+         {
+            v[i] = normalize(parameter, fields[i + 1]);
+            if (v[i] == null)
+            {
+               reader.close();
+               throw new IOException("Invalid value " + fields[i + 1] + " for parameter " + fields[0] +
+                                     " in spec file " + filename);
+            }
+         }
+         parameters.add(parameter);
+         values.add(v);
+      }
+      reader.close();
+      if (parameters.size() == 0)
+      {
+         throw new IOException("No parameters in spec file " + filename);
+      }
+   }
+
+
+   // Get parameter index.
+   static int getParameter(String name)
+   {
+      for (int i = 0; i < PARAMETERS.length; i++)
+      {
+         if (PARAMETERS[i].equals(name)) { return(i); }
+      }
+      return(-1);
+   }
+
+
+   // Normalize parameter value, null if invalid.
+   static String normalize(int parameter, String value)
+   {
+      try
+      {
+         if (parameter == EQUIVALENT_MORPHOGNOSTIC_DISTANCE_PARAMETER)
+         {
+            float f = Float.parseFloat(value);
+            return((f < 0.0f) ? null : Float.toString(f));
+         }
+         int n = Integer.parseInt(value);
+         return((n < 0) ? null : Integer.toString(n));
+      }
+      catch (NumberFormatException e)
+      {
+         return(null);
+      }
+   }
+
+
+   // Grid of trials: all combinations of values.
+   List<String[]> getGrid()
+   {
+      ArrayList<String[]> trials = new ArrayList<String[]>();
+      int[] index = new int[parameters.size()];
+
+      while (true)
+      {
+         String[] trial = new String[index.length];
+         for (int i = 0; i < index.length; i++)
+         {
+            trial[i] = values.get(i)[index[i]];
+         }
+         trials.add(trial);
+         int i = index.length - 1;
+         for ( ; i >= 0; i--)
+         {
+            if (++index[i] < values.get(i).length) { break; }
+            index[i] = 0;
+         }
+         if (i < 0) { break; }
+      }
+      return(trials);
+   }
+
+
+   // Random trials: values chosen at random.
+   List<String[]> getRandom(int numTrials)
+   {
+      ArrayList<String[]> trials = new ArrayList<String[]>();
+      SecureRandom        random = new SecureRandom();
+
+      random.setSeed(randomSeed);
+      for (int t = 0; t < numTrials; t++)
+      {
+         String[] trial = new String[parameters.size()];
+         for (int i = 0; i < trial.length; i++)
+         {
+            String[] v = values.get(i);
+            trial[i] = v[random.nextInt(v.length)];
+         }
+         trials.add(trial);
+      }
+      return(trials);
+   }
+
+
+   // Hash trial parameters and settings.
+   String hash(String[] trial)
+   {
+      StringBuilder key = new StringBuilder(trainSteps + " " + replaySteps + " " + randomSeed);
+
+      for (int p = 0; p < PARAMETERS.length; p++)
+      {
+         int i = parameters.indexOf(p);
+         if (i != -1)
+         {
+            key.append(" " + PARAMETERS[p] + "=" + trial[i]);
+         }
+      }
+      try
+      {
+         byte[]        digest = MessageDigest.getInstance("SHA-1").digest(key.toString().getBytes("UTF-8"));
+         StringBuilder hex    = new StringBuilder();
+         for (int i = 0; i < 8; i++)
+         {
+            hex.append(String.format("%02x", digest[i]));
+         }
+         return(hex.toString());
+      }
+      catch (Exception e)
+      {
+         return(Integer.toHexString(key.toString().hashCode()));
+      }
+   }
+
+
+   // Get results table header.
+   String getHeader()
+   {
+      StringBuilder header = new StringBuilder("hash");
+
+      for (int p : parameters)
+      {
+         header.append("," + PARAMETERS[p]);
+      }
+      header.append(",metamorphs,completion_steps,mismatches,error,structure_match_rate,seconds");
+      return(header.toString());
+   }
+
+
+   // Open results table, loading completed trials.
+   // An existing table must have the columns of the parameter spec.
+   void openResults(String filename) throws IOException
+   {
+      resultsFile = filename;
+      File   file   = new File(filename);
+      String header = getHeader();
+      if (file.exists())
+      {
+         BufferedReader reader = new BufferedReader(new FileReader(file));
+         String         line   = reader.readLine();
+         if ((line != null) && !line.equals(header))
+         {
+            reader.close();
+            throw new IOException("Columns of results table " + filename + " differ from parameter spec: " +
+                                  line + " instead of " + header);
+         }
+         while ((line = reader.readLine()) != null)
+         {
+            int c = line.indexOf(',');
+            if (c > 0)
+            {
+               completed.add(line.substring(0, c));
+            }
+         }
+         reader.close();
+      }
+      if (!file.exists() || (file.length() == 0))
+      {
+         PrintWriter writer = new PrintWriter(new FileWriter(file));
+         writer.println(header);
+         writer.close();
+      }
+   }
+
+
+   // Append result to table.
+   synchronized void writeResult(String hash, String[] trial, String result) throws IOException
+   {
+      PrintWriter writer = new PrintWriter(new FileWriter(resultsFile, true));
+
+      writer.println(hash + "," + String.join(",", trial) + "," + result);
+      writer.close();
+      completed.add(hash);
+   }
+
+
+   // Run trials not in results table, in parallel processes.
+   public int search(List<String[]> trials, int numThreads) throws InterruptedException
+   {
+      ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+      HashSet<String> queued   = new HashSet<String>();
+      int             n        = 0;
+
+      for (String[] trial : trials)
+      {
+         String key = hash(trial);
+         if (completed.contains(key) || !queued.add(key)) { continue; }
+         n++;
+         executor.execute(() ->
+                          {
+                             try
+                             {
+                                writeResult(key, trial, runTrialProcess(trial));
+                             }
+                             catch (Exception e)
+                             {
+                                System.err.println("Trial " + key + " failed: " + e.getMessage());
+                                synchronized (this)
+                                {
+                                   failures++;
+                                }
+                             }
+                          }
+                          );
+      }
+      executor.shutdown();
+      executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+      return(n);
+   }
+
+
+   // Run trial in its own process, returning its result.
+   // The process has the JVM options of this one, such as the vector module, so that
+   // trials run as the search would; class archiving and debugging are not passed on.
+   String runTrialProcess(String[] trial) throws Exception
+   {
+      ArrayList<String> command = new ArrayList<String>();
+
+      command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+      for (String option : ManagementFactory.getRuntimeMXBean().getInputArguments())
+      {
+         if (!option.startsWith("-XX:ArchiveClassesAtExit") && !option.startsWith("-agentlib:jdwp") &&
+             !option.startsWith("-Xrunjdwp"))
+         {
+            command.add(option);
+         }
+      }
+      command.add("-cp");
+      command.add(System.getProperty("java.class.path"));
+      command.add(ParameterSearch.class.getName());
+      command.add("-trial");
+      command.add(Integer.toString(trainSteps));
+      command.add(Integer.toString(replaySteps));
+      command.add(Integer.toString(randomSeed));
+      for (int i = 0; i < trial.length; i++)
+      {
+         command.add(PARAMETERS[parameters.get(i)]);
+         command.add(trial[i]);
+      }
+      ProcessBuilder builder = new ProcessBuilder(command);
+      builder.redirectErrorStream(true);
+      Process        process = builder.start();
+      BufferedReader reader  = new BufferedReader(new InputStreamReader(process.getInputStream()));
+      String         result  = null;
+      String         output  = "";
+      String         line;
+      while ((line = reader.readLine()) != null)
+      {
+         if (line.startsWith("Result: "))
+         {
+            result = line.substring(8);
+         }
+         else
+         {
+            output = line;
+         }
+      }
+      reader.close();
+      if ((process.waitFor() != 0) || (result == null))
+      {
+         throw new IOException(output);
+      }
+      return(result);
+   }
+
+
+   // Run trial: train with autopilot, reset nest and replay with metamorphRules.
+   // Arguments: train steps, replay steps, random seed, then parameter names and values.
+   static void runTrial(String[] args, int first)
+   {
+      int trainSteps  = Integer.parseInt(args[first]);
+      int replaySteps = Integer.parseInt(args[first + 1]);
+      int randomSeed  = Integer.parseInt(args[first + 2]);
+
+      int[] morphognosis =
+      {
+         Morphognostic.DEFAULT_NUM_NEIGHBORHOODS,
+         Morphognostic.DEFAULT_NEIGHBORHOOD_INITIAL_DIMENSION,
+         Morphognostic.DEFAULT_NEIGHBORHOOD_DIMENSION_STRIDE,
+         Morphognostic.DEFAULT_NEIGHBORHOOD_DIMENSION_MULTIPLIER,
+         Morphognostic.DEFAULT_EPOCH_INTERVAL_STRIDE,
+         Morphognostic.DEFAULT_EPOCH_INTERVAL_MULTIPLIER
+      };
+      for (int i = first + 3; i + 1 < args.length; i += 2)
+      {
+         int p = getParameter(args[i]);
+         if (p == -1)
+         {
+            throw new IllegalArgumentException("Invalid parameter " + args[i]);
+         }
+         if (p < morphognosis.length)
+         {
+            morphognosis[p] = Integer.parseInt(args[i + 1]);
+            continue;
+         }
+         switch (PARAMETERS[p])
+         {
+         case "equivalentMorphognosticDistance":
+            Pufferfish.EQUIVALENT_MORPHOGNOSTIC_DISTANCE = Float.parseFloat(args[i + 1]);
+            break;
+
+         case "nestWidth":
+            Nest.WIDTH = Integer.parseInt(args[i + 1]);
+            break;
+
+         case "nestHeight":
+            Nest.HEIGHT = Integer.parseInt(args[i + 1]);
+            break;
+
+         case "maxElevation":
+            Nest.MAX_ELEVATION = Integer.parseInt(args[i + 1]);
+            break;
+
+         case "centerRadius":
+            Nest.CENTER_RADIUS = Integer.parseInt(args[i + 1]);
+            break;
+
+         case "numSpokes":
+            Nest.NUM_SPOKES = Integer.parseInt(args[i + 1]);
+            break;
+
+         case "spokeLength":
+            Nest.SPOKE_LENGTH = Integer.parseInt(args[i + 1]);
+            break;
+
+         case "spokeRippleLength":
+            Nest.SPOKE_RIPPLE_LENGTH = Integer.parseInt(args[i + 1]);
+            break;
+         }
+      }
+
+      // Train.
+      long startTime = System.currentTimeMillis();
+      Main main      = new Main(randomSeed);
+      main.init(morphognosis[0], morphognosis[1], morphognosis[2],
+                morphognosis[3], morphognosis[4], morphognosis[5]);
+      main.pufferfish.driver = Pufferfish.DRIVER_TYPE.AUTOPILOT.getValue();
+      main.run(trainSteps);
+
+      // Replay.
+      main.reset();
+      main.nest.completion   = NestCompletion.forAutopilot(main.nest, main.pufferfish);
+      main.pufferfish.driver = Pufferfish.DRIVER_TYPE.METAMORPH_RULES.getValue();
+      int completionSteps = main.runUntilComplete(replaySteps);
+      NestCompletion completion = main.nest.completion;
+      System.out.println("Result: " + main.pufferfish.metamorphs.size() + "," + completionSteps + "," +
+                         completion.getMismatches() + "," + completion.getError() + "," +
+                         completion.getStructureMatchRate() + "," +
+                         ((float)(System.currentTimeMillis() - startTime) / 1000.0f));
+   }
+
+
+   // Main.
+   public static void main(String[] args)
+   {
+      String specfile     = null;
+      String resultsfile  = null;
+      int    randomTrials = -1;
+      int    numThreads   = Runtime.getRuntime().availableProcessors();
+
+      ParameterSearch search = new ParameterSearch();
+
+      if ((args.length > 0) && args[0].equals("-trial"))
+      {
+         try
+         {
+            runTrial(args, 1);
+         }
+         catch (Exception e)
+         {
+            System.err.println("Trial error: " + e.getMessage());
+            System.exit(1);
+         }
+         System.exit(0);
+      }
+      for (int i = 0; i < args.length; i++)
+      {
+         if (args[i].equals("-spec"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid spec option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if (specfile == null)
+            {
+               specfile = args[i];
+            }
+            else
+            {
+               System.err.println("Duplicate spec option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-results"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid results option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if (resultsfile == null)
+            {
+               resultsfile = args[i];
+            }
+            else
+            {
+               System.err.println("Duplicate results option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-trainSteps"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid trainSteps option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            try
+            {
+               search.trainSteps = Integer.parseInt(args[i]);
+            }
+            catch (NumberFormatException e) {
+               System.err.println("Invalid trainSteps option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if (search.trainSteps < 0)
+            {
+               System.err.println("Invalid trainSteps option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-replaySteps"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid replaySteps option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            try
+            {
+               search.replaySteps = Integer.parseInt(args[i]);
+            }
+            catch (NumberFormatException e) {
+               System.err.println("Invalid replaySteps option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if (search.replaySteps < 0)
+            {
+               System.err.println("Invalid replaySteps option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-randomTrials"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid randomTrials option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            try
+            {
+               randomTrials = Integer.parseInt(args[i]);
+            }
+            catch (NumberFormatException e) {
+               System.err.println("Invalid randomTrials option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if (randomTrials < 1)
+            {
+               System.err.println("Invalid randomTrials option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-threads"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid threads option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            try
+            {
+               numThreads = Integer.parseInt(args[i]);
+            }
+            catch (NumberFormatException e) {
+               System.err.println("Invalid threads option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if (numThreads < 1)
+            {
+               System.err.println("Invalid threads option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-randomSeed"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid randomSeed option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            try
+            {
+               search.randomSeed = Integer.parseInt(args[i]);
+            }
+            catch (NumberFormatException e) {
+               System.err.println("Invalid randomSeed option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-help") || args[i].equals("-h") || args[i].equals("-?"))
+         {
+            System.out.println(Usage);
+            System.exit(0);
+         }
+         System.err.println("Invalid option: " + args[i]);
+         System.err.println(Usage);
+         System.exit(1);
+      }
+      if ((specfile == null) || (resultsfile == null))
+      {
+         System.err.println(Usage);
+         System.exit(1);
+      }
+
+      // Load spec and results.
+      try
+      {
+         search.loadSpec(specfile);
+         search.openResults(resultsfile);
+      }
+      catch (Exception e)
+      {
+         System.err.println(e.getMessage());
+         System.exit(1);
+      }
+
+      // Search.
+      List<String[]> trials;
+      if (randomTrials == -1)
+      {
+         trials = search.getGrid();
+      }
+      else
+      {
+         trials = search.getRandom(randomTrials);
+      }
+      try
+      {
+         int n = search.search(trials, numThreads);
+         System.out.println("Ran " + n + " trials of " + trials.size() + ", " + search.failures +
+                            " failed, results in " + resultsfile);
+      }
+      catch (Exception e)
+      {
+         System.err.println("Cannot run search: " + e.getMessage());
+         System.exit(1);
+      }
+      System.exit(0);
+   }
+}
@@ -12,14 +12,14 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.security.SecureRandom;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Vector;
 import morphognosis.Metamorph;
 import morphognosis.Morphognostic;
-import morphognosis.Morphognostic.Neighborhood;
 import morphognosis.Orientation;
 import morphognosis.Utility;
 
@@ -42,8 +42,54 @@ public class Pufferfish
    // Current morphognostic.
    public Morphognostic morphognostic;
 
+   // Incremental morphognostic update.
+   // Verification probability checks incremental against full update.
+   public static boolean          INCREMENTAL_MORPHOGNOSTIC_UPDATE = true;
+   public static float            VERIFY_MORPHOGNOSTIC_UPDATE_PROBABILITY = 0.0f;
+   public IncrementalMorphognostic incrementalMorphognostic;
+
    // Metamorphs.
-   public ArrayList<Metamorph> metamorphs;
+   public MetamorphStore metamorphs;
+
+   // Metamorph capacity, 0 for unbounded, and eviction policy.
+   public static int                            METAMORPH_CAPACITY        = 0;
+   public static MetamorphStore.EVICTION_POLICY METAMORPH_EVICTION_POLICY =
+      MetamorphStore.EVICTION_POLICY.LEAST_FREQUENTLY_MATCHED;
+
+   // Metamorph query: current morphognostic in all orientations.
+   public MetamorphStore.Query metamorphQuery;
+
+   // Approximate metamorph search with a locality-sensitive hash index.
+   // Audit probability samples responses to compare with exact search.
+   public static boolean APPROXIMATE_METAMORPH_SEARCH        = false;
+   public static int     LSH_NUM_TABLES                      = MetamorphIndex.DEFAULT_NUM_TABLES;
+   public static int     LSH_NUM_HASHES                      = MetamorphIndex.DEFAULT_NUM_HASHES;
+   public static float   LSH_BUCKET_WIDTH                    = MetamorphIndex.DEFAULT_BUCKET_WIDTH;
+   public static float   AUDIT_APPROXIMATE_SEARCH_PROBABILITY = 0.0f;
+   SecureRandom          auditRandom;
+   public int            approximateSearchAudits;
+   public int            approximateSearchDisagreements;
+
+   // Batch search of shared metamorphs, for simulations run in lockstep.
+   // Replaces search of the pufferfish metamorphs by the metamorphRules driver.
+   public MetamorphBatchSearch metamorphBatchSearch;
+
+   // Metamorph decision tree, compiled from the metamorphs when first used.
+   // Audit probability samples responses to compare with metamorph rules.
+   public MetamorphDecisionTree metamorphTree;
+   public static int            DECISION_TREE_MAX_DEPTH         = MetamorphDecisionTree.DEFAULT_MAX_DEPTH;
+   public static float          AUDIT_DECISION_TREE_PROBABILITY = 0.0f;
+   public int                   decisionTreeAudits;
+   public int                   decisionTreeDisagreements;
+
+   // Metamorph neural network, loaded or trained from the metamorphs when first used.
+   // Input is the morphognostic in the metamorph dataset layout.
+   public MetamorphNetwork metamorphNetwork;
+   public static int       NETWORK_HIDDEN_UNITS    = MetamorphNetwork.DEFAULT_HIDDEN_UNITS;
+   public static int       NETWORK_TRAINING_EPOCHS = MetamorphNetwork.DEFAULT_EPOCHS;
+   public float            networkTrainingAgreement;
+   int[]                   networkInputIndexes;
+   float[]                 networkInput;
 
    // Sensors.
    public static final int LEFT_CELL_INDEX         = 0;
@@ -63,7 +109,8 @@ public class Pufferfish
    public static final int RAISE         = 5;
    public static final int LOWER         = 6;
    public static final int NUM_RESPONSES = 7;
-   int response;
+   int        response;
+   public int previousResponse;
 
    // Dataset file name.
    public static String DATASET_FILE_NAME = "metamorphs.csv";
@@ -99,7 +146,9 @@ public class Pufferfish
    {
       AUTOPILOT(0),
       METAMORPH_RULES(1),
-      MANUAL(2);
+      MANUAL(2),
+      DECISION_TREE(3),
+      NEURAL_NETWORK(4);
 
       private int value;
 
@@ -123,18 +172,22 @@ public class Pufferfish
    int     spoke;
    int     spokeIndex;
    int     spokeDir;
-   class SpokePoint
-   {
-      int     x, y;
-      boolean raise;
-      boolean lower;
-      SpokePoint(int x, int y)
-      {
-         this.x = x;
-         this.y = y;
-      }
-   };
-   ArrayList<SpokePoint> spokePath;
+
+   // Current spoke path from the shared autopilot plan, and actions taken at its
+   // points: 1 if raised, 2 if lowered.
+   AutopilotPlan.SpokePoint[] spokePath;
+   byte[]                     spokeActions;
+
+   // Autopilot tape, compiled when first used, replayed instead of running the
+   // autopilot. Position is the step from the autopilot start, or -1 once the
+   // autopilot runs itself; lag is the replayed steps it has yet to catch up on.
+   // Verification runs the autopilot alongside, counting differing responses.
+   public static boolean AUTOPILOT_TAPE        = false;
+   public static boolean VERIFY_AUTOPILOT_TAPE = false;
+   public AutopilotTape  autopilotTape;
+   int                   autopilotTapePosition;
+   int                   autopilotLag;
+   public int            autopilotTapeMismatches;
 
    // Constructors.
    public Pufferfish(Nest nest, int randomSeed)
@@ -153,7 +206,11 @@ public class Pufferfish
       morphognostic = new Morphognostic(Orientation.NORTH, numEventTypes);
       Morphognostic.Neighborhood n = morphognostic.neighborhoods.get(morphognostic.NUM_NEIGHBORHOODS - 1);
       maxEventAge = n.epoch + n.duration - 1;
-      metamorphs  = new ArrayList<Metamorph>();
+      metamorphs     = new MetamorphStore();
+      metamorphQuery = new MetamorphStore.Query();
+      metamorphs.setCapacity(METAMORPH_CAPACITY, METAMORPH_EVICTION_POLICY);
+      incrementalMorphognostic = new IncrementalMorphognostic(morphognostic,
+                                                              nest.size.width, nest.size.height);
    }
 
 
@@ -185,7 +242,17 @@ public class Pufferfish
                                         EPOCH_INTERVAL_MULTIPLIER);
       Morphognostic.Neighborhood n = morphognostic.neighborhoods.get(morphognostic.NUM_NEIGHBORHOODS - 1);
       maxEventAge = n.epoch + n.duration - 1;
-      metamorphs  = new ArrayList<Metamorph>();
+      metamorphs     = new MetamorphStore();
+      metamorphQuery = new MetamorphStore.Query();
+      metamorphs.setCapacity(METAMORPH_CAPACITY, METAMORPH_EVICTION_POLICY);
+      incrementalMorphognostic = new IncrementalMorphognostic(morphognostic,
+                                                              nest.size.width, nest.size.height);
+   }
+
+
+   // Empty, for snapshots.
+   Pufferfish()
+   {
    }
 
 
@@ -200,10 +267,11 @@ public class Pufferfish
       {
          sensors[n] = 0.0f;
       }
-      response       = WAIT;
-      driver         = DRIVER_TYPE.AUTOPILOT.getValue();
-      driverResponse = WAIT;
-      landmarkMap    = new boolean[nest.size.width][nest.size.height];
+      response         = WAIT;
+      previousResponse = WAIT;
+      driver           = DRIVER_TYPE.AUTOPILOT.getValue();
+      driverResponse   = WAIT;
+      landmarkMap      = new boolean[nest.size.width][nest.size.height];
       for (int i = 0; i < nest.size.width; i++)
       {
          for (int j = 0; j < nest.size.height; j++)
@@ -211,8 +279,12 @@ public class Pufferfish
             landmarkMap[i][j] = false;
          }
       }
-      events    = new Vector<Event>();
-      eventTime = 0;
+      events      = new Vector<Event>();
+      eventTime   = 0;
+      auditRandom = new SecureRandom();
+      auditRandom.setSeed(randomSeed);
+      approximateSearchAudits = approximateSearchDisagreements = 0;
+      decisionTreeAudits      = decisionTreeDisagreements = 0;
       initAutopilot();
    }
 
@@ -221,6 +293,9 @@ public class Pufferfish
    void reset()
    {
       random.setSeed(randomSeed);
+      auditRandom.setSeed(randomSeed);
+      approximateSearchAudits = approximateSearchDisagreements = 0;
+      decisionTreeAudits      = decisionTreeDisagreements = 0;
       x           = x2;
       y           = y2;
       orientation = orientation2;
@@ -228,8 +303,9 @@ public class Pufferfish
       {
          sensors[i] = 0.0f;
       }
-      response       = WAIT;
-      driverResponse = WAIT;
+      response         = WAIT;
+      previousResponse = WAIT;
+      driverResponse   = WAIT;
       for (int i = 0; i < nest.size.width; i++)
       {
          for (int j = 0; j < nest.size.height; j++)
@@ -239,6 +315,7 @@ public class Pufferfish
       }
       events.clear();
       morphognostic.clear();
+      incrementalMorphognostic.clear();
       initAutopilot();
    }
 
@@ -301,7 +378,15 @@ public class Pufferfish
 
 
    // Load pufferfish.
-   public void load(FileInputStream input) throws IOException
+   public void load(InputStream input) throws IOException
+   {
+      load(input, true);
+   }
+
+
+   // Load pufferfish, setting the equivalent morphognostic distance, or checking that
+   // it is the current one.
+   public void load(InputStream input, boolean setProperties) throws IOException
    {
       // Load the properties.
       // DataInputStream is for unbuffered input.
@@ -315,17 +400,133 @@ public class Pufferfish
       orientation2  = Utility.loadInt(reader);
       morphognostic = Morphognostic.load(reader);
       maxEventAge   = Utility.loadInt(reader);
+      loadMetamorphs(reader);
+      loadDistance(reader, setProperties);
+      initLoaded();
+   }
+
+
+   // Save properties: position, orientation, start, maximum event age and equivalent distance.
+   public void saveProperties(DataOutputStream writer) throws IOException
+   {
+      Utility.saveInt(writer, x);
+      Utility.saveInt(writer, y);
+      Utility.saveInt(writer, orientation);
+      Utility.saveInt(writer, x2);
+      Utility.saveInt(writer, y2);
+      Utility.saveInt(writer, orientation2);
+      Utility.saveInt(writer, maxEventAge);
+      Utility.saveFloat(writer, EQUIVALENT_MORPHOGNOSTIC_DISTANCE);
+      writer.flush();
+   }
+
+
+   // Load properties.
+   public void loadProperties(DataInputStream reader) throws IOException
+   {
+      loadProperties(reader, true);
+   }
+
+
+   // Load properties, setting the equivalent morphognostic distance, or checking that
+   // it is the current one.
+   public void loadProperties(DataInputStream reader, boolean setProperties) throws IOException
+   {
+      x            = Utility.loadInt(reader);
+      y            = Utility.loadInt(reader);
+      orientation  = Utility.loadInt(reader);
+      x2           = Utility.loadInt(reader);
+      y2           = Utility.loadInt(reader);
+      orientation2 = Utility.loadInt(reader);
+      maxEventAge  = Utility.loadInt(reader);
+      loadDistance(reader, setProperties);
+   }
+
+
+   // Load equivalent morphognostic distance. Unless setting it, a distance differing
+   // from the current one is refused, leaving it unchanged.
+   static void loadDistance(DataInputStream reader, boolean setProperties) throws IOException
+   {
+      float distance = Utility.loadFloat(reader);
+
+      if (setProperties)
+      {
+         EQUIVALENT_MORPHOGNOSTIC_DISTANCE = distance;
+      }
+      else if (distance != EQUIVALENT_MORPHOGNOSTIC_DISTANCE)
+      {
+         throw new IOException("Equivalent morphognostic distance differs from current one");
+      }
+   }
+
+
+   // Save metamorphs.
+   public void saveMetamorphs(DataOutputStream writer) throws IOException
+   {
+      Utility.saveInt(writer, metamorphs.size());
+      for (Metamorph m : metamorphs)
+      {
+         m.save(writer);
+      }
+      writer.flush();
+   }
+
+
+   // Load metamorphs.
+   public void loadMetamorphs(DataInputStream reader) throws IOException
+   {
       metamorphs.clear();
       int n = Utility.loadInt(reader);
       for (int i = 0; i < n; i++)
       {
          metamorphs.add(Metamorph.load(reader));
       }
-      EQUIVALENT_MORPHOGNOSTIC_DISTANCE = Utility.loadFloat(reader);
+      metamorphTree = null;
+   }
+
+
+   // Snapshot of saved state, for saving while the pufferfish steps: position,
+   // orientation, start and maximum event age, a morphognostic clone, and a read-only
+   // snapshot of the metamorphs.
+   public Pufferfish snapshot()
+   {
+      Pufferfish snapshot = new Pufferfish();
+
+      snapshot.nest          = nest;
+      snapshot.randomSeed    = randomSeed;
+      snapshot.x             = x;
+      snapshot.y             = y;
+      snapshot.orientation   = orientation;
+      snapshot.x2            = x2;
+      snapshot.y2            = y2;
+      snapshot.orientation2  = orientation2;
+      snapshot.maxEventAge   = maxEventAge;
+      snapshot.morphognostic = morphognostic.clone();
+      snapshot.metamorphs    = metamorphs.getSnapshot();
+      return(snapshot);
+   }
+
+
+   // Initialize after loading.
+   void initLoaded()
+   {
+      metamorphQuery           = new MetamorphStore.Query();
+      incrementalMorphognostic = new IncrementalMorphognostic(morphognostic,
+                                                              nest.size.width, nest.size.height);
       initAutopilot();
    }
 
 
+   // Share read-only metamorphs, replacing the pufferfish metamorphs with an overlay
+   // of them holding metamorphs learned from now on.
+   public void shareMetamorphs(MetamorphStore shared)
+   {
+      metamorphs = new MetamorphStore(shared);
+      metamorphs.setCapacity(METAMORPH_CAPACITY, METAMORPH_EVICTION_POLICY);
+      metamorphTree = null;
+   }
+
+
    // Sensor/response cycle.
    public int cycle(float[] sensors)
    {
@@ -341,6 +542,70 @@ public class Pufferfish
       {
          events.remove(0);
       }
+      if (INCREMENTAL_MORPHOGNOSTIC_UPDATE)
+      {
+         incrementalMorphognostic.update(values, x, y);
+         if (incrementalMorphognostic.sampleVerify(VERIFY_MORPHOGNOSTIC_UPDATE_PROBABILITY))
+         {
+            incrementalMorphognostic.verify(getMorphEvents(), x, y);
+         }
+      }
+      else
+      {
+         morphognostic.update(getMorphEvents(), x, y);
+      }
+
+      metamorphQuery.set(morphognostic);
+
+      // Respond.
+      if ((autopilotTapePosition != -1) &&
+          (!AUTOPILOT_TAPE || (driver != DRIVER_TYPE.AUTOPILOT.getValue())))
+      {
+         stopAutopilotTape();
+      }
+      if (driver == DRIVER_TYPE.METAMORPH_RULES.getValue())
+      {
+         metamorphRulesResponse();
+      }
+      else if (driver == DRIVER_TYPE.AUTOPILOT.getValue())
+      {
+         if (autopilotTapePosition != -1)
+         {
+            autopilotTapeResponse();
+         }
+         else
+         {
+            autoPilotResponse();
+         }
+      }
+      else if (driver == DRIVER_TYPE.DECISION_TREE.getValue())
+      {
+         decisionTreeResponse();
+      }
+      else if (driver == DRIVER_TYPE.NEURAL_NETWORK.getValue())
+      {
+         networkResponse();
+      }
+      else
+      {
+         response = driverResponse;
+      }
+
+      // Update metamorphs.
+      // The store keeps a frozen copy of the morphognostic densities.
+      // An equivalent metamorph counts as matched.
+      // The metamorphs may be shared with pufferfish learning concurrently.
+      metamorphs.addIfNotEquivalent(new Metamorph(morphognostic, response), metamorphQuery,
+                                    EQUIVALENT_MORPHOGNOSTIC_DISTANCE);
+
+      eventTime++;
+      return(response);
+   }
+
+
+   // Get morphognostic events from event history.
+   int[][][][] getMorphEvents()
+   {
       int w = nest.size.width;
       int h = nest.size.height;
       int a = maxEventAge + 1;
@@ -365,87 +630,151 @@ public class Pufferfish
             morphEvents[e.x][e.y][n][eventTime - e.time] = e.values[n];
          }
       }
-      morphognostic.update(morphEvents, x, y);
+      return(morphEvents);
+   }
 
-      // Respond.
-      if (driver == DRIVER_TYPE.METAMORPH_RULES.getValue())
+
+   // Get metamorph rules response.
+   void metamorphRulesResponse()
+   {
+      response = WAIT;
+      int m;
+      if (metamorphBatchSearch != null)
       {
-         metamorphRulesResponse();
+         m = metamorphBatchSearch.findNearest(metamorphQuery, random);
+         if (m != -1)
+         {
+            response = metamorphBatchSearch.metamorphs.getResponse(m);
+         }
+         return;
       }
-      else if (driver == DRIVER_TYPE.AUTOPILOT.getValue())
+      if (APPROXIMATE_METAMORPH_SEARCH)
       {
-         autoPilotResponse();
+         if (metamorphs.getIndex() == null)
+         {
+            metamorphs.setIndex(new MetamorphIndex(LSH_NUM_TABLES, LSH_NUM_HASHES,
+                                                   LSH_BUCKET_WIDTH, randomSeed));
+         }
+         m = metamorphs.findApproximateNearest(metamorphQuery, random);
+         if ((AUDIT_APPROXIMATE_SEARCH_PROBABILITY > 0.0f) &&
+             (auditRandom.nextFloat() < AUDIT_APPROXIMATE_SEARCH_PROBABILITY))
+         {
+            int exact = metamorphs.findNearest(metamorphQuery, auditRandom);
+            approximateSearchAudits++;
+            if ((exact != -1) && (m != -1) &&
+                (metamorphs.getResponse(exact) != metamorphs.getResponse(m)))
+            {
+               approximateSearchDisagreements++;
+            }
+         }
       }
       else
       {
-         response = driverResponse;
+         m = metamorphs.findNearest(metamorphQuery, random);
       }
+      if (m != -1)
+      {
+         metamorphs.recordMatch(m);
+         response = metamorphs.getResponse(m);
+      }
+   }
 
-      // Update metamorphs.
-      Metamorph metamorph = new Metamorph(morphognostic.clone(), response);
-      boolean   found     = false;
 
-      for (Metamorph m : metamorphs)
+   // Prepare what the driver searches from the metamorphs: the approximate search index,
+   // decision tree or neural network, if not already present.
+   public void prepareDriver(int driver)
+   {
+      if ((driver == DRIVER_TYPE.METAMORPH_RULES.getValue()) && APPROXIMATE_METAMORPH_SEARCH &&
+          (metamorphs.getIndex() == null) && !metamorphs.isReadOnly())
       {
-         for (int i = 0; i < Orientation.NUM_ORIENTATIONS; i++)
-         {
-            metamorph.morphognostic.orientation = i;
-            if (m.morphognostic.compare(metamorph.morphognostic) <=
-                EQUIVALENT_MORPHOGNOSTIC_DISTANCE)
-            {
-               found = true;
-               break;
-            }
-         }
-         if (found) { break; }
+         metamorphs.setIndex(new MetamorphIndex(LSH_NUM_TABLES, LSH_NUM_HASHES,
+                                                LSH_BUCKET_WIDTH, randomSeed));
       }
-      metamorph.morphognostic.orientation = Orientation.NORTH;
-      if (!found)
+      else if ((driver == DRIVER_TYPE.DECISION_TREE.getValue()) && (metamorphTree == null))
       {
-         metamorphs.add(metamorph);
+         compileMetamorphTree();
+      }
+      else if ((driver == DRIVER_TYPE.NEURAL_NETWORK.getValue()) && (metamorphNetwork == null))
+      {
+         trainMetamorphNetwork();
       }
-
-      eventTime++;
-      return(response);
    }
 
 
-   // Get metamorph rules response.
-   void metamorphRulesResponse()
+   // Get decision tree response.
+   void decisionTreeResponse()
    {
-      response = WAIT;
-      Metamorph metamorph = null;
-      float     d         = 0.0f;
-      float     d2;
-      for (Metamorph m : metamorphs)
+      if (metamorphTree == null)
       {
-         for (int i = 0; i < Orientation.NUM_ORIENTATIONS; i++)
+         compileMetamorphTree();
+      }
+      response = metamorphTree.getResponse(metamorphQuery);
+      if ((AUDIT_DECISION_TREE_PROBABILITY > 0.0f) &&
+          (auditRandom.nextFloat() < AUDIT_DECISION_TREE_PROBABILITY))
+      {
+         int m = metamorphs.findNearest(metamorphQuery, auditRandom);
+         decisionTreeAudits++;
+         if ((m != -1) && (metamorphs.getResponse(m) != response))
          {
-            morphognostic.orientation = i;
-            d2 = morphognostic.compare(m.morphognostic);
-            if ((metamorph == null) || (d2 < d))
-            {
-               d         = d2;
-               metamorph = m;
-            }
-            else
-            {
-               if (d2 == d)
-               {
-                  if (random.nextBoolean())
-                  {
-                     d         = d2;
-                     metamorph = m;
-                  }
-               }
-            }
+            decisionTreeDisagreements++;
          }
       }
-      morphognostic.orientation = Orientation.NORTH;
-      if (metamorph != null)
+   }
+
+
+   // Compile metamorphs into decision tree.
+   public void compileMetamorphTree()
+   {
+      metamorphTree = new MetamorphDecisionTree(metamorphs, DECISION_TREE_MAX_DEPTH);
+   }
+
+
+   // Get neural network response.
+   void networkResponse()
+   {
+      if (metamorphNetwork == null)
+      {
+         trainMetamorphNetwork();
+      }
+      if (networkInput == null)
+      {
+         networkInputIndexes = MetamorphNetwork.getInputIndexes(morphognostic);
+         networkInput        = new float[networkInputIndexes.length];
+      }
+      MetamorphNetwork.getInput(metamorphQuery.rotations[morphognostic.orientation],
+                                networkInputIndexes, networkInput, 0);
+      response = metamorphNetwork.getResponse(networkInput);
+   }
+
+
+   // Train neural network on metamorphs.
+   public void trainMetamorphNetwork()
+   {
+      int[] inputIndexes = MetamorphNetwork.getInputIndexes(morphognostic);
+      int[] units;
+
+      if (NETWORK_HIDDEN_UNITS > 0)
+      {
+         units = new int[] { inputIndexes.length, NETWORK_HIDDEN_UNITS, NUM_RESPONSES };
+      }
+      else
       {
-         response = metamorph.response;
+         units = new int[] { inputIndexes.length, NUM_RESPONSES };
       }
+      SecureRandom networkRandom = new SecureRandom();
+      networkRandom.setSeed(randomSeed);
+      metamorphNetwork = new MetamorphNetwork(units);
+      metamorphNetwork.initWeights(networkRandom);
+      networkTrainingAgreement = metamorphNetwork.train(metamorphs, inputIndexes,
+                                                        NETWORK_TRAINING_EPOCHS, networkRandom);
+   }
+
+
+   // Check network inputs and outputs.
+   public boolean isNetworkCompatible(MetamorphNetwork network)
+   {
+      return((network.getNumInputs() == MetamorphNetwork.getInputIndexes(morphognostic).length) &&
+             (network.units[network.units.length - 1] == NUM_RESPONSES));
    }
 
 
@@ -479,6 +808,148 @@ public class Pufferfish
       spokeIndex  = 0;
       spokeDir    = 0;
       spokePath   = null;
+      autopilotTapePosition = 0;
+      autopilotLag          = 0;
+   }
+
+
+   // Autopilot response replayed from tape, compiled for the nest and start position
+   // if needed. Beyond the end of an incomplete tape, the autopilot runs itself.
+   void autopilotTapeResponse()
+   {
+      if ((autopilotTapePosition == 0) &&
+          ((autopilotTape == null) || !autopilotTape.isFor(this)))
+      {
+         autopilotTape = compileAutopilotTape();
+      }
+      if ((autopilotTapePosition >= autopilotTape.getLength()) && !autopilotTape.isComplete())
+      {
+         stopAutopilotTape();
+         autoPilotResponse();
+         return;
+      }
+      int tapeResponse = autopilotTape.getResponse(autopilotTapePosition++);
+      if (VERIFY_AUTOPILOT_TAPE)
+      {
+         catchUpAutopilot();
+         autoPilotResponse();
+         if (response != tapeResponse)
+         {
+            autopilotTapeMismatches++;
+         }
+      }
+      else
+      {
+         response = tapeResponse;
+         autopilotLag++;
+      }
+   }
+
+
+   // Stop replaying autopilot tape, catching up the autopilot.
+   void stopAutopilotTape()
+   {
+      catchUpAutopilot();
+      autopilotTapePosition = -1;
+   }
+
+
+   // Catch up autopilot on steps replayed from tape by running it from the tape start.
+   void catchUpAutopilot()
+   {
+      if (autopilotLag == 0) { return; }
+      int px       = x;
+      int py       = y;
+      int po       = orientation;
+      int pr       = response;
+      int position = autopilotTapePosition;
+      int lag      = autopilotLag;
+      x = autopilotTape.x;
+      y = autopilotTape.y;
+      initAutopilot();
+      for (int i = 0; i < lag; i++)
+      {
+         autoPilotResponse();
+         moveAutopilot();
+      }
+      x           = px;
+      y           = py;
+      orientation = po;
+      response    = pr;
+      autopilotTapePosition = position;
+   }
+
+
+   // Compile autopilot tape for the nest from the autopilot start at the current position.
+   public AutopilotTape compileAutopilotTape()
+   {
+      int           px   = x;
+      int           py   = y;
+      int           po   = orientation;
+      int           pr   = response;
+      AutopilotTape tape = new AutopilotTape(this);
+
+      initAutopilot();
+      while (!isAutopilotComplete() && (tape.getLength() < AutopilotTape.MAX_LENGTH))
+      {
+         autoPilotResponse();
+         tape.add(response);
+         moveAutopilot();
+      }
+      tape.complete = isAutopilotComplete();
+      x             = px;
+      y             = py;
+      response      = pr;
+      initAutopilot();
+      orientation = po;
+      return(tape);
+   }
+
+
+   // Has autopilot visited every spoke?
+   boolean isAutopilotComplete()
+   {
+      return((state == 1) && (spoke >= Nest.NUM_SPOKES));
+   }
+
+
+   // Move for autopilot response as in the nest.
+   void moveAutopilot()
+   {
+      int w = nest.size.width;
+      int h = nest.size.height;
+
+      switch (response)
+      {
+      case FORWARD:
+         switch (orientation)
+         {
+         case Orientation.NORTH:
+            y = (y + 1) % h;
+            break;
+
+         case Orientation.EAST:
+            x = (x + 1) % w;
+            break;
+
+         case Orientation.SOUTH:
+            y = (y + h - 1) % h;
+            break;
+
+         case Orientation.WEST:
+            x = (x + w - 1) % w;
+            break;
+         }
+         break;
+
+      case TURN_LEFT:
+         orientation = (orientation + Orientation.NUM_ORIENTATIONS - 1) % Orientation.NUM_ORIENTATIONS;
+         break;
+
+      case TURN_RIGHT:
+         orientation = (orientation + 1) % Orientation.NUM_ORIENTATIONS;
+         break;
+      }
    }
 
 
@@ -515,7 +986,7 @@ public class Pufferfish
 
                case Orientation.NORTH:
                   state = 1;
-                  genSpokePath();
+                  startSpokePath();
                   response = TURN_LEFT;
                   break;
                }
@@ -541,7 +1012,7 @@ public class Pufferfish
                      if ((ring == radius) && (step > steps))
                      {
                         state = 1;
-                        genSpokePath();
+                        startSpokePath();
                      }
                   }
                   break;
@@ -591,26 +1062,26 @@ public class Pufferfish
       else
       {
          if (spoke == Nest.NUM_SPOKES) { return; }
-         SpokePoint p = spokePath.get(spokeIndex);
+         AutopilotPlan.SpokePoint p = spokePath[spokeIndex];
          if ((x == p.x) && (y == p.y))
          {
-            if (p.raise)
+            if (p.raise && (spokeActions[spokeIndex] < 1))
             {
                response = RAISE;
-               p.raise  = false;
+               spokeActions[spokeIndex] = 1;
                return;
             }
-            else if (p.lower)
+            else if (p.lower && (spokeActions[spokeIndex] < 2))
             {
                response = LOWER;
-               p.lower  = false;
+               spokeActions[spokeIndex] = 2;
                return;
             }
             else
             {
                if (spokeDir == 0)
                {
-                  if (spokeIndex == (spokePath.size() - 1))
+                  if (spokeIndex == (spokePath.length - 1))
                   {
                      spokeIndex--;
                      spokeDir = 1;
@@ -630,14 +1101,12 @@ public class Pufferfish
                   {
                      spoke++;
                      if (spoke == Nest.NUM_SPOKES) { return; }
-                     spokeDir   = 0;
-                     spokeIndex = 1;
-                     genSpokePath();
+                     startSpokePath();
                   }
                }
             }
          }
-         p = spokePath.get(spokeIndex);
+         p = spokePath[spokeIndex];
          switch (orientation)
          {
          case Orientation.WEST:
@@ -720,51 +1189,25 @@ public class Pufferfish
    }
 
 
-   // Generate spoke path.
-   void genSpokePath()
+   // Start path of current spoke from the autopilot plan for the nest.
+   void startSpokePath()
    {
-      spokePath = new ArrayList<SpokePoint>();
-      float  angle = (360.0f / (float)Nest.NUM_SPOKES) * (float)spoke;
-      float  vx    = (float)Math.cos(Math.toRadians(angle + 90.0f));
-      float  vy    = (float)Math.sin(Math.toRadians(angle + 90.0f));
-      int    cx    = nest.size.width / 2;
-      int    cy    = nest.size.height / 2;
-      double d     = (double)(Nest.CENTER_RADIUS + Nest.SPOKE_LENGTH);
-      for (int i = 0; ; i++)
+      AutopilotPlan plan = AutopilotPlan.get(nest.size.width, nest.size.height, Nest.CENTER_RADIUS,
+                                             Nest.SPOKE_LENGTH, Nest.SPOKE_RIPPLE_LENGTH, Nest.NUM_SPOKES);
+
+      spokeIndex = 0;
+      spokeDir   = 0;
+      if (spoke >= plan.getNumSpokes())
       {
-         int        px = (int)(vx * (float)i) + cx;
-         int        py = (int)(vy * (float)i) + cy;
-         SpokePoint p  = new SpokePoint(px, py);
-         if (spokePath.size() > 0)
-         {
-            SpokePoint p2 = spokePath.get(spokePath.size() - 1);
-            if ((p2.x == p.x) && (p2.y == p.y)) { continue; }
-         }
-         spokePath.add(p);
-         double dx = p.x - cx;
-         double dy = p.y - cy;
-         if (Math.sqrt((dx * dx) + (dy * dy)) >= d) { break; }
+         spokePath = null;
+         return;
       }
-      int a = Nest.SPOKE_RIPPLE_LENGTH / 2;
-      int b = spokePath.size() - 1;
-      for (int i = 0; i < 4 && a > 0 && b >= 0; i++)
+      spokePath = plan.getSpokePath(spoke);
+      if ((spokeActions == null) || (spokeActions.length < spokePath.length))
       {
-         for (int j = 0; j < a && b >= 0; j++)
-         {
-            SpokePoint p = spokePath.get(b);
-            b--;
-            if ((i % 2) == 0)
-            {
-               p.raise = true;
-            }
-            else
-            {
-               p.lower = true;
-            }
-         }
+         spokeActions = new byte[plan.getMaxPathLength()];
       }
-      spokeIndex = 0;
-      spokeDir   = 0;
+      Arrays.fill(spokeActions, 0, spokePath.length, (byte)0);
    }
 
 
@@ -823,27 +1266,23 @@ public class Pufferfish
       {
          dx = 3;
       }
-      for (int i = 0; i < morphognostic.NUM_NEIGHBORHOODS; i++)
+      float[] vector = MorphognosticDistance.flatten(morphognostic);
+      for (int p = 0; p < vector.length; )
       {
-         Neighborhood neighborhood = morphognostic.neighborhoods.get(i);
-         float[][][] densities = neighborhood.rectifySectorTypeDensities();
-         int n = neighborhood.sectors.length;
-         for (int j = 0, j2 = n * n; j < j2; j++)
+         for (int d = 0, d2 = morphognostic.eventDimensions; d < d2; d++)
          {
-            for (int d = dx, d2 = morphognostic.eventDimensions; d < d2; d++)
+            for (int k = 0, k2 = morphognostic.numEventTypes[d]; k < k2; k++, p++)
             {
-               for (int k = 0, k2 = morphognostic.numEventTypes[d]; k < k2; k++)
+               if (d < dx) { continue; }
+               if (skipComma)
                {
-                  if (skipComma)
-                  {
-                     skipComma = false;
-                  }
-                  else
-                  {
-                     output += ",";
-                  }
-                  output += (densities[j][d][k] + "");
+                  skipComma = false;
+               }
+               else
+               {
+                  output += ",";
                }
+               output += (vector[p] + "");
             }
          }
       }
@@ -99,7 +99,7 @@ public class PufferfishDashboard extends JFrame
       setElevations(elevationsString);
 
       // Update previous response.
-      setPreviousResponse(Pufferfish.getResponseName(Main.previousResponse));
+      setPreviousResponse(Pufferfish.getResponseName(pufferfish.previousResponse));
 
       // Update response.
       setResponse(Pufferfish.getResponseName(pufferfish.response));
@@ -336,6 +336,8 @@ public class PufferfishDashboard extends JFrame
          driverChoice.add("autopilot");
          driverChoice.add("metamorphRules");
          driverChoice.add("manual");
+         driverChoice.add("decisionTree");
+         driverChoice.add("neuralNetwork");
          driverChoice.addItemListener(this);
          JPanel responsePanel = new JPanel();
          responsePanel.setLayout(new FlowLayout());
@@ -374,6 +376,12 @@ public class PufferfishDashboard extends JFrame
          {
             pufferfish.driver = driverChoice.getSelectedIndex();
 
+            if (pufferfish.driver == Pufferfish.DRIVER_TYPE.DECISION_TREE.getValue())
+            {
+               // Compile current metamorphs.
+               pufferfish.metamorphTree = null;
+            }
+
             if (pufferfish.driver == Pufferfish.DRIVER_TYPE.MANUAL.getValue())
             {
                setManualResponseButtons(true);
@@ -403,8 +411,8 @@ public class PufferfishDashboard extends JFrame
                setElevations(elevationsString);
 
                // Update previous response.
-               Main.previousResponse = Pufferfish.WAIT;
-               setPreviousResponse(Pufferfish.getResponseName(Main.previousResponse));
+               pufferfish.previousResponse = Pufferfish.WAIT;
+               setPreviousResponse(Pufferfish.getResponseName(pufferfish.previousResponse));
 
                // Update response.
                setResponse(Pufferfish.getResponseName(pufferfish.response));
@@ -499,6 +507,7 @@ public class PufferfishDashboard extends JFrame
          if ((JButton)evt.getSource() == clearMetamorphsButton)
          {
             pufferfish.metamorphs.clear();
+            pufferfish.metamorphTree = null;
             return;
          }
 
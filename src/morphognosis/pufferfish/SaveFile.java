@@ -0,0 +1,300 @@
+// For conditions of distribution and use, see copyright notice in Main.java
+
+// Save file.
+// A magic number and version, then sections for the nest, pufferfish, morphognostic
+// and metamorphs, ending with an end section. Each section has a header with its
+// codec, uncompressed and stored lengths and a checksum of its contents.
+// Nest cells are bit-packed, and sections can be deflated.
+// Sections are read in one pass and decoded after the end section; unknown sections
+// are skipped. Files without the magic number are legacy files, loaded as before.
+
+package morphognosis.pufferfish;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import morphognosis.Morphognostic;
+import morphognosis.Utility;
+
+public class SaveFile
+{
+   // Magic number ("PUFF") and version.
+   public static final int MAGIC   = 0x50554646;
+   public static final int VERSION = 1;
+
+   // Sections.
+   public static final int END_SECTION           = 0;
+   public static final int NEST_SECTION          = 1;
+   public static final int PUFFERFISH_SECTION    = 2;
+   public static final int MORPHOGNOSTIC_SECTION = 3;
+   public static final int METAMORPHS_SECTION    = 4;
+
+   // Section codecs.
+   public static final int RAW_CODEC     = 0;
+   public static final int DEFLATE_CODEC = 1;
+
+   // Maximum section length.
+   public static int MAX_SECTION_LENGTH = 1 << 30;
+
+   // Formats.
+   public static final int LEGACY_FORMAT     = 0;
+   public static final int PACKED_FORMAT     = 1;
+   public static final int COMPRESSED_FORMAT = 2;
+   public static int       FORMAT            = COMPRESSED_FORMAT;
+
+   // Snapshot: nest and pufferfish state to save.
+   public static class Snapshot
+   {
+      final int        format;
+      final Nest       nest;
+      final Pufferfish pufferfish;
+
+      Snapshot(int format, Nest nest, Pufferfish pufferfish)
+      {
+         this.format     = format;
+         this.nest       = nest;
+         this.pufferfish = pufferfish;
+      }
+   }
+
+
+   // Save nest and pufferfish.
+   public static void save(DataOutputStream writer, Nest nest, Pufferfish pufferfish, int format) throws IOException
+   {
+      write(writer, new Snapshot(format, nest, pufferfish));
+   }
+
+
+   // Snapshot nest and pufferfish, copying their state without encoding it, so that
+   // it can be written by another thread while they change.
+   public static Snapshot snapshot(Nest nest, Pufferfish pufferfish, int format)
+   {
+      return(new Snapshot(format, nest.snapshot(), pufferfish.snapshot()));
+   }
+
+
+   // Write snapshot.
+   public static void write(DataOutputStream writer, Snapshot snapshot) throws IOException
+   {
+      Nest       nest       = snapshot.nest;
+      Pufferfish pufferfish = snapshot.pufferfish;
+
+      if (snapshot.format == LEGACY_FORMAT)
+      {
+         nest.save(writer);
+         pufferfish.save(writer);
+         writer.flush();
+         return;
+      }
+      boolean               compress = (snapshot.format == COMPRESSED_FORMAT);
+      ByteArrayOutputStream buffer   = new ByteArrayOutputStream();
+      DataOutputStream      section  = new DataOutputStream(buffer);
+      Utility.saveInt(writer, MAGIC);
+      Utility.saveInt(writer, VERSION);
+      nest.savePacked(section);
+      writeSection(writer, NEST_SECTION, buffer, compress);
+      pufferfish.saveProperties(section);
+      writeSection(writer, PUFFERFISH_SECTION, buffer, compress);
+      pufferfish.morphognostic.save(section);
+      section.flush();
+      writeSection(writer, MORPHOGNOSTIC_SECTION, buffer, compress);
+      pufferfish.saveMetamorphs(section);
+      writeSection(writer, METAMORPHS_SECTION, buffer, compress);
+      writeSection(writer, END_SECTION, new byte[0], false);
+      writer.flush();
+   }
+
+
+   // Write buffered section and reset buffer.
+   static void writeSection(DataOutputStream writer, int id, ByteArrayOutputStream buffer, boolean compress) throws IOException
+   {
+      writeSection(writer, id, buffer.toByteArray(), compress);
+      buffer.reset();
+   }
+
+
+   // Write section.
+   static void writeSection(DataOutputStream writer, int id, byte[] data, boolean compress) throws IOException
+   {
+      byte[] stored = data;
+      int    codec  = RAW_CODEC;
+
+      if (compress && (data.length > 0))
+      {
+         Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+         deflater.setInput(data);
+         deflater.finish();
+         ByteArrayOutputStream output = new ByteArrayOutputStream(data.length / 2 + 64);
+         byte[] block = new byte[8192];
+         while (!deflater.finished())
+         {
+            output.write(block, 0, deflater.deflate(block));
+         }
+         deflater.end();
+         if (output.size() < data.length)
+         {
+            stored = output.toByteArray();
+            codec  = DEFLATE_CODEC;
+         }
+      }
+      CRC32 crc = new CRC32();
+      crc.update(data, 0, data.length);
+      Utility.saveInt(writer, id);
+      Utility.saveInt(writer, codec);
+      Utility.saveInt(writer, data.length);
+      Utility.saveInt(writer, stored.length);
+      Utility.saveInt(writer, (int)crc.getValue());
+      writer.write(stored, 0, stored.length);
+   }
+
+
+   // Does input start with magic number?
+   // Input must support mark.
+   public static boolean isSaveFile(InputStream input) throws IOException
+   {
+      byte[] bytes = new byte[4];
+      int    n     = 0;
+
+      input.mark(bytes.length);
+      while (n < bytes.length)
+      {
+         int r = input.read(bytes, n, bytes.length - n);
+         if (r < 0) { break; }
+         n += r;
+      }
+      input.reset();
+      if (n < bytes.length) { return(false); }
+      return((((bytes[0] & 0xff) << 24) | ((bytes[1] & 0xff) << 16) |
+              ((bytes[2] & 0xff) << 8) | (bytes[3] & 0xff)) == MAGIC);
+   }
+
+
+   // Load nest and pufferfish into main, setting the nest properties and equivalent
+   // morphognostic distance, or checking that they are the current ones.
+   public static void load(DataInputStream reader, Main main, boolean setProperties) throws IOException
+   {
+      byte[][] sections = readSections(reader);
+
+      if ((sections[NEST_SECTION] == null) || (sections[PUFFERFISH_SECTION] == null) ||
+          (sections[MORPHOGNOSTIC_SECTION] == null) || (sections[METAMORPHS_SECTION] == null))
+      {
+         throw new IOException("Missing save file section");
+      }
+      Nest nest = new Nest();
+      nest.loadPacked(section(sections, NEST_SECTION), setProperties);
+      Pufferfish pufferfish = new Pufferfish(nest, main.randomSeed);
+      pufferfish.loadProperties(section(sections, PUFFERFISH_SECTION), setProperties);
+      pufferfish.morphognostic = Morphognostic.load(section(sections, MORPHOGNOSTIC_SECTION));
+      pufferfish.loadMetamorphs(section(sections, METAMORPHS_SECTION));
+      pufferfish.initLoaded();
+      main.nest       = nest;
+      main.pufferfish = pufferfish;
+   }
+
+
+   // Read sections through end section, checking version and checksums.
+   static byte[][] readSections(DataInputStream reader) throws IOException
+   {
+      if (Utility.loadInt(reader) != MAGIC)
+      {
+         throw new IOException("Not a save file");
+      }
+      int version = Utility.loadInt(reader);
+      if ((version < 1) || (version > VERSION))
+      {
+         throw new IOException("Unsupported save file version " + version);
+      }
+      byte[][] sections = new byte[METAMORPHS_SECTION + 1][];
+      while (true)
+      {
+         int id           = Utility.loadInt(reader);
+         int codec        = Utility.loadInt(reader);
+         int length       = Utility.loadInt(reader);
+         int storedLength = Utility.loadInt(reader);
+         int checksum     = Utility.loadInt(reader);
+         if ((length < 0) || (length > MAX_SECTION_LENGTH) ||
+             (storedLength < 0) || (storedLength > MAX_SECTION_LENGTH))
+         {
+            throw new IOException("Invalid save file section " + id + " length");
+         }
+         byte[] stored = new byte[storedLength];
+         reader.readFully(stored);
+         if (id == END_SECTION) { break; }
+         if ((id < 0) || (id >= sections.length)) { continue; }
+         byte[] data;
+         switch (codec)
+         {
+         case RAW_CODEC:
+            if (storedLength != length)
+            {
+               throw new IOException("Invalid save file section " + id + " length");
+            }
+            data = stored;
+            break;
+
+         case DEFLATE_CODEC:
+            data = inflate(stored, length);
+            if (data == null)
+            {
+               throw new IOException("Cannot decompress save file section " + id);
+            }
+            break;
+
+         default:
+            throw new IOException("Unknown codec " + codec + " for save file section " + id);
+         }
+         CRC32 crc = new CRC32();
+         crc.update(data, 0, data.length);
+         if ((int)crc.getValue() != checksum)
+         {
+            throw new IOException("Checksum mismatch for save file section " + id);
+         }
+         sections[id] = data;
+      }
+      return(sections);
+   }
+
+
+   // Inflate to length.
+   static byte[] inflate(byte[] stored, int length)
+   {
+      Inflater inflater = new Inflater();
+      byte[]   data     = new byte[length];
+      int      n        = 0;
+
+      inflater.setInput(stored);
+      try
+      {
+         while (n < length && !inflater.finished())
+         {
+            int r = inflater.inflate(data, n, length - n);
+            if ((r == 0) && (inflater.needsInput() || inflater.needsDictionary())) { break; }
+            n += r;
+         }
+         if ((n != length) || !inflater.finished()) { data = null; }
+      }
+      catch (DataFormatException e)
+      {
+         data = null;
+      }
+      finally
+      {
+         inflater.end();
+      }
+      return(data);
+   }
+
+
+   // Section reader.
+   static DataInputStream section(byte[][] sections, int id)
+   {
+      return(new DataInputStream(new ByteArrayInputStream(sections[id])));
+   }
+}
@@ -0,0 +1,571 @@
+// For conditions of distribution and use, see copyright notice in Main.java
+
+// Simulation server.
+// Resident process running simulation jobs requested on a local socket, one request
+// line per connection, with options as for Main:
+//   [-load <file name>] [-randomSeed <seed>] [-driver <driver>] -steps <steps>
+//   [-untilComplete <autopilot | <nest image file name>>] [-save <file name>]
+// A job runs as a resumed or new run of Main would, replying with a result line
+// starting with OK, or ERROR, or BUSY when the worker queue is full.
+// Loaded runs are cached: each job starts from a snapshot of the loaded nest and
+// pufferfish, sharing the loaded metamorphs read-only with its own overlay.
+// Nest properties are static, so all loaded runs must have those of the server:
+// the defaults, or those of the runs loaded at startup; a job loading a run with
+// other properties is refused without changing them.
+// The request line "shutdown" stops the server after running the queued jobs.
+
+package morphognosis.pufferfish;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import morphognosis.Morphognostic;
+
+public class SimulationServer
+{
+   // Defaults.
+   public static final int DEFAULT_PORT       = 4518;
+   public static final int DEFAULT_QUEUE_SIZE = 64;
+   public static final int REQUEST_TIMEOUT    = 10000;
+   public static final int MAX_READERS        = 64;
+
+   // Usage.
+   public static final String Usage =
+      "Usage:\n" +
+      "  Server:\n" +
+      "    java morphognosis.pufferfish.SimulationServer\n" +
+      "     [-port <port> (local port, default=" + DEFAULT_PORT + ")]\n" +
+      "     [-workers <quantity> (jobs run at once, default=available processors)]\n" +
+      "     [-queueSize <quantity> (jobs waiting before requests are refused, default=" + DEFAULT_QUEUE_SIZE + ")]\n" +
+      "     [-load <file name> (cache loaded run at startup, setting nest properties; may be repeated)]\n" +
+      "  Request:\n" +
+      "    java morphognosis.pufferfish.SimulationServer\n" +
+      "      -request <request line | shutdown>\n" +
+      "     [-port <port> (default=" + DEFAULT_PORT + ")]\n" +
+      "  Request line:\n" +
+      "    [-load <file name>] [-randomSeed <random number seed> (default=" + Main.DEFAULT_RANDOM_SEED + ")]\n" +
+      "    [-driver <metamorphRules | decisionTree | neuralNetwork | autopilot> (default=autopilot)]\n" +
+      "    -steps <steps> [-untilComplete <autopilot | <nest image file name>>] [-save <file name>]";
+
+   // Cached loaded run.
+   static class LoadedRun
+   {
+      byte[]         snapshot;
+      MetamorphStore metamorphs;
+   }
+
+   // Loaded runs by file name.
+   ConcurrentHashMap<String, LoadedRun> loadedRuns = new ConcurrentHashMap<String, LoadedRun>();
+
+   // Workers.
+   ThreadPoolExecutor workers;
+
+   // Request readers.
+   ThreadPoolExecutor readers;
+
+   // Shutdown requested.
+   volatile boolean shutdown;
+
+   // Server socket.
+   ServerSocket serverSocket;
+
+   // Constructor.
+   public SimulationServer(int numWorkers, int queueSize)
+   {
+      workers = new ThreadPoolExecutor(numWorkers, numWorkers, 0L, TimeUnit.MILLISECONDS,
+                                       new ArrayBlockingQueue<Runnable>(queueSize));
+      readers = new ThreadPoolExecutor(0, MAX_READERS, 60L, TimeUnit.SECONDS,
+                                       new SynchronousQueue<Runnable>());
+   }
+
+
+   // Get loaded run, loading it if not cached.
+   // Unless setting them, a run whose nest properties or equivalent morphognostic
+   // distance differ from the current ones is refused without changing them, so
+   // jobs running meanwhile are not affected.
+   LoadedRun getLoadedRun(String filename, boolean setProperties) throws IOException
+   {
+      LoadedRun run = loadedRuns.get(filename);
+
+      if (run != null) { return(run); }
+      synchronized (loadedRuns)
+      {
+         run = loadedRuns.get(filename);
+         if (run != null) { return(run); }
+         Main main = new Main(Main.DEFAULT_RANDOM_SEED);
+         try
+         {
+            main.load(filename, setProperties);
+         }
+         catch (IOException e)
+         {
+            throw new IOException("Cannot load " + filename + ": " + e.getMessage());
+         }
+         run            = new LoadedRun();
+         run.metamorphs = main.pufferfish.metamorphs;
+         run.metamorphs.setReadOnly();
+         main.pufferfish.metamorphs = new MetamorphStore();
+         ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+         main.save(new DataOutputStream(snapshot));
+         run.snapshot = snapshot.toByteArray();
+         loadedRuns.put(filename, run);
+         return(run);
+      }
+   }
+
+
+   // Job.
+   static class Job
+   {
+      String loadfile;
+      String savefile;
+      String completionTarget;
+      int    randomSeed = Main.DEFAULT_RANDOM_SEED;
+      int    driver     = Pufferfish.DRIVER_TYPE.AUTOPILOT.getValue();
+      int    steps      = -1;
+
+      // Parse request line.
+      Job(String request) throws IOException
+      {
+         String[] args = request.trim().split("\\s+");
+
+         for (int i = 0; i < args.length; i += 2)
+         {
+            String option = args[i];
+            if (i + 1 >= args.length)
+            {
+               throw new IOException("Invalid option " + option);
+            }
+            String value = args[i + 1];
+            try
+            {
+               switch (option)
+               {
+               case "-load":
+                  loadfile = value;
+                  break;
+
+               case "-save":
+                  savefile = value;
+                  break;
+
+               case "-untilComplete":
+                  completionTarget = value;
+                  break;
+
+               case "-randomSeed":
+                  randomSeed = Integer.parseInt(value);
+                  break;
+
+               case "-steps":
+                  steps = Integer.parseInt(value);
+                  break;
+
+               case "-driver":
+                  driver = getDriver(value);
+                  break;
+
+               default:
+                  throw new IOException("Invalid option " + option);
+               }
+            }
+            catch (NumberFormatException e)
+            {
+               throw new IOException("Invalid " + option.substring(1) + " option");
+            }
+         }
+         if (steps < 0)
+         {
+            throw new IOException("Steps required");
+         }
+      }
+
+
+      // Get driver value.
+      static int getDriver(String name) throws IOException
+      {
+         switch (name)
+         {
+         case "metamorphRules":
+            return(Pufferfish.DRIVER_TYPE.METAMORPH_RULES.getValue());
+
+         case "autopilot":
+            return(Pufferfish.DRIVER_TYPE.AUTOPILOT.getValue());
+
+         case "decisionTree":
+            return(Pufferfish.DRIVER_TYPE.DECISION_TREE.getValue());
+
+         case "neuralNetwork":
+            return(Pufferfish.DRIVER_TYPE.NEURAL_NETWORK.getValue());
+         }
+         throw new IOException("Invalid driver option");
+      }
+   }
+
+   // Run job, returning result line.
+   String run(Job job) throws Exception
+   {
+      long start = System.nanoTime();
+      Main main  = new Main(job.randomSeed);
+
+      if (job.loadfile != null)
+      {
+         LoadedRun loadedRun = getLoadedRun(job.loadfile, false);
+         main.load(new ByteArrayInputStream(loadedRun.snapshot), false);
+         main.pufferfish.shareMetamorphs(loadedRun.metamorphs);
+      }
+      else
+      {
+         main.init(Morphognostic.DEFAULT_NUM_NEIGHBORHOODS,
+                   Morphognostic.DEFAULT_NEIGHBORHOOD_INITIAL_DIMENSION,
+                   Morphognostic.DEFAULT_NEIGHBORHOOD_DIMENSION_STRIDE,
+                   Morphognostic.DEFAULT_NEIGHBORHOOD_DIMENSION_MULTIPLIER,
+                   Morphognostic.DEFAULT_EPOCH_INTERVAL_STRIDE,
+                   Morphognostic.DEFAULT_EPOCH_INTERVAL_MULTIPLIER);
+      }
+      main.reset();
+      main.pufferfish.driver = job.driver;
+      String result;
+      if (job.completionTarget != null)
+      {
+         if (job.completionTarget.equals("autopilot"))
+         {
+            main.nest.completion = NestCompletion.forAutopilot(main.nest, main.pufferfish);
+         }
+         else
+         {
+            main.nest.completion = NestCompletion.forImage(main.nest, job.completionTarget);
+         }
+         int completionSteps = main.runUntilComplete(job.steps);
+         result = " completionSteps=" + completionSteps + " mismatches=" + main.nest.completion.getMismatches();
+      }
+      else
+      {
+         main.run(job.steps);
+         result = "";
+      }
+      if (job.savefile != null)
+      {
+         main.save(job.savefile);
+      }
+      return("OK steps=" + job.steps + " metamorphs=" + main.pufferfish.metamorphs.size() + result +
+             " seconds=" + ((float)(System.nanoTime() - start) / 1.0e9f));
+   }
+
+
+   // Serve requests on local port until shutdown.
+   // Each connection is handed to a reader thread, so a client slow to send its
+   // request does not hold up others.
+   public void serve(int port) throws IOException, InterruptedException
+   {
+      serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+      while (true)
+      {
+         Socket socket;
+         try
+         {
+            socket = serverSocket.accept();
+         }
+         catch (IOException e)
+         {
+            if (shutdown) { break; }
+            throw e;
+         }
+         try
+         {
+            readers.execute(() -> handle(socket));
+         }
+         catch (RejectedExecutionException e)
+         {
+            reply(socket, "BUSY");
+         }
+      }
+      readers.shutdown();
+      readers.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+      workers.shutdown();
+      workers.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+   }
+
+
+   // Read request from connection and queue its job.
+   void handle(Socket socket)
+   {
+      String request;
+
+      try
+      {
+         socket.setSoTimeout(REQUEST_TIMEOUT);
+         request = new BufferedReader(new InputStreamReader(socket.getInputStream())).readLine();
+      }
+      catch (IOException e)
+      {
+         request = null;
+      }
+      if (request == null)
+      {
+         reply(socket, null);
+         return;
+      }
+      if (request.trim().equals("shutdown"))
+      {
+         reply(socket, "OK shutdown");
+         shutdown = true;
+         try
+         {
+            serverSocket.close();
+         }
+         catch (IOException e)
+         {
+         }
+         return;
+      }
+      Job job;
+      try
+      {
+         job = new Job(request);
+      }
+      catch (IOException e)
+      {
+         reply(socket, "ERROR " + e.getMessage());
+         return;
+      }
+      try
+      {
+         workers.execute(() ->
+                         {
+                            String result;
+                            try
+                            {
+                               result = run(job);
+                            }
+                            catch (Exception e)
+                            {
+                               result = "ERROR " + e.getMessage();
+                            }
+                            reply(socket, result);
+                         }
+                         );
+      }
+      catch (RejectedExecutionException e)
+      {
+         reply(socket, "BUSY");
+      }
+   }
+
+
+   // Send reply, if any, and close connection.
+   static void reply(Socket socket, String reply)
+   {
+      try
+      {
+         if (reply != null)
+         {
+            new PrintWriter(socket.getOutputStream(), true).println(reply);
+         }
+         socket.close();
+      }
+      catch (IOException e)
+      {
+      }
+   }
+
+
+   // Send request to server on local port, returning reply.
+   public static String request(int port, String request) throws IOException
+   {
+      Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+
+      PrintWriter writer = new PrintWriter(socket.getOutputStream(), true);
+      writer.println(request);
+      String reply = new BufferedReader(new InputStreamReader(socket.getInputStream())).readLine();
+      socket.close();
+      return(reply);
+   }
+
+
+   // Main.
+   public static void main(String[] args)
+   {
+      int    port       = DEFAULT_PORT;
+      int    numWorkers = Runtime.getRuntime().availableProcessors();
+      int    queueSize  = DEFAULT_QUEUE_SIZE;
+      String request    = null;
+
+      ArrayList<String> loadfiles = new ArrayList<String>();
+
+      for (int i = 0; i < args.length; i++)
+      {
+         if (args[i].equals("-port"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid port option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            try
+            {
+               port = Integer.parseInt(args[i]);
+            }
+            catch (NumberFormatException e) {
+               System.err.println("Invalid port option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if ((port < 0) || (port > 65535))
+            {
+               System.err.println("Invalid port option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-workers"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid workers option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            try
+            {
+               numWorkers = Integer.parseInt(args[i]);
+            }
+            catch (NumberFormatException e) {
+               System.err.println("Invalid workers option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if (numWorkers < 1)
+            {
+               System.err.println("Invalid workers option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-queueSize"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid queueSize option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            try
+            {
+               queueSize = Integer.parseInt(args[i]);
+            }
+            catch (NumberFormatException e) {
+               System.err.println("Invalid queueSize option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if (queueSize < 1)
+            {
+               System.err.println("Invalid queueSize option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-load"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid load option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            loadfiles.add(args[i]);
+            continue;
+         }
+         if (args[i].equals("-request"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid request option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            request = args[i];
+            continue;
+         }
+         if (args[i].equals("-help") || args[i].equals("-h") || args[i].equals("-?"))
+         {
+            System.out.println(Usage);
+            System.exit(0);
+         }
+         System.err.println("Invalid option: " + args[i]);
+         System.err.println(Usage);
+         System.exit(1);
+      }
+
+      // Send request?
+      if (request != null)
+      {
+         try
+         {
+            String reply = request(port, request);
+            System.out.println(reply);
+            if ((reply == null) || !reply.startsWith("OK"))
+            {
+               System.exit(1);
+            }
+         }
+         catch (Exception e)
+         {
+            System.err.println("Cannot send request: " + e.getMessage());
+            System.exit(1);
+         }
+         System.exit(0);
+      }
+
+      // Cache loaded runs: the first sets the nest properties.
+      SimulationServer server = new SimulationServer(numWorkers, queueSize);
+      for (String loadfile : loadfiles)
+      {
+         try
+         {
+            server.getLoadedRun(loadfile, server.loadedRuns.isEmpty());
+         }
+         catch (Exception e)
+         {
+            System.err.println("Cannot load from file " + loadfile + ": " + e.getMessage());
+            System.exit(1);
+         }
+      }
+
+      // Serve.
+      try
+      {
+         server.serve(port);
+      }
+      catch (Exception e)
+      {
+         System.err.println("Cannot serve on port " + port + ": " + e.getMessage());
+         System.exit(1);
+      }
+      System.exit(0);
+   }
+}
@@ -1,3 +1,5 @@
 javac -classpath ../lib/morphognosis.jar -d . ../src/morphognosis/pufferfish/*.java
+rem Optional vector API distance kernel, built if the jdk.incubator.vector module is present.
+java --list-modules | findstr jdk.incubator.vector >nul && javac --add-modules jdk.incubator.vector -classpath ../lib/morphognosis.jar;. -d . ../src-vector/morphognosis/pufferfish/*.java
 copy ..\res\images\pufferfish_nest.png morphognosis\pufferfish
 jar cvfm ../bin/pufferfish.jar pufferfish.mf morphognosis
\ No newline at end of file
@@ -1,4 +1,9 @@
 #!/bin/bash
 javac -classpath ../lib/morphognosis.jar -d . ../src/morphognosis/pufferfish/*.java
+# Optional vector API distance kernel, built if the jdk.incubator.vector module is present.
+if java --list-modules | grep -q jdk.incubator.vector
+then
+   javac --add-modules jdk.incubator.vector -classpath ../lib/morphognosis.jar:. -d . ../src-vector/morphognosis/pufferfish/*.java
+fi
 cp ../res/images/pufferfish_nest.png morphognosis/pufferfish
 jar cvfm ../bin/pufferfish.jar pufferfish.mf morphognosis
\ No newline at end of file
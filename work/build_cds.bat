@@ -0,0 +1,2 @@
+rem Class data sharing archive for headless runs, after build.bat.
+java -XX:ArchiveClassesAtExit=../bin/pufferfish.jsa --add-modules jdk.incubator.vector -cp ../bin/pufferfish.jar morphognosis.pufferfish.Main -numNeighborhoods 4 -steps 100
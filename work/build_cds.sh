@@ -0,0 +1,3 @@
+#!/bin/bash
+# Class data sharing archive for headless runs, after build.sh.
+java -XX:ArchiveClassesAtExit=../bin/pufferfish.jsa --add-modules jdk.incubator.vector -cp ../bin/pufferfish.jar morphognosis.pufferfish.Main -numNeighborhoods 4 -steps 100
@@ -1 +1 @@
-java -cp ../bin/pufferfish.jar morphognosis.pufferfish.Main -numNeighborhoods 4 $*
+java --add-modules jdk.incubator.vector -cp ../bin/pufferfish.jar morphognosis.pufferfish.Main -numNeighborhoods 4 $*
@@ -0,0 +1,2 @@
+rem Headless run with class data sharing archive from build_cds.bat.
+java -XX:SharedArchiveFile=../bin/pufferfish.jsa --add-modules jdk.incubator.vector -cp ../bin/pufferfish.jar morphognosis.pufferfish.Main -numNeighborhoods 4 %*
@@ -0,0 +1,3 @@
+#!/bin/bash
+# Headless run with class data sharing archive from build_cds.sh.
+java -XX:SharedArchiveFile=../bin/pufferfish.jsa --add-modules jdk.incubator.vector -cp ../bin/pufferfish.jar morphognosis.pufferfish.Main -numNeighborhoods 4 $*